@@ -23,6 +23,7 @@ import org.jboss.quickstarts.wfk.booking.BookingRestService;
 import org.jboss.quickstarts.wfk.booking.GuestBookingRestService;
 import org.jboss.quickstarts.wfk.customer.CustomerRestService;
 import org.jboss.quickstarts.wfk.flight.FlightRestService;
+import org.jboss.quickstarts.wfk.metrics.MetricsRestService;
 import org.jboss.quickstarts.wfk.travelagent.TravelAgentRestService;
 import org.jboss.quickstarts.wfk.util.JacksonConfig;
 import org.jboss.quickstarts.wfk.util.RestServiceExceptionHandler;
@@ -65,7 +66,7 @@ public class ContactServiceApplication extends Application {
         
         beanConfig.setBasePath("/api");
         //Add additional RESTService containing packages here, separated by commas:
-        beanConfig.setResourcePackage("org.jboss.quickstarts.wfk.customer,org.jboss.quickstarts.wfk.flight,org.jboss.quickstarts.wfk.booking,org.jboss.quickstarts.wfk.travelagent");
+        beanConfig.setResourcePackage("org.jboss.quickstarts.wfk.customer,org.jboss.quickstarts.wfk.flight,org.jboss.quickstarts.wfk.booking,org.jboss.quickstarts.wfk.travelagent,org.jboss.quickstarts.wfk.metrics");
         beanConfig.setScan(true);
 
         //Do not edit below
@@ -82,6 +83,7 @@ public class ContactServiceApplication extends Application {
         services.add(BookingRestService.class);
         services.add(GuestBookingRestService.class);
         services.add(TravelAgentRestService.class);
+        services.add(MetricsRestService.class);
 
         //Do not edit below
         services.add(RestServiceExceptionHandler.class);
@@ -0,0 +1,219 @@
+package org.jboss.quickstarts.wfk.area;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Local;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.Settings;
+import org.jboss.quickstarts.wfk.util.UpstreamClients;
+import org.jboss.resteasy.client.ClientResponse;
+
+/**
+ * <p>Local copy of all the area codes of the external {@link AreaService}.</p>
+ *
+ * <p>Area codes are a small set which hardly ever changes, so instead of asking the external service about the area
+ * code of every contact written, all of them are loaded when the application starts, and then reloaded in the
+ * background every <code>area.refresh</code> milliseconds (see {@link Settings}). They're kept in an array indexed by
+ * the 3 digit code, which is swapped as a whole on reload, so a lookup is a single array access.</p>
+ *
+ * <p>If the external service is down when the application starts, the area codes are loaded by the first lookup. If
+ * it's down during a reload, the area codes loaded before are kept.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Singleton
+@Startup
+@LocalBean
+@Local(MetricSource.class)
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class AreaDirectory implements MetricSource {
+    //area codes have 3 digits
+    private static final int SIZE = 1000;
+
+    @Inject
+    private @Named("logger") Logger log;
+
+    @Inject
+    private UpstreamClients clients;
+
+    @Resource
+    private TimerService timerService;
+
+    //null until the area codes have been loaded for the first time
+    private volatile Area[] areas;
+    private volatile int count;
+    private volatile long loadedAt;
+
+    //only one load at a time
+    private final ReentrantLock loading = new ReentrantLock();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+
+    @PostConstruct
+    void start() {
+        long interval = Settings.getLong("area.refresh", TimeUnit.HOURS.toMillis(1));
+        timerService.createIntervalTimer(interval, interval, new TimerConfig(null, false));
+
+        try {
+            load();
+        } catch (RuntimeException e) {
+            log.warning("Could not load area codes, they will be loaded by the first lookup: " + e.getMessage());
+        }
+    }
+
+    @Timeout
+    void refresh() {
+        try {
+            load();
+        } catch (RuntimeException e) {
+            log.warning("Could not reload area codes, keeping the " + count + " loaded before: " + e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Returns the area of the area code of a phone number, such as <code>(212) 555-1234</code>.</p>
+     *
+     * @param phoneNumber Phone number, which has passed the validation of {@link org.jboss.quickstarts.wfk.contact.Contact}
+     * @return The area, or null if there is no such area code
+     * @throws RestServiceException if the area codes haven't been loaded yet, and can't be loaded now
+     */
+    public Area findByPhoneNumber(String phoneNumber) throws RestServiceException {
+        return find(areaCode(phoneNumber));
+    }
+
+    /**
+     * <p>Returns the area of an area code.</p>
+     *
+     * @param code The 3 digit area code
+     * @return The area, or null if there is no such area code
+     * @throws RestServiceException if the area codes haven't been loaded yet, and can't be loaded now
+     */
+    public Area find(int code) throws RestServiceException {
+        Area[] table = areas;
+        if (table == null) {
+            table = loadFirst();
+        }
+
+        lookups.incrementAndGet();
+        Area area = code >= 0 && code < SIZE ? table[code] : null;
+        if (area == null) {
+            misses.incrementAndGet();
+        }
+        return area;
+    }
+
+    private Area[] loadFirst() {
+        loading.lock();
+        try {
+            if (areas == null) {
+                load();
+            }
+            return areas;
+        } catch (RuntimeException e) {
+            throw new RestServiceException("Area codes are not available at the moment, please try again shortly", Response.Status.SERVICE_UNAVAILABLE, e);
+        } finally {
+            loading.unlock();
+        }
+    }
+
+    private void load() {
+        loading.lock();
+        try {
+            loads.incrementAndGet();
+
+            List<Area> loaded;
+            ClientResponse<List<Area>> response = clients.getAreaService().getAreas();
+            try {
+                loaded = response.getEntity();
+            } finally {
+                response.releaseConnection();
+            }
+
+            if (loaded == null || loaded.isEmpty()) {
+                throw new IllegalStateException("Area service returned no area codes");
+            }
+
+            Area[] table = new Area[SIZE];
+            int n = 0;
+            for (Area area : loaded) {
+                if (area != null && area.getId() >= 0 && area.getId() < SIZE) {
+                    table[area.getId()] = area;
+                    n++;
+                }
+            }
+
+            areas = table;
+            count = n;
+            loadedAt = System.currentTimeMillis();
+            log.info("Loaded " + n + " area codes");
+        } catch (RuntimeException e) {
+            loadFailures.incrementAndGet();
+            throw e;
+        } finally {
+            loading.unlock();
+        }
+    }
+
+    /**
+     * @return The 3 digit area code of the phone number, or -1 if it doesn't have one
+     */
+    static int areaCode(String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.length() < 4) {
+            return -1;
+        }
+
+        int code = 0;
+        for (int i = 1; i < 4; i++) {
+            char c = phoneNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "areas";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("areaCodes", count);
+        metrics.put("ageMillis", areas == null ? null : System.currentTimeMillis() - loadedAt);
+        metrics.put("lookups", lookups.get());
+        metrics.put("misses", misses.get());
+        metrics.put("loads", loads.get());
+        metrics.put("loadFailures", loadFailures.get());
+        return metrics;
+    }
+}
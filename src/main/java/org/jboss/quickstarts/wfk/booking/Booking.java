@@ -5,8 +5,10 @@ import java.util.Date;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
@@ -21,9 +23,14 @@ import javax.validation.constraints.Future;
 import javax.validation.constraints.NotNull;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.flight.Flight;
 import org.jboss.quickstarts.wfk.travelagent.TravelAgentBooking;
+import org.jboss.quickstarts.wfk.util.PooledSequenceGenerator;
 
 import io.swagger.annotations.ApiModelProperty;
 
@@ -34,6 +41,10 @@ import io.swagger.annotations.ApiModelProperty;
  * <p>The class also specifies how a bookings are retrieved from the database (with @NamedQueries), and acceptable values
  * for Booking fields (with @NotNull, @Pattern etc...)<p/>
  *
+ * <p>A PENDING Booking is a short-lived hold on the flight, while the travel agent makes the external bookings. It takes
+ * the seat like any other Booking, but is deleted by the {@link BookingHoldReaper} if it isn't confirmed before it
+ * expires.</p>
+ *
  * @author Jakub Gawron
  */
 /*
@@ -42,22 +53,43 @@ import io.swagger.annotations.ApiModelProperty;
  */
 @Entity
 @NamedQueries({
-        @NamedQuery(name = Booking.FIND_ALL, query = "SELECT b FROM Booking b"),
+        @NamedQuery(name = Booking.FIND_ALL, query = "SELECT b FROM Booking b JOIN FETCH b.customer JOIN FETCH b.flight LEFT JOIN FETCH b.travelAgentBooking ORDER BY b.id ASC"),
+        @NamedQuery(name = Booking.FIND_PAGE, query = "SELECT b FROM Booking b JOIN FETCH b.customer JOIN FETCH b.flight LEFT JOIN FETCH b.travelAgentBooking WHERE b.id > :id ORDER BY b.id ASC"),
         @NamedQuery(name = Booking.FIND_BY_FLIGHT, query = "SELECT b FROM Booking b where b.flight.id = :flight_id AND b.bookingDate = :bookingDate"),
-        @NamedQuery(name = Booking.FIND_BY_CUSTOMER, query= "SELECT b FROM Booking b where b.customer.id = :customer_id")
+        @NamedQuery(name = Booking.FIND_BY_CUSTOMER, query= "SELECT b FROM Booking b JOIN FETCH b.customer JOIN FETCH b.flight LEFT JOIN FETCH b.travelAgentBooking where b.customer.id = :customer_id ORDER BY b.id ASC"),
+        @NamedQuery(name = Booking.FIND_PAGE_BY_CUSTOMER, query= "SELECT b FROM Booking b JOIN FETCH b.customer JOIN FETCH b.flight LEFT JOIN FETCH b.travelAgentBooking where b.customer.id = :customer_id AND b.id > :id ORDER BY b.id ASC"),
+        @NamedQuery(name = Booking.FIND_BY_FLIGHTS, query = "SELECT b FROM Booking b where b.flight.id IN :flight_ids AND b.bookingDate IN :dates"),
+        @NamedQuery(name = Booking.CONFIRM_HOLD, query = "UPDATE Booking b SET b.status = :confirmed, b.holdExpires = NULL WHERE b.id = :id AND b.status = :pending"),
+        @NamedQuery(name = Booking.FIND_EXPIRED_HOLDS, query = "SELECT b.id FROM Booking b WHERE b.status = :pending AND b.holdExpires < :now"),
+        @NamedQuery(name = Booking.FIND_OCCUPANCY, query = "SELECT b.flight.id, b.bookingDate FROM Booking b"),
+        @NamedQuery(name = Booking.FIND_BOOKED_DATES, query = "SELECT b.flight.id, b.bookingDate FROM Booking b WHERE b.flight.id IN :flight_ids AND b.bookingDate BETWEEN :from AND :to")
 })
+@EntityListeners(BookingListener.class)
 @XmlRootElement
 @Table(name = "booking", uniqueConstraints = @UniqueConstraint(columnNames = {"flight_id", "booking_date"}))
+//the bookings of a customer are listed (and paged through) by id
+@org.hibernate.annotations.Table(appliesTo = "booking", indexes = @Index(name = "booking_customer_id_idx", columnNames = {"customer_id", "id"}))
 public class Booking implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	public static final String FIND_ALL = "Booking.findAll";
+	public static final String FIND_PAGE = "Booking.findPage";
 	public static final String FIND_BY_FLIGHT = "Booking.findByFlight";
 	public static final String FIND_BY_CUSTOMER = "Booking.findByCustomer";
+	public static final String FIND_PAGE_BY_CUSTOMER = "Booking.findPageByCustomer";
+	public static final String FIND_BY_FLIGHTS = "Booking.findByFlights";
+	public static final String CONFIRM_HOLD = "Booking.confirmHold";
+	public static final String FIND_EXPIRED_HOLDS = "Booking.findExpiredHolds";
+	public static final String FIND_OCCUPANCY = "Booking.findOccupancy";
+	public static final String FIND_BOOKED_DATES = "Booking.findBookedDates";
+	
+	public enum Status { PENDING, CONFIRMED }
 
     @ApiModelProperty(hidden=true)
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "booking_seq")
+    @GenericGenerator(name = "booking_seq", strategy = PooledSequenceGenerator.NAME,
+            parameters = @Parameter(name = "sequence_name", value = "booking_seq"))
 	private Long id;
     
     @ManyToOne
@@ -74,6 +106,16 @@ public class Booking implements Serializable {
     @Column(name="booking_date", nullable=false)
 	private Date bookingDate;
     
+    @ApiModelProperty(readOnly=true)
+    @Enumerated(EnumType.STRING)
+    @Column(name="status", nullable=false, length=10)
+    private Status status = Status.CONFIRMED;
+    
+    @JsonIgnore
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="hold_expires")
+    private Date holdExpires;
+    
     @OneToOne(mappedBy="flightBooking", optional=true, orphanRemoval=true)
     private TravelAgentBooking travelAgentBooking;
     
@@ -117,6 +159,31 @@ public class Booking implements Serializable {
 		this.bookingDate = bookingDate;
 	}
 	
+	public Status getStatus() {
+		return status;
+	}
+	
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+	
+	public Date getHoldExpires() {
+		return holdExpires;
+	}
+	
+	public void setHoldExpires(Date holdExpires) {
+		this.holdExpires = holdExpires;
+	}
+	
+	/**
+	 * @return The TravelAgentBooking this Booking was made for, if any
+	 */
+	@ApiModelProperty(hidden=true)
+	@JsonIgnore
+	public TravelAgentBooking getTravelAgentBooking() {
+		return travelAgentBooking;
+	}
+	
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,126 @@
+package org.jboss.quickstarts.wfk.booking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Resource;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+import javax.inject.Inject;
+import javax.transaction.NotSupportedException;
+import javax.transaction.SystemException;
+import javax.transaction.UserTransaction;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+import org.hibernate.ScrollableResults;
+import org.jboss.quickstarts.wfk.util.JacksonConfig;
+import org.jboss.quickstarts.wfk.util.Settings;
+
+/**
+ * <p>Writes all the {@link Booking}s as JSON, without holding them all in memory.</p>
+ *
+ * <p>The Bookings are read through a forward-only cursor and written one at a time with the same
+ * <code>JsonGenerator</code>. Every <code>export.clear-size</code> Bookings the persistence context is cleared and the
+ * output is flushed, so the heap stays flat however many Bookings there are. They are written either as one JSON array,
+ * or as NDJSON (one Booking per line).</p>
+ *
+ * <p>The export runs in its own transaction, which lasts as long as the client takes to read the response, so it's
+ * given <code>export.timeout</code> seconds rather than the default timeout.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Stateless
+@TransactionManagement(TransactionManagementType.BEAN)
+public class BookingExporter {
+	public static final String NDJSON = "application/x-ndjson";
+
+	private static final int FETCH_SIZE = Settings.getInt("export.fetch-size", 500);
+	private static final int CLEAR_SIZE = Math.max(1, Settings.getInt("export.clear-size", 500));
+	private static final int TIMEOUT = Settings.getInt("export.timeout", 3600);
+
+	//same date format as the rest of the api
+	private static final ObjectMapper mapper = new JacksonConfig().getContext(Booking.class);
+	//the output is flushed every CLEAR_SIZE Bookings, rather than after each one
+	private static final SerializationConfig config = mapper.copySerializationConfig()
+			.without(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE);
+
+	@Inject
+	BookingService service;
+
+	@Resource
+	UserTransaction userTransaction;
+
+	/**
+	 * <p>Writes all the Bookings, sorted by id.</p>
+	 *
+	 * @param out Where to write the Bookings to, left open
+	 * @param ndjson Whether to write one Booking per line, rather than a JSON array
+	 * @return Number of Bookings written
+	 * @throws IOException if the Bookings can't be written, e.g. the client went away
+	 */
+	public int write(OutputStream out, boolean ndjson) throws IOException {
+		JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+		if(ndjson) {
+			//Jackson separates values at the root with a space, NDJSON needs a line break
+			generator.setPrettyPrinter(new MinimalPrettyPrinter() {
+				@Override
+				public void writeRootValueSeparator(JsonGenerator jg) throws IOException {
+					jg.writeRaw('\n');
+				}
+			});
+		}
+
+		try {
+			userTransaction.setTransactionTimeout(TIMEOUT);
+			userTransaction.begin();
+		} catch (NotSupportedException e) {
+			throw new IllegalStateException(e);
+		} catch (SystemException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int count = 0;
+		try {
+			ScrollableResults rows = service.scrollAll(FETCH_SIZE);
+			try {
+				if(!ndjson) {
+					generator.writeStartArray();
+				}
+
+				while(rows.next()) {
+					mapper.writeValue(generator, rows.get(0), config);
+
+					if(++count % CLEAR_SIZE == 0) {
+						//the Bookings written so far aren't needed any more
+						service.clear();
+						generator.flush();
+					}
+				}
+
+				if(!ndjson) {
+					generator.writeEndArray();
+				} else if(count > 0) {
+					generator.writeRaw('\n');
+				}
+				generator.flush();
+			} finally {
+				rows.close();
+			}
+		} finally {
+			//nothing has been written to the database
+			try {
+				userTransaction.rollback();
+				userTransaction.setTransactionTimeout(0);
+			} catch (SystemException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,46 @@
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * <p>Deletes the PENDING {@link Booking}s whose hold has expired.</p>
+ *
+ * <p>A hold is normally confirmed or released by the request which made it, within a few seconds. It is only left
+ * behind if that request was lost (e.g. the server went down half way through), and then it would take the seat for
+ * good, so expired holds are deleted every 15 seconds.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Singleton
+public class BookingHoldReaper {
+	
+	@Inject
+	private @Named("logger") Logger log;
+	
+	@Inject
+	BookingService service;
+	
+	@Schedule(hour = "*", minute = "*", second = "*/15", persistent = false)
+	void scheduled() {
+		expireHolds();
+	}
+	
+	/**
+	 * <p>Deletes the expired holds straight away.</p>
+	 *
+	 * @return Number of holds deleted
+	 */
+	public int expireHolds() {
+		int expired = service.expireHolds(new Date());
+		if(expired > 0) {
+			log.info("Expired " + expired + " abandoned flight booking hold(s)");
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,63 @@
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Outcome of a list of Bookings submitted to the bulk ingest endpoint.</p>
+ *
+ * <p>The Bookings which failed validation are left out, with the reason keyed by their index in the submitted list.
+ * All the others have been created.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class BookingIngestResult {
+	private int received;
+	private int created;
+	private long millis;
+	private Map<Integer, String> errors = new TreeMap<Integer, String>();
+
+	public BookingIngestResult() {}
+
+	public BookingIngestResult(int received, Map<Integer, String> errors, long millis) {
+		this.received = received;
+		this.created = received - errors.size();
+		this.errors = errors;
+		this.millis = millis;
+	}
+
+	public int getReceived() {
+		return received;
+	}
+
+	public void setReceived(int received) {
+		this.received = received;
+	}
+
+	public int getCreated() {
+		return created;
+	}
+
+	public void setCreated(int created) {
+		this.created = created;
+	}
+
+	/**
+	 * @return How long the Bookings took to validate and write, in milliseconds
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	public void setMillis(long millis) {
+		this.millis = millis;
+	}
+
+	public Map<Integer, String> getErrors() {
+		return errors;
+	}
+
+	public void setErrors(Map<Integer, String> errors) {
+		this.errors = errors;
+	}
+}
@@ -0,0 +1,43 @@
+package org.jboss.quickstarts.wfk.booking;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+
+/**
+ * <p>Keeps the {@link OccupancyIndex} up to date with every {@link Booking} written or deleted.</p>
+ *
+ * <p>It's an entity listener, rather than a call in {@link BookingRepository}, so it also sees the Bookings removed
+ * along with their Customer or Flight. Entity listeners can't have anything injected with JPA 2.0, so the index is
+ * looked up in JNDI.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class BookingListener {
+	private static final String INDEX = "java:module/OccupancyIndex!" + OccupancyIndex.class.getName();
+	
+	private static volatile OccupancyIndex index;
+	
+	@PostPersist
+	void persisted(Booking booking) {
+		index().booked(booking);
+	}
+	
+	@PostRemove
+	void removed(Booking booking) {
+		index().cancelled(booking);
+	}
+	
+	private static OccupancyIndex index() {
+		OccupancyIndex found = index;
+		if(found == null) {
+			try {
+				found = index = InitialContext.doLookup(INDEX);
+			} catch (NamingException e) {
+				throw new IllegalStateException("Could not find " + INDEX, e);
+			}
+		}
+		return found;
+	}
+}
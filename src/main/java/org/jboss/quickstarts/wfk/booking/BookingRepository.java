@@ -1,20 +1,33 @@
 package org.jboss.quickstarts.wfk.booking;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
+import javax.persistence.PersistenceException;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.flight.Flight;
+import org.jboss.quickstarts.wfk.util.Settings;
+import org.jboss.quickstarts.wfk.util.UniqueKeys;
 
 public class BookingRepository {
+    //Bookings written by createAll() between flushes, best kept a multiple of hibernate.jdbc.batch_size
+    private static final int FLUSH_SIZE = Math.max(1, Settings.getInt("ingest.flush-size", 50));
+    
     @Inject
     private EntityManager em;
     
@@ -28,6 +41,31 @@ public class BookingRepository {
         return query.getResultList();
     }
     
+    /**
+     * <p>Opens a forward-only cursor over all persisted {@link Booking} objects, sorted by id, together with their
+     * Customer and Flight.</p>
+     *
+     * <p>The Bookings are read from the database <code>fetchSize</code> rows at a time as the cursor moves, and are
+     * loaded read-only, but stay in the persistence context until {@link #clear()} is called.</p>
+     *
+     * @param fetchSize Number of rows to fetch from the database at once
+     * @return Cursor over the Bookings, to be closed by the caller
+     */
+    ScrollableResults scrollAll(int fetchSize) {
+        return em.unwrap(Session.class).getNamedQuery(Booking.FIND_ALL)
+                .setReadOnly(true)
+                .setFetchSize(fetchSize)
+                .setCacheMode(CacheMode.IGNORE)
+                .scroll(ScrollMode.FORWARD_ONLY);
+    }
+    
+    /**
+     * <p>Detaches all the loaded entities from the persistence context, so they can be garbage collected.</p>
+     */
+    void clear() {
+        em.clear();
+    }
+    
     /**
      * <p>Returns a single Booking object, specified by a Long id.</p>
      *
@@ -49,6 +87,29 @@ public class BookingRepository {
         return query.getResultList();
     }
     
+    /**
+     * <p>Returns a page of persisted {@link Booking} objects, sorted by id, which come after the given id.</p>
+     *
+     * @param customer The Customer whose Bookings to return, or null for the Bookings of all Customers
+     * @param id The id of the last Booking of the previous page, or null for the first page
+     * @param max The maximum number of Bookings to return
+     * @return List of Booking objects
+     */
+    List<Booking> findPage(Customer customer, Long id, int max) {
+        TypedQuery<Booking> query;
+        if (customer == null) {
+            query = id == null
+                    ? em.createNamedQuery(Booking.FIND_ALL, Booking.class)
+                    : em.createNamedQuery(Booking.FIND_PAGE, Booking.class).setParameter("id", id);
+        } else {
+            query = id == null
+                    ? em.createNamedQuery(Booking.FIND_BY_CUSTOMER, Booking.class)
+                    : em.createNamedQuery(Booking.FIND_PAGE_BY_CUSTOMER, Booking.class).setParameter("id", id);
+            query.setParameter("customer_id", customer.getId());
+        }
+        return query.setMaxResults(max).getResultList();
+    }
+    
     
     /**
      * <p>Returns a single Booking object, specified by a flight and date.</p>
@@ -71,22 +132,161 @@ public class BookingRepository {
     }
     
     
+    /**
+     * <p>Returns all the Bookings of any of the given flights, on any of the given dates, using a single query.</p>
+     *
+     * <p>The result may contain Bookings for combinations of flight and date which weren't asked for.<p/>
+     *
+     * @param flightIds The ids of the flights
+     * @param dates The booking dates
+     * @return List of matching Booking objects
+     */
+    List<Booking> findByFlights(Collection<Long> flightIds, Collection<Date> dates) {
+        TypedQuery<Booking> query = em.createNamedQuery(Booking.FIND_BY_FLIGHTS, Booking.class).setParameter("flight_ids", flightIds).setParameter("dates", dates);
+        return query.getResultList();
+    }
+    
+    
     /**
      * <p>Writes the provided Booking object to the application database.<p/>
      *
      * <p>Validates the data in the provided Booking object using a {@link BookingValidator} object.<p/>
      *
+     * <p>The flight may already be booked on the same date, see {@link UniqueKeys}.<p/>
+     *
      * @param booking The Booking object to be written to the database using a {@link BookingRepository} object
      * @return The Booking object that has been successfully written to the application database
+     * @throws BookingExistsException if the flight is already booked on the same date
      * @throws ConstraintViolationException, ValidationException, Exception
      */
     Booking create(Booking booking) throws ConstraintViolationException, ValidationException, Exception {
-        // Write the booking to the database.
-        em.persist(booking);
+        try {
+            // Write the booking to the database, straight away rather than at commit, so a duplicate shows up here.
+            em.persist(booking);
+            em.flush();
+        } catch (PersistenceException e) {
+            if (UniqueKeys.isViolation(e)) {
+                throw new BookingExistsException("Booking already exists", e);
+            }
+            throw e;
+        }
 
         return booking;
     }
     
+    /**
+     * <p>Writes many Bookings, which have already been validated, to the application database.</p>
+     *
+     * <p>The Bookings are flushed every <code>ingest.flush-size</code> Bookings, so their inserts go to the database in
+     * JDBC batches, and the persistence context is cleared after every flush, so it doesn't grow with the number of
+     * Bookings. This detaches any other entity loaded in the current transaction as well.</p>
+     *
+     * @param bookings The Bookings to be written
+     * @return The number of Bookings written
+     * @throws BookingExistsException if any of the flights is already booked on the same date
+     */
+    int createAll(List<Booking> bookings) throws BookingExistsException {
+        try {
+            for (int i = 0, size = bookings.size(); i < size; i++) {
+                em.persist(bookings.get(i));
+                
+                if ((i + 1) % FLUSH_SIZE == 0) {
+                    em.flush();
+                    em.clear();
+                }
+            }
+            em.flush();
+            em.clear();
+        } catch (PersistenceException e) {
+            if (UniqueKeys.isViolation(e)) {
+                throw new BookingExistsException("Booking already exists", e);
+            }
+            throw e;
+        }
+        
+        return bookings.size();
+    }
+    
+    /**
+     * <p>Turns a PENDING Booking into a CONFIRMED one, unless it has been released or expired in the meantime.</p>
+     *
+     * @param id The id of the PENDING Booking
+     * @return The number of Bookings confirmed, 0 or 1
+     */
+    int confirmHold(Long id) {
+        return em.createNamedQuery(Booking.CONFIRM_HOLD)
+                .setParameter("id", id)
+                .setParameter("confirmed", Booking.Status.CONFIRMED)
+                .setParameter("pending", Booking.Status.PENDING)
+                .executeUpdate();
+    }
+    
+    /**
+     * <p>Deletes a PENDING Booking, leaving it alone if it has been confirmed.</p>
+     *
+     * <p>The Booking is locked before its status is checked, so it can't be confirmed at the same time.</p>
+     *
+     * @param id The id of the PENDING Booking
+     * @return The number of Bookings deleted, 0 or 1
+     */
+    int releaseHold(Long id) {
+        Booking booking = em.find(Booking.class, id, LockModeType.PESSIMISTIC_WRITE);
+        if (booking == null || booking.getStatus() != Booking.Status.PENDING) {
+            return 0;
+        }
+
+        //removed one by one rather than with a bulk delete, so the OccupancyIndex is told about it
+        em.remove(booking);
+        return 1;
+    }
+    
+    /**
+     * <p>Deletes all the PENDING Bookings which expired before the given time.</p>
+     *
+     * @param now The current time
+     * @return The number of Bookings deleted
+     */
+    int expireHolds(Date now) {
+        List<Long> expired = em.createNamedQuery(Booking.FIND_EXPIRED_HOLDS, Long.class)
+                .setParameter("pending", Booking.Status.PENDING)
+                .setParameter("now", now)
+                .getResultList();
+        
+        int deleted = 0;
+        for (Long id : expired) {
+            deleted += releaseHold(id);
+        }
+        return deleted;
+    }
+    
+    /**
+     * <p>Returns the flight id and booking date of every Booking, see {@link OccupancyIndex}.</p>
+     *
+     * @return List of [flight id, booking date] pairs
+     */
+    List<Object[]> findOccupancy() {
+        return em.createNamedQuery(Booking.FIND_OCCUPANCY, Object[].class).getResultList();
+    }
+    
+    /**
+     * <p>Returns the flight id and booking date of the Bookings of the given flights, between two dates.</p>
+     *
+     * <p>The unique constraint on (<code>flight_id</code>, <code>booking_date</code>) is backed by an index, so this is
+     * a range scan of that index for each flight, which never touches the table itself.</p>
+     *
+     * @param flightIds The ids of the flights
+     * @param from The first booking date, inclusive
+     * @param to The last booking date, inclusive
+     * @return List of [flight id, booking date] pairs
+     */
+    List<Object[]> findBookedDates(Collection<Long> flightIds, Date from, Date to) {
+        return em.createNamedQuery(Booking.FIND_BOOKED_DATES, Object[].class)
+                .setParameter("flight_ids", flightIds)
+                .setParameter("from", from, TemporalType.DATE)
+                .setParameter("to", to, TemporalType.DATE)
+                .getResultList();
+    }
+    
     /**
      * <p>Deletes the provided Booking object from the application database if found there</p>
      *
@@ -1,9 +1,14 @@
 package org.jboss.quickstarts.wfk.booking;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.ejb.Stateless;
@@ -11,20 +16,31 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
+import javax.validation.ValidationException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.customer.CustomerService;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.Keyset;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.Settings;
+
+import com.google.common.base.Function;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -39,30 +55,71 @@ import io.swagger.annotations.ApiResponses;
 @Api(value = "/bookings")
 @Stateless
 public class BookingRestService {
+	private static final int MAX_INGEST = Settings.getInt("ingest.max-bookings", 10000);
+	
 	@Inject
 	BookingService service;
 	
+	@Inject
+	BookingExporter exporter;
+	
 	@Inject
 	CustomerService customerService;
 	
+	@Inject
+	IdempotencyStore idempotency;
+	
     @Inject
     private @Named("logger") Logger log;
     
     
     /**
-     * <p>Return all the Bookings</p>
+     * <p>Return all the Bookings, sorted by id, in pages of at most <code>limit</code> Bookings.</p>
      *
-     * <p>The url may optionally include query parameter specifying a customer id</p>
+     * <p>The url may optionally include query parameter specifying a customer id. If there are more Bookings, the
+     * response has a <code>Link</code> header to the next page, see {@link Keyset}.</p>
      *
-     * <p>Examples: <pre>GET api/bookings?customerid=123</pre></p>
+     * <p>Examples: <pre>GET api/bookings?customerId=123</pre>, <pre>GET api/bookings?customerId=123&limit=20</pre></p>
      *
      * @return A Response containing a list of Bookings
      */
     @GET
-    @ApiOperation(value = "Fetch all Bookings", notes = "Returns a JSON array of all stored Booking objects.")
+    @ApiOperation(value = "Fetch all Bookings", notes = "Returns a JSON array of stored Booking objects, sorted by id. "
+    		+ "The link to the next page, if any, is in the Link header.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Bookings retrieved successfully"),
+            @ApiResponse(code = 400, message = "Invalid limit or cursor supplied")
+    })
 	public Response getAllBookings(
 			@ApiParam(value = "id of customer", allowableValues = "range[0, infinity]", required = false)
-			@QueryParam("customerId") Long customerId) {
+			@QueryParam("customerId") Long customerId,
+			@ApiParam(value = "Maximum number of bookings to return", allowableValues = "range[1, infinity]", required = false)
+			@QueryParam("limit") Integer limit,
+			@ApiParam(value = "Cursor from the Link header of the previous page", required = false)
+			@QueryParam("after") String after,
+			@ApiParam(hidden = true) @Context UriInfo uriInfo) {
+		int max = Keyset.limit(limit);
+		Object[] key = Keyset.decode(after, Long.class);
+		
+		Customer customer = null;
+		if(customerId != null && (customer = customerService.findById(customerId)) == null) {
+			return Response.ok(new ArrayList<Booking>(0)).build();
+		}
+		
+		List<Booking> bookings = service.findPage(customer, key == null ? null : (Long) key[0], max + 1);
+		
+		return Keyset.page(bookings, max, uriInfo, new Function<Booking, Object[]>() {
+			@Override
+			public Object[] apply(Booking booking) {
+				return new Object[] {booking.getId()};
+			}
+		});
+	}
+    
+    /**
+     * <p>Return all the Bookings, optionally of one customer, without paging. Only for use within the application.</p>
+     */
+	public Response getAllBookings(Long customerId) {
     	List<Booking> bookings;
     	
     	if(customerId == null) {
@@ -90,7 +147,22 @@ public class BookingRestService {
     })
 	public Response createBooking(
 		@ApiParam(value = "JSON representation of Booking object to be added to the database", required = true) 
-		Booking booking) {
+		final Booking booking,
+		@ApiParam(value = "Unique key of this request, a retry with the same key gets the original response", required = false)
+		@HeaderParam(IdempotencyStore.KEY_HEADER) String idempotencyKey) {
+    	
+    	return idempotency.execute("POST /bookings", idempotencyKey, booking, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return createBooking(booking);
+			}
+		});
+	}
+    
+    /**
+     * <p>Creates the booking, without checking for an idempotency key.</p>
+     */
+	public Response createBooking(Booking booking) {
     	
         if (booking == null || booking.getCustomer() == null || booking.getFlight() == null || booking.getBookingDate() == null) {
             throw new RestServiceException("Bad Request", Response.Status.BAD_REQUEST);
@@ -138,6 +210,102 @@ public class BookingRestService {
 	}
     
     
+    /**
+     * <p>Creates many Bookings at once, e.g. to import the bookings of another system.</p>
+     *
+     * <p>Bookings which fail validation are left out and reported by their index in the list, all the others are
+     * created in a single transaction, with their inserts sent to the database in JDBC batches. At most
+     * <code>ingest.max-bookings</code> Bookings (10000 by default) can be sent at once.</p>
+     *
+     * @param bookings The Bookings to be created
+     * @return A Response containing a {@link BookingIngestResult}
+     */
+    @POST
+    @Path("/bulk")
+    @ApiOperation(value = "Add many Bookings to the database at once", notes = "Invalid Bookings are left out and reported by their index in the list.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Valid Bookings created, invalid ones reported"),
+            @ApiResponse(code = 400, message = "Missing or too many Bookings supplied in request body"),
+            @ApiResponse(code = 409, message = "A conflicting Booking was made at the same time, nothing was created"),
+            @ApiResponse(code = 500, message = "An unexpected error occurred whilst processing the request")
+    })
+    public Response ingestBookings(
+    		@ApiParam(value = "JSON array of Booking objects to be added to the database", required = true)
+    		List<Booking> bookings) {
+    	
+    	if (bookings == null || bookings.isEmpty() || bookings.size() > MAX_INGEST) {
+    		throw new RestServiceException("Between 1 and " + MAX_INGEST + " bookings must be given", Response.Status.BAD_REQUEST);
+    	}
+    	
+    	for (int i = 0, size = bookings.size(); i < size; i++) {
+    		Booking booking = bookings.get(i);
+    		if (booking == null || booking.getCustomer() == null || booking.getFlight() == null || booking.getBookingDate() == null) {
+    			throw new RestServiceException("Booking " + i + " has no customer, flight or date", Response.Status.BAD_REQUEST);
+    		}
+    	}
+    	
+    	long start = System.nanoTime();
+    	Map<Integer, String> errors = new TreeMap<>();
+    	try {
+    		for (Map.Entry<Integer, ValidationException> error : service.ingest(bookings).entrySet()) {
+    			errors.put(error.getKey(), error.getValue().getMessage());
+    		}
+    	} catch (BookingExistsException e) {
+    		throw new RestServiceException("A conflicting booking was made at the same time, please try again", Response.Status.CONFLICT, e);
+    	} catch (Exception e) {
+    		log.warning("Caught internal exception when ingesting bookings: " + e.getMessage());
+    		throw new RestServiceException(e);
+    	}
+    	
+    	return Response.ok(new BookingIngestResult(bookings.size(), errors, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))).build();
+    }
+    
+    /**
+     * <p>Return every Booking in one response, for exports.</p>
+     *
+     * <p>Unlike {@link #getAllBookings(Long, Integer, String, UriInfo)}, the Bookings aren't loaded into memory first,
+     * but streamed from the database to the client as they are read, see {@link BookingExporter}.</p>
+     *
+     * <p>Examples: <pre>GET api/bookings/export</pre>, <pre>GET api/bookings/export?format=ndjson</pre></p>
+     *
+     * @param format Either <code>json</code> for a JSON array, or <code>ndjson</code> for one Booking per line
+     * @return A Response streaming the Bookings
+     */
+    @GET
+    @Path("/export")
+    @Produces({MediaType.APPLICATION_JSON, BookingExporter.NDJSON})
+    @ApiOperation(value = "Export all Bookings", notes = "Streams every stored Booking object, sorted by id, "
+    		+ "as a JSON array or as newline delimited JSON.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Bookings streamed successfully"),
+            @ApiResponse(code = 400, message = "Unknown format requested")
+    })
+    public Response exportBookings(
+    		@ApiParam(value = "Format of the export", allowableValues = "json, ndjson", required = false)
+    		@QueryParam("format") @DefaultValue("json") String format) {
+    	
+    	final boolean ndjson;
+    	if ("ndjson".equals(format)) {
+    		ndjson = true;
+    	} else if ("json".equals(format)) {
+    		ndjson = false;
+    	} else {
+    		throw new RestServiceException("Unknown format " + format + ", use json or ndjson", Response.Status.BAD_REQUEST);
+    	}
+    	
+    	//written once this method has returned, by the exporter in a transaction of its own
+    	StreamingOutput output = new StreamingOutput() {
+    		@Override
+    		public void write(OutputStream out) throws IOException {
+    			int count = exporter.write(out, ndjson);
+    			log.info("Exported " + count + " bookings");
+    		}
+    	};
+    	
+    	return Response.ok(output, ndjson ? BookingExporter.NDJSON : MediaType.APPLICATION_JSON).build();
+    }
+    
+    
     /**
      * <p>Deletes a booking using the ID provided. If the ID is not present then nothing can be deleted.</p>
      *
@@ -1,15 +1,20 @@
 package org.jboss.quickstarts.wfk.booking;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.persistence.NonUniqueResultException;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
+import org.hibernate.ScrollableResults;
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.flight.Flight;
+import org.jboss.quickstarts.wfk.util.ResponseCache;
 
 public class BookingService {
 	@Inject
@@ -18,6 +23,9 @@ public class BookingService {
 	@Inject
 	BookingValidator validator;
 	
+	@Inject
+	ResponseCache responses;
+	
     /**
      * <p>Returns a List of all persisted {@link Booking} objects, sorted alphabetically by booking number.<p/>
      *
@@ -27,6 +35,25 @@ public class BookingService {
         return crud.findAll();
     }
     
+    /**
+     * <p>Opens a forward-only cursor over all persisted {@link Booking} objects, sorted by id.</p>
+     *
+     * <p>The Bookings read through the cursor stay in the persistence context until {@link #clear()} is called.</p>
+     *
+     * @param fetchSize Number of rows to fetch from the database at once
+     * @return Cursor over the Bookings, to be closed by the caller
+     */
+    public ScrollableResults scrollAll(int fetchSize) {
+        return crud.scrollAll(fetchSize);
+    }
+    
+    /**
+     * <p>Detaches all the loaded entities from the persistence context.</p>
+     */
+    public void clear() {
+        crud.clear();
+    }
+    
     /**
      * <p>Returns a single Booking object, specified by a Long id.</p>
      *
@@ -46,6 +73,18 @@ public class BookingService {
         return crud.findByCustomer(customer);
     }
     
+    /**
+     * <p>Returns a page of persisted {@link Booking} objects, sorted by id, which come after the given id.</p>
+     *
+     * @param customer The Customer whose Bookings to return, or null for the Bookings of all Customers
+     * @param id The id of the last Booking of the previous page, or null for the first page
+     * @param max The maximum number of Bookings to return
+     * @return List of Booking objects
+     */
+    public List<Booking> findPage(Customer customer, Long id, int max) {
+        return crud.findPage(customer, id, max);
+    }
+    
     /**
      * <p>Returns a single Booking object, specified by a flight and date.</p>
      *
@@ -73,10 +112,139 @@ public class BookingService {
     	//validate booking
     	validator.validate(booking);
     	
+    	booking.setStatus(Booking.Status.CONFIRMED);
+    	booking.setHoldExpires(null);
+    	
         // Write the booking to the database.
+        responses.invalidate(ResponseCache.BOOKINGS);
         return crud.create(booking);
     }
     
+    /**
+     * <p>Writes the provided Booking object to the application database as a PENDING hold on the flight.<p/>
+     *
+     * <p>The hold is validated like any other Booking and takes the seat straight away, but it has to be confirmed with
+     * {@link #confirmHold(Long)} before it expires, or it gets deleted by the {@link BookingHoldReaper}.<p/>
+     *
+     * @param booking The Booking object to be held
+     * @param expires When the hold expires
+     * @return The Booking object that has been successfully written to the application database
+     * @throws ConstraintViolationException, ValidationException, Exception
+     */
+    public Booking hold(Booking booking, Date expires) throws ConstraintViolationException, ValidationException, Exception {
+    	validator.validate(booking);
+    	
+    	booking.setStatus(Booking.Status.PENDING);
+    	booking.setHoldExpires(expires);
+    	
+    	responses.invalidate(ResponseCache.BOOKINGS);
+    	return crud.create(booking);
+    }
+    
+    /**
+     * <p>Confirms a hold made with {@link #hold(Booking, Date)}.</p>
+     *
+     * @param id The id of the held Booking
+     * @return The confirmed Booking, or null if the hold has expired or has been released
+     */
+    public Booking confirmHold(Long id) {
+    	if(crud.confirmHold(id) == 0) {
+    		return null;
+    	}
+    	responses.invalidate(ResponseCache.BOOKINGS);
+    	return crud.findById(id);
+    }
+    
+    /**
+     * <p>Deletes a hold made with {@link #hold(Booking, Date)}, if it hasn't been confirmed.</p>
+     *
+     * @param id The id of the held Booking
+     * @return true if the hold was deleted
+     */
+    public boolean releaseHold(Long id) {
+    	if(crud.releaseHold(id) == 0) {
+    		return false;
+    	}
+    	responses.invalidate(ResponseCache.BOOKINGS);
+    	return true;
+    }
+    
+    /**
+     * <p>Deletes all the holds which have expired, see {@link BookingHoldReaper}.</p>
+     *
+     * @param now The current time
+     * @return The number of holds deleted
+     */
+    public int expireHolds(Date now) {
+    	int expired = crud.expireHolds(now);
+    	if(expired > 0) {
+    		responses.invalidate(ResponseCache.BOOKINGS);
+    	}
+    	return expired;
+    }
+    
+    
+    /**
+     * <p>Returns the flight id and booking date of the Bookings of the given flights, between two dates.</p>
+     *
+     * @param flightIds The ids of the flights
+     * @param from The first booking date, inclusive
+     * @param to The last booking date, inclusive
+     * @return List of [flight id, booking date] pairs
+     */
+    public List<Object[]> findBookedDates(Collection<Long> flightIds, Date from, Date to) {
+    	return crud.findBookedDates(flightIds, from, to);
+    }
+    
+    
+    /**
+     * <p>Validates many Bookings at once, with a fixed number of queries rather than a few queries per Booking.</p>
+     *
+     * @param bookings The Bookings to be validated
+     * @return The reason why each invalid Booking failed validation, keyed by its index in the list
+     */
+    public Map<Integer, ValidationException> validateAll(List<Booking> bookings) {
+    	return validator.validateAll(bookings);
+    }
+    
+    /**
+     * <p>Validates and writes many Bookings at once, e.g. when importing the bookings of another system.</p>
+     *
+     * <p>The Bookings are validated with {@link #validateAll(List)}, and the valid ones are written as CONFIRMED
+     * Bookings in JDBC batches. The invalid ones are left out.</p>
+     *
+     * @param bookings The Bookings to be written
+     * @return The reason why each Booking which was left out failed validation, keyed by its index in the list
+     * @throws BookingExistsException if a conflicting Booking was made since the validation, nothing is written then
+     */
+    public Map<Integer, ValidationException> ingest(List<Booking> bookings) throws BookingExistsException {
+    	Map<Integer, ValidationException> errors = validator.validateAll(bookings);
+    	
+    	List<Booking> valid = new ArrayList<Booking>(bookings.size() - errors.size());
+    	for(int i = 0, size = bookings.size(); i < size; i++) {
+    		if(!errors.containsKey(i)) {
+    			Booking booking = bookings.get(i);
+    			booking.setStatus(Booking.Status.CONFIRMED);
+    			booking.setHoldExpires(null);
+    			valid.add(booking);
+    		}
+    	}
+    	
+    	responses.invalidate(ResponseCache.BOOKINGS);
+    	crud.createAll(valid);
+    	return errors;
+    }
+    
+    /**
+     * <p>Writes a Booking which has already been validated with {@link #validateAll(List)} to the database.</p>
+     *
+     * <p>The database unique constraint still protects against a conflicting Booking created in the meantime.</p>
+     */
+    public Booking createValidated(Booking booking) throws Exception {
+    	responses.invalidate(ResponseCache.BOOKINGS);
+    	return crud.create(booking);
+    }
+    
     
     /**
      * <p>Deletes the provided Booking object from the application database if found there</p>
@@ -86,6 +254,7 @@ public class BookingService {
      * @throws Exception
      */
     public Booking delete(Booking booking) throws Exception {
+        responses.invalidate(ResponseCache.BOOKINGS);
         return crud.delete(booking);
     }
 }
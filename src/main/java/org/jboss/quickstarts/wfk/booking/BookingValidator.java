@@ -1,7 +1,11 @@
 package org.jboss.quickstarts.wfk.booking;
 
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -16,6 +20,7 @@ import javax.validation.Validator;
 import org.jboss.quickstarts.wfk.customer.CustomerService;
 import org.jboss.quickstarts.wfk.flight.Flight;
 import org.jboss.quickstarts.wfk.flight.FlightService;
+import org.jboss.quickstarts.wfk.util.UniqueKeys;
 
 /**
  * <p>This class provides methods to check Customer objects against arbitrary requirements.</p>
@@ -36,6 +41,9 @@ public class BookingValidator{
     @Inject
     private FlightService flightService;
     
+    @Inject
+    private OccupancyIndex occupancy;
+    
     
     void validate(Booking booking) throws ConstraintViolationException, ValidationException {
         // Create a bean validator and check for issues.
@@ -58,6 +66,73 @@ public class BookingValidator{
         }
     }
     
+    /**
+     * <p>Validates a whole list of bookings in one pass.</p>
+     *
+     * <p>Performs the same checks as {@link #validate(Booking)}, but the customers, flights and existing bookings of all
+     * the bookings are looked up with one query each (existing bookings in the {@link OccupancyIndex} once it's ready). Bookings of the same flight on the same date within the list
+     * conflict with each other, so all but the first of them fail with a {@link BookingExistsException}.</p>
+     *
+     * @param bookings The bookings to be validated
+     * @return The reason why each invalid booking failed validation, keyed by its index in the list
+     */
+    Map<Integer, ValidationException> validateAll(List<Booking> bookings) {
+    	Map<Integer, ValidationException> errors = new LinkedHashMap<Integer, ValidationException>();
+    	
+    	Set<Long> customerIds = new HashSet<Long>();
+    	Set<Long> flightIds = new HashSet<Long>();
+    	Set<Date> dates = new HashSet<Date>();
+    	
+    	//bean validation first, as the rest relies on the customer, flight and date being set
+    	for(int i = 0, size = bookings.size(); i < size; i++) {
+    		Booking booking = bookings.get(i);
+    		Set<ConstraintViolation<Booking>> violations = validator.validate(booking);
+    		
+    		if (!violations.isEmpty()) {
+    			errors.put(i, new ConstraintViolationException(new HashSet<ConstraintViolation<?>>(violations)));
+    			continue;
+    		}
+    		
+    		customerIds.add(booking.getCustomer().getId());
+    		flightIds.add(booking.getFlight().getId());
+    		dates.add(booking.getBookingDate());
+    	}
+    	customerIds.remove(null);
+    	flightIds.remove(null);
+    	
+    	Set<Long> existingCustomers = customerService.findExistingIds(customerIds);
+    	Set<Long> existingFlights = flightService.findExistingIds(flightIds);
+    	
+    	//flight and date of every booking already made, plus the ones accepted so far from this list
+    	Set<String> taken = new HashSet<String>();
+    	if(!existingFlights.isEmpty() && !occupancy.isReady()) {
+    		for(Booking existing : crud.findByFlights(existingFlights, dates)) {
+    			taken.add(key(existing));
+    		}
+    	}
+    	
+    	for(int i = 0, size = bookings.size(); i < size; i++) {
+    		Booking booking = bookings.get(i);
+    		if(errors.containsKey(i)) {
+    			continue;
+    		}
+    		
+    		if (!existingCustomers.contains(booking.getCustomer().getId())) {
+    			errors.put(i, new CustomerInvalidException("Customer with given ID does not exist"));
+    		} else if (!existingFlights.contains(booking.getFlight().getId())) {
+    			errors.put(i, new FlightInvalidException("Flight with given ID does not exist"));
+    		} else if (!taken.add(key(booking)) || occupancy.isReady() && occupancy.isBooked(booking.getFlight().getId(), booking.getBookingDate())) {
+    			errors.put(i, new BookingExistsException("Booking already exists"));
+    		}
+    	}
+    	
+    	return errors;
+    }
+    
+    private static String key(Booking booking) {
+    	return booking.getFlight().getId() + "@" + new SimpleDateFormat("yyyy-MM-dd").format(booking.getBookingDate());
+    }
+    
     /** 
      * <p> checks if the customer already exists in the database, based on customer id </p>
      * */
@@ -76,12 +151,23 @@ public class BookingValidator{
     
     /** 
      * <p> checks if the booking already exists in the database, based on the flight information </p>
+     * 
+     * <p>The {@link OccupancyIndex} is checked instead of the database, once it's ready. Until then, the database is
+     * only checked if inserts aren't {@link UniqueKeys#OPTIMISTIC}.</p>
      * */
     boolean bookingAlreadyExists(Booking booking) {
     	if(booking == null) {
     		return false;
     	}
     	
+    	if(occupancy.isReady()) {
+    		return occupancy.isBooked(booking.getFlight().getId(), booking.getBookingDate());
+    	}
+    	
+    	if(UniqueKeys.OPTIMISTIC) {
+    		return false;
+    	}
+    	
     	Booking fromDb = null;
     	
     	Flight flight = booking.getFlight();
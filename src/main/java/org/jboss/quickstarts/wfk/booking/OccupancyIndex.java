@@ -0,0 +1,289 @@
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Local;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+
+/**
+ * <p>In-memory index of the days on which each flight is booked, so a conflicting {@link Booking} can be found without
+ * a query.</p>
+ *
+ * <p>Every flight has a bitset of the days (counted from the epoch) it's booked on. The index is built from the
+ * <code>booking</code> table when the application starts, and then kept up to date by the {@link BookingListener}: a
+ * Booking written or deleted in a transaction is only applied to the index once that transaction commits, so the index
+ * never shows bookings which were rolled back.</p>
+ *
+ * <p>Each flight also has a version, which goes up every time one of its Bookings is committed or deleted, so a view
+ * of its bookings (see {@link org.jboss.quickstarts.wfk.flight.FlightAvailability}) can tell whether it's still up to
+ * date.</p>
+ *
+ * <p>The unique constraint of the <code>booking</code> table stays the final guard. Two transactions booking the same
+ * flight on the same day at the same time can both pass the index, but only one of them can commit.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Singleton
+@Startup
+@LocalBean
+@Local(MetricSource.class)
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class OccupancyIndex implements MetricSource {
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	@Inject
+	private @Named("logger") Logger log;
+
+	@Inject
+	BookingRepository crud;
+
+	@Resource
+	TransactionSynchronizationRegistry registry;
+
+	private final ConcurrentMap<Long, Days> flights = new ConcurrentHashMap<Long, Days>();
+
+	//false until the index has been built, bookings are looked up in the database until then
+	private volatile boolean ready;
+
+	//versions start again from 0 when the application restarts, so they're only unique together with this
+	private final long epoch = System.currentTimeMillis();
+
+	private final AtomicLong checks = new AtomicLong();
+	private final AtomicLong conflicts = new AtomicLong();
+
+	@PostConstruct
+	@TransactionAttribute(TransactionAttributeType.REQUIRED)
+	void build() {
+		long start = System.nanoTime();
+
+		List<Object[]> occupied = crud.findOccupancy();
+		for(Object[] row : occupied) {
+			days((Long) row[0]).set(epochDay((Date) row[1]));
+		}
+		ready = true;
+
+		log.info("Built occupancy index of " + flights.size() + " flights from " + occupied.size() + " bookings in " +
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+	}
+
+	/**
+	 * @return false if the index hasn't been built, and can't be used
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * <p>Checks whether the flight is booked on the given date, by a committed Booking.</p>
+	 */
+	public boolean isBooked(Long flightId, Date date) {
+		checks.incrementAndGet();
+
+		Days days = flights.get(flightId);
+		boolean booked = days != null && days.get(epochDay(date));
+		if(booked) {
+			conflicts.incrementAndGet();
+		}
+		return booked;
+	}
+
+	/**
+	 * <p>Returns the version of the bookings of a flight, which changes whenever a Booking of the flight is committed or
+	 * deleted. It's only unique together with {@link #getEpoch()}.</p>
+	 */
+	public long getVersion(Long flightId) {
+		Days days = flights.get(flightId);
+		return days == null ? 0 : days.version();
+	}
+
+	/**
+	 * @return When this index was created, in milliseconds since the epoch
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * <p>Marks the flight of the Booking as booked on its date, once the current transaction commits.</p>
+	 */
+	public void booked(Booking booking) {
+		afterCommit(booking.getFlight().getId(), booking.getBookingDate(), true);
+	}
+
+	/**
+	 * <p>Marks the flight of the Booking as free on its date, once the current transaction commits.</p>
+	 */
+	public void cancelled(Booking booking) {
+		afterCommit(booking.getFlight().getId(), booking.getBookingDate(), false);
+	}
+
+	private void afterCommit(final Long flightId, Date date, final boolean booked) {
+		if(flightId == null || date == null) {
+			return;
+		}
+		final long day = epochDay(date);
+
+		if(registry.getTransactionKey() == null) {
+			apply(flightId, day, booked);
+			return;
+		}
+
+		registry.registerInterposedSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {}
+
+			@Override
+			public void afterCompletion(int status) {
+				if(status == Status.STATUS_COMMITTED) {
+					apply(flightId, day, booked);
+				}
+			}
+		});
+	}
+
+	private void apply(Long flightId, long day, boolean booked) {
+		if(booked) {
+			days(flightId).set(day);
+		} else {
+			Days days = flights.get(flightId);
+			if(days != null) {
+				days.clear(day);
+			}
+		}
+	}
+
+	private Days days(Long flightId) {
+		Days days = flights.get(flightId);
+		if(days == null) {
+			Days created = new Days();
+			days = flights.putIfAbsent(flightId, created);
+			if(days == null) {
+				days = created;
+			}
+		}
+		return days;
+	}
+
+	/**
+	 * <p>Number of the day of a booking date, counted from 1970-01-01 in the time zone the date was read in.</p>
+	 */
+	public static long epochDay(Date date) {
+		long millis = date.getTime();
+		long local = millis + TimeZone.getDefault().getOffset(millis);
+		long day = local / DAY;
+		return local % DAY < 0 ? day - 1 : day;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "occupancy";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+		long booked = 0;
+		long bytes = 0;
+		for(Days days : flights.values()) {
+			booked += days.count();
+			bytes += days.bytes();
+		}
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("ready", ready);
+		metrics.put("flights", flights.size());
+		metrics.put("bookedDays", booked);
+		metrics.put("bitsetBytes", bytes);
+		metrics.put("checks", checks.get());
+		metrics.put("conflicts", conflicts.get());
+		return metrics;
+	}
+
+	/**
+	 * <p>Bitset of the days a single flight is booked on.</p>
+	 *
+	 * <p>It only covers the range of days the flight has ever been booked on, starting at <code>base</code> (a multiple
+	 * of 64), and grows in either direction as needed.</p>
+	 */
+	static final class Days {
+		private long base;
+		private long[] words = new long[0];
+		private long version;
+
+		synchronized boolean get(long day) {
+			long word = (day >> 6) - (base >> 6);
+			return word >= 0 && word < words.length && (words[(int) word] & (1L << day)) != 0;
+		}
+
+		synchronized void set(long day) {
+			if(words.length == 0) {
+				base = (day >> 6) << 6;
+				words = new long[1];
+			}
+
+			long word = (day >> 6) - (base >> 6);
+			if(word < 0) {
+				long[] grown = new long[words.length - (int) word];
+				System.arraycopy(words, 0, grown, (int) -word, words.length);
+				words = grown;
+				base = (day >> 6) << 6;
+				word = 0;
+			} else if(word >= words.length) {
+				long[] grown = new long[Math.max((int) word + 1, words.length * 2)];
+				System.arraycopy(words, 0, grown, 0, words.length);
+				words = grown;
+			}
+
+			words[(int) word] |= 1L << day;
+			version++;
+		}
+
+		synchronized void clear(long day) {
+			long word = (day >> 6) - (base >> 6);
+			if(word >= 0 && word < words.length) {
+				words[(int) word] &= ~(1L << day);
+			}
+			version++;
+		}
+
+		synchronized long version() {
+			return version;
+		}
+
+		synchronized long count() {
+			long count = 0;
+			for(long word : words) {
+				count += Long.bitCount(word);
+			}
+			return count;
+		}
+
+		synchronized long bytes() {
+			return words.length * 8L;
+		}
+	}
+}
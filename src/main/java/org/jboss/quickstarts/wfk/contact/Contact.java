@@ -16,8 +16,12 @@
  */
 package org.jboss.quickstarts.wfk.contact;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
 import org.hibernate.validator.constraints.Email;
 import org.hibernate.validator.constraints.NotEmpty;
+import org.jboss.quickstarts.wfk.util.PooledSequenceGenerator;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
@@ -43,20 +47,28 @@ import java.util.Date;
  */
 @Entity
 @NamedQueries({
-        @NamedQuery(name = Contact.FIND_ALL, query = "SELECT c FROM Contact c ORDER BY c.lastName ASC, c.firstName ASC"),
+        @NamedQuery(name = Contact.FIND_ALL, query = "SELECT c FROM Contact c ORDER BY c.lastName ASC, c.firstName ASC, c.id ASC"),
+        @NamedQuery(name = Contact.FIND_PAGE, query = "SELECT c FROM Contact c WHERE c.lastName >= :lastName"
+                + " AND (c.lastName > :lastName OR c.firstName > :firstName OR (c.firstName = :firstName AND c.id > :id))"
+                + " ORDER BY c.lastName ASC, c.firstName ASC, c.id ASC"),
         @NamedQuery(name = Contact.FIND_BY_EMAIL, query = "SELECT c FROM Contact c WHERE c.email = :email")
 })
 @XmlRootElement
 @Table(name = "contact", uniqueConstraints = @UniqueConstraint(columnNames = "email"))
+//the contacts are listed (and paged through) by name
+@org.hibernate.annotations.Table(appliesTo = "contact", indexes = @Index(name = "contact_name_id_idx", columnNames = {"last_name", "first_name", "id"}))
 public class Contact implements Serializable {
     /** Default value included to remove warning. Remove or modify at will. **/
     private static final long serialVersionUID = 1L;
 
     public static final String FIND_ALL = "Contact.findAll";
+    public static final String FIND_PAGE = "Contact.findPage";
     public static final String FIND_BY_EMAIL = "Contact.findByEmail";
 
     @Id
-    @GeneratedValue(strategy = GenerationType.TABLE)
+    @GeneratedValue(generator = "contact_seq")
+    @GenericGenerator(name = "contact_seq", strategy = PooledSequenceGenerator.NAME,
+            parameters = @Parameter(name = "sequence_name", value = "contact_seq"))
     private Long id;
 
     @NotNull
@@ -57,6 +57,24 @@ public class ContactRepository {
         return query.getResultList();
     }
 
+    /**
+     * <p>Returns a page of persisted {@link Contact} objects, sorted by last name, first name and id, which come after
+     * the given Contact.</p>
+     *
+     * @param lastName The last name of the last Contact of the previous page, or null for the first page
+     * @param firstName The first name of the last Contact of the previous page
+     * @param id The id of the last Contact of the previous page
+     * @param max The maximum number of Contacts to return
+     * @return List of Contact objects
+     */
+    List<Contact> findPage(String lastName, String firstName, Long id, int max) {
+        TypedQuery<Contact> query = lastName == null
+                ? em.createNamedQuery(Contact.FIND_ALL, Contact.class)
+                : em.createNamedQuery(Contact.FIND_PAGE, Contact.class)
+                        .setParameter("lastName", lastName).setParameter("firstName", firstName).setParameter("id", id);
+        return query.setMaxResults(max).getResultList();
+    }
+
     /**
      * <p>Returns a single Contact object, specified by a Long id.<p/>
      *
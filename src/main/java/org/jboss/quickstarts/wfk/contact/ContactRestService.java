@@ -18,9 +18,12 @@ package org.jboss.quickstarts.wfk.contact;
 
 import io.swagger.annotations.*;
 import org.jboss.quickstarts.wfk.area.InvalidAreaCodeException;
+import org.jboss.quickstarts.wfk.util.Keyset;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
 import org.jboss.resteasy.annotations.cache.Cache;
 
+import com.google.common.base.Function;
+
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -30,7 +33,9 @@ import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -69,20 +74,41 @@ public class ContactRestService {
     /**
      * <p>Return all the Contacts.  They are sorted alphabetically by name.</p>
      *
-     * <p>The url may optionally include query parameters specifying a Contact's name</p>
+     * <p>The url may optionally include query parameters specifying a Contact's name. Without them, the Contacts are
+     * returned in pages of at most <code>limit</code> Contacts, with a <code>Link</code> header to the next page if there
+     * are more, see {@link Keyset}.</p>
      *
-     * <p>Examples: <pre>GET api/contacts?firstname=John</pre>, <pre>GET api/contacts?firstname=John&lastname=Smith</pre></p>
+     * <p>Examples: <pre>GET api/contacts?firstname=John</pre>, <pre>GET api/contacts?firstname=John&lastname=Smith</pre>,
+     * <pre>GET api/contacts?limit=50</pre></p>
      *
      * @return A Response containing a list of Contacts
      */
     @GET
-    @ApiOperation(value = "Fetch all Contacts", notes = "Returns a JSON array of all stored Contact objects.")
-    public Response retrieveAllContacts(@QueryParam("firstname") String firstname, @QueryParam("lastname") String lastname) {
+    @ApiOperation(value = "Fetch all Contacts", notes = "Returns a JSON array of stored Contact objects. Unless searching by name, "
+            + "the link to the next page, if any, is in the Link header.")
+    public Response retrieveAllContacts(@QueryParam("firstname") String firstname, @QueryParam("lastname") String lastname,
+            @ApiParam(value = "Maximum number of contacts to return", allowableValues = "range[1, infinity]", required = false)
+            @QueryParam("limit") Integer limit,
+            @ApiParam(value = "Cursor from the Link header of the previous page", required = false)
+            @QueryParam("after") String after,
+            @ApiParam(hidden = true) @Context UriInfo uriInfo) {
         //Create an empty collection to contain the intersection of Contacts to be returned
         List<Contact> contacts;
 
         if(firstname == null && lastname == null) {
-            contacts = service.findAllOrderedByName();
+            int max = Keyset.limit(limit);
+            Object[] key = Keyset.decode(after, String.class, String.class, Long.class);
+
+            contacts = key == null
+                    ? service.findPage(null, null, null, max + 1)
+                    : service.findPage((String) key[0], (String) key[1], (Long) key[2], max + 1);
+
+            return Keyset.page(contacts, max, uriInfo, new Function<Contact, Object[]>() {
+                @Override
+                public Object[] apply(Contact contact) {
+                    return new Object[] {contact.getLastName(), contact.getFirstName(), contact.getId()};
+                }
+            });
         } else if(lastname == null) {
             try {
                 contacts = service.findAllByFirstName(firstname);
@@ -234,6 +260,9 @@ public class ContactRestService {
             Map<String, String> responseObj = new HashMap<>();
             responseObj.put("area_code", "The telephone area code provided is not recognised, please provide another");
             throw new RestServiceException("Bad Request", responseObj, Response.Status.BAD_REQUEST, e);
+        } catch (RestServiceException e) {
+            // e.g. the area codes are not available, already has the response status set
+            throw e;
         } catch (Exception e) {
             // Handle generic exceptions
             throw new RestServiceException(e);
@@ -314,6 +343,9 @@ public class ContactRestService {
             Map<String, String> responseObj = new HashMap<>();
             responseObj.put("area_code", "The telephone area code provided is not recognised, please provide another");
             throw new RestServiceException("Bad Request", responseObj, Response.Status.BAD_REQUEST, e);
+        } catch (RestServiceException e) {
+            // e.g. the area codes are not available, already has the response status set
+            throw e;
         } catch (Exception e) {
             // Handle generic exceptions
             throw new RestServiceException(e);
@@ -17,18 +17,14 @@
 package org.jboss.quickstarts.wfk.contact;
 
 import org.jboss.quickstarts.wfk.area.Area;
-import org.jboss.quickstarts.wfk.area.AreaService;
+import org.jboss.quickstarts.wfk.area.AreaDirectory;
 import org.jboss.quickstarts.wfk.area.InvalidAreaCodeException;
-import org.jboss.resteasy.client.ClientResponse;
-import org.jboss.resteasy.client.ClientResponseFailure;
-import org.jboss.resteasy.client.ProxyFactory;
 
 import javax.enterprise.context.Dependent;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
-import javax.ws.rs.core.Response;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -59,6 +55,9 @@ public class ContactService {
     @Inject
     private ContactRepository crud;
 
+    @Inject
+    private AreaDirectory areas;
+
     /**
      * <p>Returns a List of all persisted {@link Contact} objects, sorted alphabetically by last name.<p/>
      *
@@ -68,6 +67,20 @@ public class ContactService {
         return crud.findAllOrderedByName();
     }
 
+    /**
+     * <p>Returns a page of persisted {@link Contact} objects, sorted by last name, first name and id, which come after
+     * the given Contact.<p/>
+     *
+     * @param lastName The last name of the last Contact of the previous page, or null for the first page
+     * @param firstName The first name of the last Contact of the previous page
+     * @param id The id of the last Contact of the previous page
+     * @param max The maximum number of Contacts to return
+     * @return List of Contact objects
+     */
+    List<Contact> findPage(String lastName, String firstName, Long id, int max) {
+        return crud.findPage(lastName, firstName, id, max);
+    }
+
     /**
      * <p>Returns a single Contact object, specified by a Long id.<p/>
      *
@@ -125,21 +138,12 @@ public class ContactService {
         // Check to make sure the data fits with the parameters in the Contact model and passes validation.
         validator.validateContact(contact);
 
-        //Create client service instance to make REST requests to upstream service
-        AreaService service = ProxyFactory.create(AreaService.class, "http://states-100937864.rhcloud.com");
-
-        ClientResponse<Area> response = service.getAreaById(Integer.parseInt(contact.getPhoneNumber().substring(1, 4)));
-
-        try {
-            Area area = response.getEntity();
-            contact.setState(area.getState());
-        } catch (ClientResponseFailure e) {
-            if(e.getResponse().getResponseStatus() == Response.Status.NOT_FOUND) {
-                throw new InvalidAreaCodeException("The area code provided does not exist", e);
-            } else {
-                throw e;
-            }
+        //Look the area code up in the local copy, rather than asking the upstream service every time
+        Area area = areas.findByPhoneNumber(contact.getPhoneNumber());
+        if (area == null) {
+            throw new InvalidAreaCodeException("The area code provided does not exist");
         }
+        contact.setState(area.getState());
 
         // Write the contact to the database.
         return crud.create(contact);
@@ -160,21 +164,12 @@ public class ContactService {
         // Check to make sure the data fits with the parameters in the Contact model and passes validation.
         validator.validateContact(contact);
 
-        //Create client service instance to make REST requests to upstream service
-        AreaService service = ProxyFactory.create(AreaService.class, "http://states-100937864.rhcloud.com");
-
-        ClientResponse<Area> response = service.getAreaById(Integer.parseInt(contact.getPhoneNumber().substring(1, 4)));
-
-        try {
-            Area area = response.getEntity();
-            contact.setState(area.getState());
-        } catch (ClientResponseFailure e) {
-            if(e.getResponse().getResponseStatus() == Response.Status.NOT_FOUND) {
-                throw new InvalidAreaCodeException("The area code provided does not exist", e);
-            } else {
-                throw e;
-            }
+        //Look the area code up in the local copy, rather than asking the upstream service every time
+        Area area = areas.findByPhoneNumber(contact.getPhoneNumber());
+        if (area == null) {
+            throw new InvalidAreaCodeException("The area code provided does not exist");
         }
+        contact.setState(area.getState());
 
         // Either update the contact or add it if it can't be found.
         return crud.update(contact);
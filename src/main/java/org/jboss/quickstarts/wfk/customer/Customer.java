@@ -4,14 +4,16 @@ import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.QueryHint;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
 import javax.validation.constraints.NotNull;
@@ -20,10 +22,17 @@ import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
 import org.hibernate.validator.constraints.Email;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.jboss.quickstarts.wfk.booking.Booking;
 import org.jboss.quickstarts.wfk.travelagent.TravelAgentBooking;
+import org.jboss.quickstarts.wfk.util.EntityVersionListener;
+import org.jboss.quickstarts.wfk.util.PooledSequenceGenerator;
 
 /**
  * <p>This is a the Domain object. The Customer class represents how customer resources are represented in the application
@@ -39,20 +48,37 @@ import org.jboss.quickstarts.wfk.travelagent.TravelAgentBooking;
  * form of query in JPA though is it more error prone due to the syntax being in a String.  This makes it harder to debug.
  */
 @Entity
+@EntityListeners(EntityVersionListener.class)
 @NamedQueries({
-        @NamedQuery(name = Customer.FIND_ALL, query = "SELECT c FROM Customer c ORDER BY c.name ASC"),
-        @NamedQuery(name = Customer.FIND_BY_EMAIL, query = "SELECT c FROM Customer c WHERE c.email = :email")
+        @NamedQuery(name = Customer.FIND_ALL, query = "SELECT c FROM Customer c ORDER BY c.name ASC, c.id ASC"),
+        @NamedQuery(name = Customer.FIND_PAGE, query = "SELECT c FROM Customer c WHERE c.name >= :name AND (c.name > :name OR c.id > :id) ORDER BY c.name ASC, c.id ASC"),
+        @NamedQuery(name = Customer.FIND_BY_EMAIL, query = "SELECT c FROM Customer c WHERE c.email = :email", hints = {
+                @QueryHint(name = "org.hibernate.cacheable", value = "true"),
+                @QueryHint(name = "org.hibernate.cacheRegion", value = "customer.by-email")
+        }),
+        @NamedQuery(name = Customer.FIND_IDS, query = "SELECT c.id FROM Customer c WHERE c.id IN :ids"),
+        @NamedQuery(name = Customer.FIND_EMAILS, query = "SELECT c.email FROM Customer c")
 })
 @XmlRootElement
 @Table(name = "customer", uniqueConstraints = @UniqueConstraint(columnNames = "email"))
+//the customers are listed (and paged through) by name
+@org.hibernate.annotations.Table(appliesTo = "customer", indexes = @Index(name = "customer_name_id_idx", columnNames = {"name", "id"}))
+//customers are looked up on every booking, see the cache settings in persistence.xml
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.TRANSACTIONAL, region = "customer")
 public class Customer implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
     public static final String FIND_ALL = "Customer.findAll";
+    public static final String FIND_PAGE = "Customer.findPage";
     public static final String FIND_BY_EMAIL = "Customer.findByEmail";
+    public static final String FIND_IDS = "Customer.findIds";
+    public static final String FIND_EMAILS = "Customer.findEmails";
 	
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "customer_seq")
+    @GenericGenerator(name = "customer_seq", strategy = PooledSequenceGenerator.NAME,
+            parameters = @Parameter(name = "sequence_name", value = "customer_seq"))
 	private Long id;
 	
     @NotNull
@@ -0,0 +1,258 @@
+package org.jboss.quickstarts.wfk.customer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Local;
+import javax.ejb.LocalBean;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+import org.jboss.quickstarts.wfk.util.Settings;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * <p>In-memory Bloom filter of the emails of all the {@link Customer}s, so an email which is certainly not used can be
+ * told apart without a query.</p>
+ *
+ * <p>The filter answers either "certainly absent", in which case {@link CustomerValidator} skips
+ * <code>Customer.FIND_BY_EMAIL</code>, or "possibly present", in which case the database is asked as before. Emails are
+ * compared trimmed and lower cased, which can only turn an absent email into a possibly present one.</p>
+ *
+ * <p>With <code>insert.optimistic</code> on (the default, see {@link org.jboss.quickstarts.wfk.util.UniqueKeys}), a new
+ * Customer isn't looked up at all, so the filter saves the query on two paths. The first is an update which changes
+ * the email to one nobody has, e.g. <code>PUT /customers/{id}</code>. The second is every create when
+ * <code>insert.optimistic</code> is off. The <code>queriesSaved</code> metric counts them.</p>
+ *
+ * <p>The filter is built from the <code>customer</code> table when the application starts, sized for twice as many
+ * emails as there are (at least <code>email-filter.min-capacity</code>) with a false positive rate of
+ * <code>email-filter.fpp</code>, see {@link Settings}. An email is added as soon as a Customer is about to be written
+ * with it, before the transaction commits, so a rolled back Customer only leaves a false positive behind. A Bloom
+ * filter can't forget an email, so deleted and changed emails are counted instead, and the filter is rebuilt in the
+ * background once they (or the emails added since) make it noticeably less precise.</p>
+ *
+ * <p>A Bloom filter isn't safe to read while an email is being added to it, so lookups take the read lock and additions
+ * the write lock. A rebuilt filter is swapped in under the write lock too.</p>
+ *
+ * <p>The unique constraint on the email stays the final guard. A Customer written while the filter is being rebuilt
+ * could be missed by it, and is then only caught by the constraint.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Singleton
+@Startup
+@LocalBean
+@Local(MetricSource.class)
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class CustomerEmailFilter implements MetricSource {
+	private static final double FPP = Settings.getDouble("email-filter.fpp", 0.01);
+	private static final int MIN_CAPACITY = Settings.getInt("email-filter.min-capacity", 10000);
+
+	@Inject
+	private @Named("logger") Logger log;
+
+	@Inject
+	CustomerRepository crud;
+
+	//the filter and the fields below are guarded by the lock
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private BloomFilter<CharSequence> filter;
+	private int capacity;
+	private int built;
+	private long added;
+	//emails added while the filter is rebuilt, which the new filter might not have read from the database
+	private List<String> recent;
+
+	private final AtomicLong stale = new AtomicLong();
+	private final AtomicLong checks = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+
+	@PostConstruct
+	@TransactionAttribute(TransactionAttributeType.REQUIRED)
+	void build() {
+		rebuild();
+	}
+
+	@Schedule(hour = "*", minute = "*/10", persistent = false)
+	@TransactionAttribute(TransactionAttributeType.REQUIRED)
+	void scheduled() {
+		boolean outdated;
+		lock.readLock().lock();
+		try {
+			outdated = built + added > capacity || stale.get() > Math.max(built, MIN_CAPACITY) / 4;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(outdated) {
+			rebuild();
+		}
+	}
+
+	private void rebuild() {
+		long start = System.nanoTime();
+		//emails removed from now on may still be in the database read below, so they stay counted as stale
+		long removed;
+		lock.writeLock().lock();
+		try {
+			recent = new ArrayList<String>();
+			removed = stale.get();
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		List<String> emails = crud.findAllEmails();
+		int size = Math.max(emails.size() * 2, MIN_CAPACITY);
+		BloomFilter<CharSequence> fresh = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), size, FPP);
+		for(String email : emails) {
+			fresh.put(normalise(email));
+		}
+
+		lock.writeLock().lock();
+		try {
+			for(String email : recent) {
+				fresh.put(email);
+			}
+			recent = null;
+			filter = fresh;
+			capacity = size;
+			built = emails.size();
+			added = 0;
+			stale.addAndGet(-removed);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		rebuilds.incrementAndGet();
+
+		log.info("Built customer email filter of " + emails.size() + " emails in " +
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+	}
+
+	/**
+	 * <p>Checks whether a Customer might have the given email.</p>
+	 *
+	 * @return false if no Customer has the email, true if one may have it and the database has to be asked
+	 */
+	public boolean mightContain(String email) {
+		if(email == null) {
+			return true;
+		}
+
+		boolean absent;
+		lock.readLock().lock();
+		try {
+			if(filter == null) {
+				return true;
+			}
+			absent = !filter.mightContain(normalise(email));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		checks.incrementAndGet();
+		if(absent) {
+			skipped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * <p>Records what the database answered after {@link #mightContain(String)} returned true, to measure the false
+	 * positive rate.</p>
+	 *
+	 * @param found Whether a Customer with the email was found
+	 */
+	public void looked(boolean found) {
+		if(!found) {
+			falsePositives.incrementAndGet();
+		}
+	}
+
+	/**
+	 * <p>Adds the email of a Customer about to be written.</p>
+	 */
+	public void add(String email) {
+		if(email == null) {
+			return;
+		}
+
+		String normalised = normalise(email);
+		lock.writeLock().lock();
+		try {
+			if(filter != null) {
+				filter.put(normalised);
+			}
+			if(recent != null) {
+				recent.add(normalised);
+			}
+			added++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>Records that an email is no longer used, because its Customer was deleted or changed email.</p>
+	 */
+	public void remove() {
+		stale.incrementAndGet();
+	}
+
+	static String normalise(String email) {
+		return email.trim().toLowerCase(Locale.ROOT);
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "emails";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+		long absent = skipped.get();
+		long wrong = falsePositives.get();
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		lock.readLock().lock();
+		try {
+			metrics.put("ready", filter != null);
+			metrics.put("capacity", capacity);
+			metrics.put("emails", built + added);
+			metrics.put("expectedFalsePositiveRate", filter == null ? 0.0 : filter.expectedFpp());
+		} finally {
+			lock.readLock().unlock();
+		}
+		metrics.put("staleEmails", stale.get());
+		metrics.put("rebuilds", rebuilds.get());
+		metrics.put("checks", checks.get());
+		//queries skipped because the email was certainly absent
+		metrics.put("queriesSaved", absent);
+		metrics.put("falsePositives", wrong);
+		//of the emails which turned out to be unused, how many the filter still sent to the database
+		metrics.put("falsePositiveRate", absent + wrong == 0 ? 0.0 : (double) wrong / (absent + wrong));
+		return metrics;
+	}
+}
@@ -1,14 +1,20 @@
 package org.jboss.quickstarts.wfk.customer;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
 
+import org.jboss.quickstarts.wfk.util.UniqueKeys;
+
 
 public class CustomerRepository {
     @Inject
@@ -24,6 +30,22 @@ public class CustomerRepository {
         return query.getResultList();
     }
     
+    /**
+     * <p>Returns a page of persisted {@link Customer} objects, sorted by name and id, which come after the given
+     * Customer.</p>
+     *
+     * @param name The name of the last Customer of the previous page, or null for the first page
+     * @param id The id of the last Customer of the previous page
+     * @param max The maximum number of Customers to return
+     * @return List of Customer objects
+     */
+    List<Customer> findPage(String name, Long id, int max) {
+        TypedQuery<Customer> query = name == null
+                ? em.createNamedQuery(Customer.FIND_ALL, Customer.class)
+                : em.createNamedQuery(Customer.FIND_PAGE, Customer.class).setParameter("name", name).setParameter("id", id);
+        return query.setMaxResults(max).getResultList();
+    }
+    
     
     /**
      * <p>Returns a single Customer object, specified by a String email, or null if not found</p>
@@ -54,19 +76,54 @@ public class CustomerRepository {
     	return em.find(Customer.class, id);
     }
     
+    /**
+     * <p>Returns which of the given ids belong to a persisted Customer, using a single query.</p>
+     *
+     * @param ids The ids to look for
+     * @return The ids which were found
+     */
+    Set<Long> findExistingIds(Collection<Long> ids) {
+    	if(ids.isEmpty()) {
+    		return new HashSet<Long>();
+    	}
+    	
+        TypedQuery<Long> query = em.createNamedQuery(Customer.FIND_IDS, Long.class).setParameter("ids", ids);
+        return new HashSet<Long>(query.getResultList());
+    }
+    
+    /**
+     * <p>Returns the emails of all persisted Customers, in no particular order.</p>
+     *
+     * @return List of emails
+     */
+    List<String> findAllEmails() {
+        return em.createNamedQuery(Customer.FIND_EMAILS, String.class).getResultList();
+    }
+    
     
     /**
      * <p>Writes the provided Customer object to the application database.<p/>
      *
      * <p>Validates the data in the provided Customer object using a {@link CustomerValidator} object.<p/>
      *
+     * <p>The email may already be used by another Customer, see {@link UniqueKeys}.<p/>
+     *
      * @param customer The Customer object to be written to the database using a {@link CustomerRepository} object
      * @return The Customer object that has been successfully written to the application database
+     * @throws CustomerExistsException if the email is already used
      * @throws EntityExistsException
      */
-    Customer create(Customer customer) throws EntityExistsException {
-        // Write the customer to the database.
-        em.persist(customer);
+    Customer create(Customer customer) throws EntityExistsException, CustomerExistsException {
+        try {
+            // Write the customer to the database, straight away rather than at commit, so a duplicate shows up here.
+            em.persist(customer);
+            em.flush();
+        } catch (PersistenceException e) {
+            if (UniqueKeys.isViolation(e)) {
+                throw new CustomerExistsException("Customer email is not unique", e);
+            }
+            throw e;
+        }
 
         return customer;
     }
@@ -77,9 +134,18 @@ public class CustomerRepository {
      * @param customer The Customer object to be updated in the database
      * @return The Customer object that has been successfully updated in the database; or null
      */
-    public Customer update(Customer customer) {
-    	// Either update the customer or add it if it can't be found.
-        em.merge(customer);
+    public Customer update(Customer customer) throws CustomerExistsException {
+        try {
+            // Either update the customer or add it if it can't be found.
+            em.merge(customer);
+            em.flush();
+        } catch (PersistenceException e) {
+            //another Customer took the new email since it was validated
+            if (UniqueKeys.isViolation(e)) {
+                throw new CustomerExistsException("Customer email is not unique", e);
+            }
+            throw e;
+        }
         
         return customer;
     }
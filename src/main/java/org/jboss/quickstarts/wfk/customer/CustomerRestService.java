@@ -18,10 +18,19 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
+import org.jboss.quickstarts.wfk.util.EntityVersions;
+import org.jboss.quickstarts.wfk.util.Keyset;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.Validators;
+
+import com.google.common.base.Function;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -42,9 +51,54 @@ public class CustomerRestService {
     @Inject
     private @Named("logger") Logger log;
     
+    @Inject
+    EntityVersions versions;
+    
+    /**
+     * <p>The sort key of the pages of Customers, see {@link Keyset}.</p>
+     */
+    public static final Function<Customer, Object[]> PAGE_KEY = new Function<Customer, Object[]>() {
+		@Override
+		public Object[] apply(Customer customer) {
+			return new Object[] {customer.getName(), customer.getId()};
+		}
+	};
 	
+    /**
+     * <p>Return all the Customers, sorted by name, in pages of at most <code>limit</code> Customers.</p>
+     *
+     * <p>If there are more Customers, the response has a <code>Link</code> header to the next page, see {@link Keyset}.</p>
+     *
+     * <p>Examples: <pre>GET api/customers?limit=50</pre>, <pre>GET api/customers?limit=50&after=WyJKb2huIiwxMl0</pre></p>
+     *
+     * @return A Response containing a list of Customers
+     */
     @GET
-    @ApiOperation(value = "Fetch all customers", notes = "Returns a JSON array of all stored Customer objects.")
+    @ApiOperation(value = "Fetch all customers", notes = "Returns a JSON array of stored Customer objects, sorted by name. "
+    		+ "The link to the next page, if any, is in the Link header.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Customers retrieved successfully"),
+            @ApiResponse(code = 400, message = "Invalid limit or cursor supplied")
+    })
+	public Response getAllCustomers(
+			@ApiParam(value = "Maximum number of customers to return", allowableValues = "range[1, infinity]", required = false)
+			@QueryParam("limit") Integer limit,
+			@ApiParam(value = "Cursor from the Link header of the previous page", required = false)
+			@QueryParam("after") String after,
+			@ApiParam(hidden = true) @Context UriInfo uriInfo) {
+		int max = Keyset.limit(limit);
+		Object[] key = Keyset.decode(after, String.class, Long.class);
+		
+		List<Customer> customers = key == null
+				? service.findPage(null, null, max + 1)
+				: service.findPage((String) key[0], (Long) key[1], max + 1);
+		
+		return Keyset.page(customers, max, uriInfo, PAGE_KEY);
+	}
+    
+    /**
+     * <p>Return all the Customers, sorted by name, without paging. Only for use within the application.</p>
+     */
 	public Response getAllCustomers() {
 		List<Customer> customers = service.findAllOrderedByName();
 		return Response.ok(customers).build();
@@ -55,10 +109,18 @@ public class CustomerRestService {
     @ApiOperation(value = "Fetch information about customer with id", notes = "Returns a Customer object")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Customer found"),
+            @ApiResponse(code = 304, message = "Customer hasn't changed since the ETag in If-None-Match"),
             @ApiResponse(code = 400, message = "Invalid Customer id supplied"),
             @ApiResponse(code = 404, message = "Customer with id not found")
     })
-	public Response getCustomer(@PathParam("id") Long id) {
+	public Response getCustomer(@PathParam("id") Long id, @ApiParam(hidden = true) @Context Request request) {
+    	
+    	//the version covers all the Customers, so a client can only hold a current ETag of a Customer which exists
+    	Validators validators = versions.validators(Customer.class);
+    	Response notModified = validators.notModified(request);
+    	if(notModified != null) {
+    		return notModified;
+    	}
     	
     	Customer customer = null;
     	
@@ -66,7 +128,14 @@ public class CustomerRestService {
     		throw new RestServiceException("No Customer with the id " + id + " was found!", Response.Status.NOT_FOUND);
     	}
     	
-		return Response.ok(customer).build();
+		return validators.apply(Response.ok(customer)).build();
+	}
+    
+    /**
+     * <p>Return the Customer with the given id, without validators. Only for use within the application.</p>
+     */
+	public Response getCustomer(Long id) {
+		return getCustomer(id, null);
 	}
     
     
@@ -1,10 +1,14 @@
 package org.jboss.quickstarts.wfk.customer;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.validation.ConstraintViolationException;
 
+import org.jboss.quickstarts.wfk.util.ResponseCache;
+
 public class CustomerService {
 	
 	@Inject
@@ -13,6 +17,12 @@ public class CustomerService {
 	@Inject
 	CustomerRepository crud;
 	
+	@Inject
+	CustomerEmailFilter emails;
+	
+	@Inject
+	ResponseCache responses;
+	
     /**
      * <p>Returns a List of all persisted {@link Customer} objects, sorted alphabetically by last name.<p/>
      *
@@ -22,6 +32,19 @@ public class CustomerService {
         return crud.findAllOrderedByName();
     }
     
+    /**
+     * <p>Returns a page of persisted {@link Customer} objects, sorted by name and id, which come after the given
+     * Customer.<p/>
+     *
+     * @param name The name of the last Customer of the previous page, or null for the first page
+     * @param id The id of the last Customer of the previous page
+     * @param max The maximum number of Customers to return
+     * @return List of Customer objects
+     */
+    public List<Customer> findPage(String name, Long id, int max) {
+        return crud.findPage(name, id, max);
+    }
+    
     /**
      * <p>Returns single Customer object which matches the id.<p/>
      *
@@ -32,6 +55,16 @@ public class CustomerService {
         return crud.findById(id);
     }
     
+    /**
+     * <p>Returns which of the given ids belong to a persisted Customer.<p/>
+     *
+     * @param ids The ids to look for
+     * @return The ids which were found
+     */
+    public Set<Long> findExistingIds(Collection<Long> ids) {
+        return crud.findExistingIds(ids);
+    }
+    
     
     /**
      * <p>Writes the provided Customer object to the application database.<p/>
@@ -45,6 +78,8 @@ public class CustomerService {
     public Customer create(Customer customer) throws ConstraintViolationException, CustomerExistsException {
         // Check to make sure the data fits with the parameters in the Customer model and passes validation.
         validator.validate(customer);
+        emails.add(customer.getEmail());
+        responses.invalidate(ResponseCache.CUSTOMERS);
 
         // Write the contact to the database.
         return crud.create(customer);
@@ -61,6 +96,15 @@ public class CustomerService {
         // Check to make sure the data fits with the parameters in the Customer model and passes validation.
         validator.validateExisting(customer);
         
+        Customer current = customer.getId() == null ? null : crud.findById(customer.getId());
+        if(current == null || !current.getEmail().equals(customer.getEmail())) {
+        	if(current != null) {
+        		emails.remove();
+        	}
+        	emails.add(customer.getEmail());
+        }
+        responses.invalidate(ResponseCache.CUSTOMERS);
+        
         return crud.update(customer);
     }
     
@@ -71,6 +115,11 @@ public class CustomerService {
      * @return The Customer object that has been successfully removed from the application database; or null
      */
     public Customer delete(Customer customer) {
-        return crud.delete(customer);
+        Customer deleted = crud.delete(customer);
+        if(deleted != null) {
+        	emails.remove();
+        	responses.invalidate(ResponseCache.CUSTOMERS);
+        }
+        return deleted;
     }
 }
@@ -11,6 +11,8 @@ import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.Validator;
 
+import org.jboss.quickstarts.wfk.util.UniqueKeys;
+
 /**
  * <p>This class provides methods to check Customer objects against arbitrary requirements.</p>
  */
@@ -24,6 +26,9 @@ public class CustomerValidator{
     @Inject
     private CustomerRepository crud;
     
+    @Inject
+    private CustomerEmailFilter emails;
+    
     private void commonValidate(Customer customer) throws ConstraintViolationException {
         // Create a bean validator and check for issues.
         Set<ConstraintViolation<Customer>> violations = validator.validate(customer);
@@ -36,7 +41,8 @@ public class CustomerValidator{
     void validate(Customer customer) throws ConstraintViolationException, CustomerExistsException {
     	commonValidate(customer);
 
-        if (emailAlreadyExists(customer)) {
+        //otherwise the unique constraint on the email is left to find duplicates, see CustomerRepository.create()
+        if (!UniqueKeys.OPTIMISTIC && emailAlreadyExists(customer)) {
             throw new CustomerExistsException("Customer email is not unique");
         }
     }
@@ -45,7 +51,11 @@ public class CustomerValidator{
         commonValidate(customer);
         
         // if customer is already in the database, then check if the new email provided (if changed), doesn't exists in the database yet
+        if(!emails.mightContain(customer.getEmail())) {
+        	return;
+        }
         Customer fromDb = crud.findByEmail(customer.getEmail());
+        emails.looked(fromDb != null);
         
         //if email is used and it is used by someone else
         if(fromDb != null && (!fromDb.getId().equals(customer.getId()))) {
@@ -64,8 +74,14 @@ public class CustomerValidator{
     	Customer fromDb = null;
     	String email = customer.getEmail();
 
+    	//certainly not used, see CustomerEmailFilter
+    	if(!emails.mightContain(email)) {
+    		return false;
+    	}
+
     	try{
     		fromDb = crud.findByEmail(email);
+    		emails.looked(fromDb != null);
     		//if customer is found and the ID are equal
     		return fromDb != null && fromDb.equals(customer);
     	} catch (NonUniqueResultException e) {
@@ -4,14 +4,16 @@ import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.QueryHint;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
 import javax.validation.constraints.NotNull;
@@ -20,9 +22,15 @@ import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.jboss.quickstarts.wfk.booking.Booking;
 import org.jboss.quickstarts.wfk.util.CompareStrings;
+import org.jboss.quickstarts.wfk.util.EntityVersionListener;
+import org.jboss.quickstarts.wfk.util.PooledSequenceGenerator;
 import org.jboss.quickstarts.wfk.util.StringComparisonMode;
 
 
@@ -40,23 +48,36 @@ import org.jboss.quickstarts.wfk.util.StringComparisonMode;
  * form of query in JPA though is it more error prone due to the syntax being in a String.  This makes it harder to debug.
  */
 @Entity
+@EntityListeners(EntityVersionListener.class)
 @NamedQueries({
-        @NamedQuery(name = Flight.FIND_ALL, query = "SELECT f FROM Flight f ORDER BY f.number ASC"),
-        @NamedQuery(name = Flight.FIND_BY_NUMBER, query = "SELECT f FROM Flight f WHERE f.number = :number")
+        @NamedQuery(name = Flight.FIND_ALL, query = "SELECT f FROM Flight f ORDER BY f.number ASC", hints = {
+                @QueryHint(name = "org.hibernate.cacheable", value = "true"),
+                @QueryHint(name = "org.hibernate.cacheRegion", value = "flight.all")
+        }),
+        @NamedQuery(name = Flight.FIND_PAGE, query = "SELECT f FROM Flight f WHERE f.number > :number ORDER BY f.number ASC"),
+        @NamedQuery(name = Flight.FIND_BY_NUMBER, query = "SELECT f FROM Flight f WHERE f.number = :number"),
+        @NamedQuery(name = Flight.FIND_IDS, query = "SELECT f.id FROM Flight f WHERE f.id IN :ids")
 })
 @XmlRootElement
 @Table(name = "flight", uniqueConstraints = @UniqueConstraint(columnNames = "number"))
 @CompareStrings(propertyNames={"departure", "destination"}, 
 				matchMode=StringComparisonMode.NOT_EQUAL_IGNORE_CASE, 
 				message="The departure and destination must be different")
+//flights are read on every booking and rarely change, see the cache settings in persistence.xml
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.TRANSACTIONAL, region = "flight")
 public class Flight implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
     public static final String FIND_ALL = "Flight.findAll";
+    public static final String FIND_PAGE = "Flight.findPage";
     public static final String FIND_BY_NUMBER = "Flight.findByNumber";
+    public static final String FIND_IDS = "Flight.findIds";
 	
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "flight_seq")
+    @GenericGenerator(name = "flight_seq", strategy = PooledSequenceGenerator.NAME,
+            parameters = @Parameter(name = "sequence_name", value = "flight_seq"))
 	private Long id; 
 	
     @NotEmpty
@@ -0,0 +1,108 @@
+package org.jboss.quickstarts.wfk.flight;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+
+import com.google.common.io.BaseEncoding;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * <p>Calendar of the days on which a {@link Flight} is booked, between two dates.</p>
+ *
+ * <p>Rather than a list of dates, the calendar is a bitset with one bit per day, encoded in base64: bit <i>n</i> (bit
+ * <code>n % 8</code> of byte <code>n / 8</code>, counting from the least significant bit) is set if the flight is
+ * booked <i>n</i> days after <code>from</code>. A whole year of a flight fits in 64 characters.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class FlightAvailability implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Long flightId;
+	private Date from;
+	private Date to;
+	private int days;
+	private int booked;
+	private String bitset;
+
+	public FlightAvailability() {}
+
+	/**
+	 * @param flightId The id of the flight
+	 * @param from The first day of the calendar
+	 * @param to The last day of the calendar
+	 * @param days The number of days from <code>from</code> to <code>to</code>, inclusive
+	 * @param bits The days the flight is booked on, counted from <code>from</code>
+	 */
+	public FlightAvailability(Long flightId, Date from, Date to, int days, BitSet bits) {
+		this.flightId = flightId;
+		this.from = from;
+		this.to = to;
+		this.days = days;
+		this.booked = bits.cardinality();
+		//toByteArray() leaves out the trailing zero bytes, the bitset always covers every day
+		this.bitset = BaseEncoding.base64().encode(Arrays.copyOf(bits.toByteArray(), (days + 7) / 8));
+	}
+
+	public Long getFlightId() {
+		return flightId;
+	}
+
+	public void setFlightId(Long flightId) {
+		this.flightId = flightId;
+	}
+
+	public Date getFrom() {
+		return from;
+	}
+
+	public void setFrom(Date from) {
+		this.from = from;
+	}
+
+	public Date getTo() {
+		return to;
+	}
+
+	public void setTo(Date to) {
+		this.to = to;
+	}
+
+	@ApiModelProperty(value = "Number of days in the calendar")
+	public int getDays() {
+		return days;
+	}
+
+	public void setDays(int days) {
+		this.days = days;
+	}
+
+	@ApiModelProperty(value = "Number of days on which the flight is booked")
+	public int getBooked() {
+		return booked;
+	}
+
+	public void setBooked(int booked) {
+		this.booked = booked;
+	}
+
+	@ApiModelProperty(value = "Base64 bitset of the booked days, bit n is the n-th day from 'from'")
+	public String getBitset() {
+		return bitset;
+	}
+
+	public void setBitset(String bitset) {
+		this.bitset = bitset;
+	}
+
+	/**
+	 * @return Whether the flight is booked on the given day of the calendar
+	 */
+	public boolean isBooked(int day) {
+		byte[] bytes = BaseEncoding.base64().decode(bitset);
+		return day >= 0 && day / 8 < bytes.length && (bytes[day / 8] & (1 << (day % 8))) != 0;
+	}
+}
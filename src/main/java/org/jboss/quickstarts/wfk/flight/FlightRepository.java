@@ -1,15 +1,21 @@
 package org.jboss.quickstarts.wfk.flight;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
+import org.jboss.quickstarts.wfk.util.UniqueKeys;
+
 public class FlightRepository {
     @Inject
     private EntityManager em;
@@ -24,6 +30,21 @@ public class FlightRepository {
         return query.getResultList();
     }
     
+    /**
+     * <p>Returns a page of persisted {@link Flight} objects, sorted by flight number, which come after the given flight
+     * number.</p>
+     *
+     * @param number The number of the last Flight of the previous page, or null for the first page
+     * @param max The maximum number of Flights to return
+     * @return List of Flight objects
+     */
+    List<Flight> findPage(String number, int max) {
+        TypedQuery<Flight> query = number == null
+                ? em.createNamedQuery(Flight.FIND_ALL, Flight.class)
+                : em.createNamedQuery(Flight.FIND_PAGE, Flight.class).setParameter("number", number);
+        return query.setMaxResults(max).getResultList();
+    }
+    
     /**
      * <p>Returns a single Flight object, specified by a flight number.</p>
      *
@@ -53,19 +74,45 @@ public class FlightRepository {
     	return em.find(Flight.class, id);
     }
     
+    /**
+     * <p>Returns which of the given ids belong to a persisted Flight, using a single query.</p>
+     *
+     * @param ids The ids to look for
+     * @return The ids which were found
+     */
+    Set<Long> findExistingIds(Collection<Long> ids) {
+    	if(ids.isEmpty()) {
+    		return new HashSet<Long>();
+    	}
+    	
+        TypedQuery<Long> query = em.createNamedQuery(Flight.FIND_IDS, Long.class).setParameter("ids", ids);
+        return new HashSet<Long>(query.getResultList());
+    }
+    
     
     /**
      * <p>Writes the provided Flight object to the application database.<p/>
      *
      * <p>Validates the data in the provided Flight object using a {@link FlightValidator} object.<p/>
      *
+     * <p>The flight number may already be used by another Flight, see {@link UniqueKeys}.<p/>
+     *
      * @param flight The Flight object to be written to the database using a {@link FlightRepository} object
      * @return The Flight object that has been successfully written to the application database
+     * @throws FlightExistsException if the flight number is already used
      * @throws ConstraintViolationException, ValidationException, Exception
      */
     Flight create(Flight flight) throws ConstraintViolationException, ValidationException, Exception {
-        // Write the flight to the database.
-        em.persist(flight);
+        try {
+            // Write the flight to the database, straight away rather than at commit, so a duplicate shows up here.
+            em.persist(flight);
+            em.flush();
+        } catch (PersistenceException e) {
+            if (UniqueKeys.isViolation(e)) {
+                throw new FlightExistsException("Flight number is not unique", e);
+            }
+            throw e;
+        }
 
         return flight;
     }
@@ -1,8 +1,16 @@
 package org.jboss.quickstarts.wfk.flight;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.ejb.Stateless;
@@ -17,10 +25,23 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
+import org.jboss.quickstarts.wfk.booking.OccupancyIndex;
+import org.jboss.quickstarts.wfk.util.EntityVersions;
+import org.jboss.quickstarts.wfk.util.Keyset;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.Settings;
+import org.jboss.quickstarts.wfk.util.Validators;
+
+import com.google.common.base.Function;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -35,20 +56,87 @@ import io.swagger.annotations.ApiResponses;
 @Api(value = "/flights")
 @Stateless
 public class FlightRestService {
+	//calendar returned when the 'to' date isn't given, in days
+	private static final int AVAILABILITY_DAYS = Settings.getInt("flight.availability.days", 90);
+	private static final int AVAILABILITY_MAX_DAYS = Settings.getInt("flight.availability.max-days", 366);
+	private static final int AVAILABILITY_MAX_FLIGHTS = Settings.getInt("flight.availability.max-flights", 100);
+	
 	@Inject
 	FlightService service;
 	
     @Inject
     private @Named("logger") Logger log;
     
+    @Inject
+    EntityVersions versions;
+    
 	
+    /**
+     * <p>Return all the Flights, sorted by flight number, in pages of at most <code>limit</code> Flights.</p>
+     *
+     * <p>If there are more Flights, the response has a <code>Link</code> header to the next page, see {@link Keyset}.</p>
+     *
+     * @return A Response containing a list of Flights
+     */
     @GET
-    @ApiOperation(value = "Fetch all flights", notes = "Returns a JSON array of all stored Flight objects.")
+    @ApiOperation(value = "Fetch all flights", notes = "Returns a JSON array of stored Flight objects, sorted by number. "
+    		+ "The link to the next page, if any, is in the Link header.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Flights retrieved successfully"),
+            @ApiResponse(code = 304, message = "Flights haven't changed since the ETag in If-None-Match"),
+            @ApiResponse(code = 400, message = "Invalid limit or cursor supplied")
+    })
+	public Response getAllFlights(
+			@ApiParam(value = "Maximum number of flights to return", allowableValues = "range[1, infinity]", required = false)
+			@QueryParam("limit") Integer limit,
+			@ApiParam(value = "Cursor from the Link header of the previous page", required = false)
+			@QueryParam("after") String after,
+			@ApiParam(hidden = true) @Context UriInfo uriInfo,
+			@ApiParam(hidden = true) @Context Request request) {
+		int max = Keyset.limit(limit);
+		Object[] key = Keyset.decode(after, String.class);
+		
+		//taken before the flights are read, see EntityVersions
+		Validators validators = versions.validators(Flight.class);
+		Response notModified = validators.notModified(request);
+		if (notModified != null) {
+			return notModified;
+		}
+		
+		List<Flight> flights = service.findPage(key == null ? null : (String) key[0], max + 1);
+		
+		return validators.apply(Keyset.page(flights, max, uriInfo, new Function<Flight, Object[]>() {
+			@Override
+			public Object[] apply(Flight flight) {
+				return new Object[] {flight.getNumber()};
+			}
+		}));
+	}
+    
+    /**
+     * <p>Return all the Flights, sorted by flight number, without paging. Only for use within the application.</p>
+     */
 	public Response getAllFlights() {
 		List<Flight> flights = service.findAll();
 		return Response.ok(flights).build();
 	}
     
+    /**
+     * <p>Return all the Flights, sorted by flight number, without paging, or 304 NOT MODIFIED if the client's copy is
+     * current. Only for use within the application, e.g. by the travel agent.</p>
+     *
+     * @param request The HTTP request, whose preconditions are evaluated; null when not called over HTTP
+     */
+	public Response getAllFlights(Request request) {
+		Validators validators = versions.validators(Flight.class);
+		Response notModified = validators.notModified(request);
+		if (notModified != null) {
+			return notModified;
+		}
+		
+		return validators.apply(Response.ok(service.findAll())).build();
+	}
+    
     @POST
     @ApiOperation(value = "Add a new Flight to the database")
     @ApiResponses(value = {
@@ -138,5 +226,167 @@ public class FlightRestService {
         
         return builder.build();
     }
-
+    
+    
+    /**
+     * <p>Returns the calendar of the days a flight is booked on, see {@link FlightAvailability}.</p>
+     *
+     * <p>The response has an ETag, which only changes when a booking of the flight is made or cancelled (or a flight is
+     * added or deleted), so a client can revalidate its copy with <code>If-None-Match</code> and get 304 NOT MODIFIED
+     * without the database being read at all.</p>
+     *
+     * @param id The id of the Flight
+     * @param from The first day of the calendar, today by default
+     * @param to The last day of the calendar, 90 days from <code>from</code> by default
+     * @param request The HTTP request, whose preconditions are evaluated; null when not called over HTTP
+     * @return A Response containing the calendar of the flight
+     */
+    @GET
+    @Path("/{id:[0-9]+}/availability")
+    @ApiOperation(value = "Fetch the days on which a Flight is booked", notes = "Returns the booked days between 'from' and 'to' as a base64 bitset.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Calendar of the Flight"),
+            @ApiResponse(code = 304, message = "Calendar hasn't changed since the ETag in If-None-Match"),
+            @ApiResponse(code = 400, message = "Invalid dates supplied"),
+            @ApiResponse(code = 404, message = "Flight with id not found")
+    })
+    public Response getFlightAvailability(
+            @ApiParam(value = "Id of Flight", allowableValues = "range[0, infinity]", required = true)
+            @PathParam("id")
+            Long id,
+            @ApiParam(value = "First day, yyyy-MM-dd", required = false)
+            @QueryParam("from")
+            String from,
+            @ApiParam(value = "Last day, yyyy-MM-dd", required = false)
+            @QueryParam("to")
+            String to,
+            @ApiParam(hidden = true)
+            @Context
+            Request request) {
+    	
+    	if (id == null) {
+            throw new RestServiceException("No Flight with the id " + id + " was found!", Response.Status.NOT_FOUND);
+        }
+    	
+    	return availability(Collections.singleton(id), from, to, request, true);
+    }
+    
+    /**
+     * <p>Returns the calendars of the days many flights are booked on, see {@link FlightAvailability}.</p>
+     *
+     * <p>All the calendars are read at once, and share one ETag, like {@link #getFlightAvailability}.</p>
+     *
+     * @param ids Comma separated ids of the Flights
+     * @param from The first day of the calendars, today by default
+     * @param to The last day of the calendars, 90 days from <code>from</code> by default
+     * @param request The HTTP request, whose preconditions are evaluated; null when not called over HTTP
+     * @return A Response containing a JSON array of the calendars, ordered by flight id
+     */
+    @GET
+    @Path("/availability")
+    @ApiOperation(value = "Fetch the days on which many Flights are booked", notes = "Returns the booked days of each Flight between 'from' and 'to' as a base64 bitset.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Calendars of the Flights"),
+            @ApiResponse(code = 304, message = "Calendars haven't changed since the ETag in If-None-Match"),
+            @ApiResponse(code = 400, message = "Invalid ids or dates supplied"),
+            @ApiResponse(code = 404, message = "Some of the Flights were not found")
+    })
+    public Response getFlightsAvailability(
+            @ApiParam(value = "Comma separated ids of Flights", required = true)
+            @QueryParam("ids")
+            String ids,
+            @ApiParam(value = "First day, yyyy-MM-dd", required = false)
+            @QueryParam("from")
+            String from,
+            @ApiParam(value = "Last day, yyyy-MM-dd", required = false)
+            @QueryParam("to")
+            String to,
+            @ApiParam(hidden = true)
+            @Context
+            Request request) {
+    	
+    	Set<Long> flightIds = new LinkedHashSet<>();
+    	try {
+    		for (String id : (ids == null ? "" : ids).split(",")) {
+    			if (!id.trim().isEmpty()) {
+    				flightIds.add(Long.valueOf(id.trim()));
+    			}
+    		}
+    	} catch (NumberFormatException e) {
+    		throw new RestServiceException("Bad Request", Collections.singletonMap("ids", "Flight ids must be numbers"), Response.Status.BAD_REQUEST, e);
+    	}
+    	
+    	if (flightIds.isEmpty() || flightIds.size() > AVAILABILITY_MAX_FLIGHTS) {
+    		throw new RestServiceException("Bad Request", Collections.singletonMap("ids", "Between 1 and " + AVAILABILITY_MAX_FLIGHTS + " flight ids must be given"), Response.Status.BAD_REQUEST);
+    	}
+    	
+    	return availability(flightIds, from, to, request, false);
+    }
+    
+    private Response availability(Collection<Long> ids, String from, String to, Request request, boolean single) {
+    	Date first = from == null ? today() : parseDay("from", from);
+    	Date last;
+    	if (to == null) {
+    		Calendar calendar = Calendar.getInstance();
+    		calendar.setTime(first);
+    		calendar.add(Calendar.DAY_OF_MONTH, AVAILABILITY_DAYS - 1);
+    		last = calendar.getTime();
+    	} else {
+    		last = parseDay("to", to);
+    	}
+    	
+    	long days = OccupancyIndex.epochDay(last) - OccupancyIndex.epochDay(first) + 1;
+    	if (days < 1 || days > AVAILABILITY_MAX_DAYS) {
+    		throw new RestServiceException("Bad Request", Collections.singletonMap("to", "Must be between 0 and " + (AVAILABILITY_MAX_DAYS - 1) + " days after 'from'"), Response.Status.BAD_REQUEST);
+    	}
+    	
+    	//every request has to be revalidated, the ETag makes that cheap
+    	CacheControl cacheControl = new CacheControl();
+    	cacheControl.setPrivate(true);
+    	cacheControl.setNoCache(true);
+    	
+    	//the tag is checked before anything is read, the flights existed when it was given out and still do if it matches
+    	EntityTag tag = new EntityTag(service.findAvailabilityTag(ids, first, last));
+    	if (request != null) {
+    		Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+    		if (notModified != null) {
+    			return notModified.tag(tag).cacheControl(cacheControl).build();
+    		}
+    	}
+    	
+    	if (single) {
+    		Long id = ids.iterator().next();
+    		if (service.findById(id) == null) {
+    			throw new RestServiceException("No Flight with the id " + id + " was found!", Response.Status.NOT_FOUND);
+    		}
+    	} else {
+    		Set<Long> missing = new LinkedHashSet<>(ids);
+    		missing.removeAll(service.findExistingIds(ids));
+    		if (!missing.isEmpty()) {
+    			throw new RestServiceException("No Flights with the ids " + missing + " were found!", Response.Status.NOT_FOUND);
+    		}
+    	}
+    	
+    	List<FlightAvailability> calendars = service.findAvailability(ids, first, last);
+    	return Response.ok(single ? calendars.get(0) : calendars).tag(tag).cacheControl(cacheControl).build();
+    }
+    
+    private static Date today() {
+    	SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    	try {
+    		return format.parse(format.format(new Date()));
+    	} catch (ParseException e) {
+    		throw new IllegalStateException(e);
+    	}
+    }
+    
+    private static Date parseDay(String param, String value) {
+    	SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    	format.setLenient(false);
+    	try {
+    		return format.parse(value);
+    	} catch (ParseException e) {
+    		throw new RestServiceException("Bad Request", Collections.singletonMap(param, "Must be a date in the format yyyy-MM-dd"), Response.Status.BAD_REQUEST, e);
+    	}
+    }
 }
@@ -1,11 +1,27 @@
 package org.jboss.quickstarts.wfk.flight;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.inject.Inject;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
+import org.jboss.quickstarts.wfk.booking.BookingService;
+import org.jboss.quickstarts.wfk.booking.OccupancyIndex;
+import org.jboss.quickstarts.wfk.util.EntityVersions;
+import org.jboss.quickstarts.wfk.util.ResponseCache;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 public class FlightService {
 	@Inject
 	FlightRepository crud;
@@ -13,6 +29,18 @@ public class FlightService {
 	@Inject
 	FlightValidator validator;
 	
+	@Inject
+	BookingService bookingService;
+	
+	@Inject
+	OccupancyIndex occupancy;
+	
+	@Inject
+	ResponseCache responses;
+	
+	@Inject
+	EntityVersions versions;
+	
     /**
      * <p>Returns a List of all persisted {@link Flight} objects, sorted alphabetically by flight number.<p/>
      *
@@ -22,6 +50,18 @@ public class FlightService {
         return crud.findAll();
     }
     
+    /**
+     * <p>Returns a page of persisted {@link Flight} objects, sorted by flight number, which come after the given flight
+     * number.<p/>
+     *
+     * @param number The number of the last Flight of the previous page, or null for the first page
+     * @param max The maximum number of Flights to return
+     * @return List of Flight objects
+     */
+    public List<Flight> findPage(String number, int max) {
+        return crud.findPage(number, max);
+    }
+    
     /**
      * <p>Returns a single Flight object, specified by a Long id.</p>
      *
@@ -32,6 +72,70 @@ public class FlightService {
     	return crud.findById(id);
     }
     
+    /**
+     * <p>Returns which of the given ids belong to a persisted Flight.<p/>
+     *
+     * @param ids The ids to look for
+     * @return The ids which were found
+     */
+    public Set<Long> findExistingIds(Collection<Long> ids) {
+        return crud.findExistingIds(ids);
+    }
+    
+    /**
+     * <p>Returns the calendar of the days each of the given flights is booked on, between two dates.</p>
+     *
+     * <p>All the flights are read with a single range scan of the bookings.</p>
+     *
+     * @param ids The ids of the flights, which must exist
+     * @param from The first day of the calendars
+     * @param to The last day of the calendars, not before <code>from</code>
+     * @return A calendar for each flight, ordered by flight id
+     */
+    public List<FlightAvailability> findAvailability(Collection<Long> ids, Date from, Date to) {
+        long first = OccupancyIndex.epochDay(from);
+        int days = (int) (OccupancyIndex.epochDay(to) - first + 1);
+        
+        Map<Long, BitSet> booked = new LinkedHashMap<Long, BitSet>();
+        for (Long id : new TreeSet<Long>(ids)) {
+            booked.put(id, new BitSet(days));
+        }
+        
+        for (Object[] row : bookingService.findBookedDates(booked.keySet(), from, to)) {
+            booked.get((Long) row[0]).set((int) (OccupancyIndex.epochDay((Date) row[1]) - first));
+        }
+        
+        List<FlightAvailability> calendars = new ArrayList<FlightAvailability>(booked.size());
+        for (Map.Entry<Long, BitSet> flight : booked.entrySet()) {
+            calendars.add(new FlightAvailability(flight.getKey(), from, to, days, flight.getValue()));
+        }
+        return calendars;
+    }
+    
+    /**
+     * <p>Returns an entity tag of the calendars of {@link #findAvailability(Collection, Date, Date)}, which changes
+     * whenever a booking of any of the flights is made or cancelled.</p>
+     *
+     * <p>It's made from the versions of the flights in the {@link OccupancyIndex}, without reading any bookings. It must
+     * be taken before the calendars are read, so a booking committed in the meantime makes the tag older than the
+     * calendars rather than newer.</p>
+     *
+     * <p>It also changes whenever a flight is added or deleted (see {@link EntityVersions}), so a tag which matches was
+     * given out while all the flights existed, and they still do. A matching tag can then be answered with 304 NOT
+     * MODIFIED without reading anything from the database.</p>
+     */
+    public String findAvailabilityTag(Collection<Long> ids, Date from, Date to) {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putUnencodedChars(versions.validators(Flight.class).getTag().getValue())
+                .putLong(occupancy.getEpoch())
+                .putLong(OccupancyIndex.epochDay(from))
+                .putLong(OccupancyIndex.epochDay(to));
+        for (Long id : new TreeSet<Long>(ids)) {
+            hasher.putLong(id).putLong(occupancy.getVersion(id));
+        }
+        return hasher.hash().toString();
+    }
+    
     
     /**
      * <p>Writes the provided Flight object to the application database.<p/>
@@ -47,6 +151,7 @@ public class FlightService {
     	validator.validate(flight);
     	
         // Write the flight to the database.
+        responses.invalidate(ResponseCache.FLIGHTS);
         return crud.create(flight);
     }
     
@@ -58,6 +163,7 @@ public class FlightService {
      * @throws Exception
      */
     public Flight delete(Flight flight) throws Exception {
+        responses.invalidate(ResponseCache.FLIGHTS);
         return crud.delete(flight);
     }
 }
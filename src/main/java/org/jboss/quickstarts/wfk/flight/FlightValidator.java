@@ -12,6 +12,8 @@ import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 import javax.validation.Validator;
 
+import org.jboss.quickstarts.wfk.util.UniqueKeys;
+
 /**
  * <p>This class provides methods to check Customer objects against arbitrary requirements.</p>
  */
@@ -33,7 +35,8 @@ public class FlightValidator{
             throw new ConstraintViolationException(new HashSet<ConstraintViolation<?>>(violations));
         }
 
-        if (flightAlreadyExists(flight)) {
+        //otherwise the unique constraint on the number is left to find duplicates, see FlightRepository.create()
+        if (!UniqueKeys.OPTIMISTIC && flightAlreadyExists(flight)) {
             throw new FlightExistsException("Flight number is not unique");
         }
     }
@@ -0,0 +1,23 @@
+package org.jboss.quickstarts.wfk.metrics;
+
+import java.util.Map;
+
+/**
+ * <p>Implemented by beans which keep runtime counters (caches, pools etc.) worth exposing to the operators.</p>
+ *
+ * <p>Any CDI bean implementing this interface is picked up by {@link MetricsRestService}, there is nothing to register.</p>
+ *
+ * @author Jakub Gawron
+ */
+public interface MetricSource {
+
+    /**
+     * @return Name under which the metrics are published, e.g. <code>catalogue</code>
+     */
+    String getMetricsName();
+
+    /**
+     * @return Snapshot of the current values, which will be serialised to JSON
+     */
+    Map<String, Object> getMetrics();
+}
@@ -0,0 +1,71 @@
+package org.jboss.quickstarts.wfk.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.ejb.Stateless;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.util.RestServiceException;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+/**
+ * <p>Read only view of the runtime counters published by the {@link MetricSource} beans of this application.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Path("/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+@Api(value = "/metrics")
+@Stateless
+public class MetricsRestService {
+
+    @Inject
+    @Any
+    private Instance<MetricSource> sources;
+
+    @GET
+    @ApiOperation(value = "Fetch all metrics", notes = "Returns a JSON object with the metrics of every source, keyed by the source name.")
+    public Response getAllMetrics() {
+        Map<String, Object> metrics = new TreeMap<String, Object>();
+        for (MetricSource source : sources) {
+            metrics.put(source.getMetricsName(), source.getMetrics());
+        }
+
+        return Response.ok(metrics).build();
+    }
+
+    @GET
+    @Path("/{name}")
+    @ApiOperation(value = "Fetch metrics of a single source")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Metrics found"),
+            @ApiResponse(code = 404, message = "No metrics with that name")
+    })
+    public Response getMetrics(
+            @ApiParam(value = "Name of the metrics source, e.g. catalogue", required = true)
+            @PathParam("name")
+            String name) {
+
+        for (MetricSource source : sources) {
+            if (source.getMetricsName().equals(name)) {
+                return Response.ok(source.getMetrics()).build();
+            }
+        }
+
+        throw new RestServiceException("No metrics named " + name + " were found!", Response.Status.NOT_FOUND);
+    }
+}
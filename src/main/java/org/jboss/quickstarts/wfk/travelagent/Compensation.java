@@ -0,0 +1,175 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+import javax.validation.constraints.NotNull;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.jboss.quickstarts.wfk.util.PooledSequenceGenerator;
+
+/**
+ * <p>Journal entry for an external (hotel or taxi) booking which has to be cancelled, because the TravelAgentBooking
+ * it was made for didn't go through.</p>
+ *
+ * <p>Entries are written in their own transaction, so they survive the rollback of the booking, and are replayed by the
+ * {@link CompensationReplayer} until the external service confirms the cancellation, or they run out of attempts and
+ * are dead-lettered for an operator to look at.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Entity
+@NamedQueries({
+	@NamedQuery(name = Compensation.FIND_DUE, query = "SELECT c FROM Compensation c WHERE c.status = :status AND c.nextAttempt <= :now ORDER BY c.nextAttempt"),
+	@NamedQuery(name = Compensation.FIND_BY_STATUS, query = "SELECT c FROM Compensation c WHERE c.status IN :statuses ORDER BY c.created"),
+	@NamedQuery(name = Compensation.FIND_BY_BOOKING, query = "SELECT c FROM Compensation c WHERE c.service = :service AND c.bookingId = :bookingId")
+})
+@XmlRootElement
+@Table(name = "compensation", uniqueConstraints = @UniqueConstraint(columnNames = {"service", "booking_id"}))
+public class Compensation implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	public static final String FIND_DUE = "Compensation.findDue";
+	public static final String FIND_BY_STATUS = "Compensation.findByStatus";
+	public static final String FIND_BY_BOOKING = "Compensation.findByBooking";
+	
+	public enum Service { HOTEL, TAXI }
+	
+	public enum Status {
+		//waiting for (another) attempt
+		PENDING,
+		//cancelled at the external service
+		DONE,
+		//gave up retrying, needs an operator
+		DEAD
+	}
+	
+	@Id
+	@GeneratedValue(generator = "compensation_seq")
+	@GenericGenerator(name = "compensation_seq", strategy = PooledSequenceGenerator.NAME,
+	        parameters = @Parameter(name = "sequence_name", value = "compensation_seq"))
+	private Long id;
+	
+	@NotNull
+	@Enumerated(EnumType.STRING)
+	@Column(nullable = false, length = 10)
+	private Service service;
+	
+	@NotNull
+	@Column(name = "booking_id", nullable = false)
+	private Long bookingId;
+	
+	@NotNull
+	@Enumerated(EnumType.STRING)
+	@Column(nullable = false, length = 10)
+	private Status status = Status.PENDING;
+	
+	@Column(nullable = false)
+	private int attempts;
+	
+	@NotNull
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(nullable = false)
+	private Date created;
+	
+	@NotNull
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "next_attempt", nullable = false)
+	private Date nextAttempt;
+	
+	@Column(name = "last_error", length = 1000)
+	private String lastError;
+	
+	public Compensation() {}
+	
+	public Compensation(Service service, Long bookingId, String reason) {
+		this.service = service;
+		this.bookingId = bookingId;
+		this.created = new Date();
+		this.nextAttempt = this.created;
+		setLastError(reason);
+	}
+	
+	public Long getId() {
+		return id;
+	}
+	
+	public void setId(Long id) {
+		this.id = id;
+	}
+	
+	public Service getService() {
+		return service;
+	}
+	
+	public void setService(Service service) {
+		this.service = service;
+	}
+	
+	public Long getBookingId() {
+		return bookingId;
+	}
+	
+	public void setBookingId(Long bookingId) {
+		this.bookingId = bookingId;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+	
+	public int getAttempts() {
+		return attempts;
+	}
+	
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+	
+	public Date getCreated() {
+		return created;
+	}
+	
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+	
+	public Date getNextAttempt() {
+		return nextAttempt;
+	}
+	
+	public void setNextAttempt(Date nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
+	
+	public String getLastError() {
+		return lastError;
+	}
+	
+	public void setLastError(String lastError) {
+		this.lastError = (lastError != null && lastError.length() > 1000) ? lastError.substring(0, 1000) : lastError;
+	}
+	
+	@Override
+	public String toString() {
+		return service + " booking " + bookingId + " (" + status + ", " + attempts + " attempts)";
+	}
+}
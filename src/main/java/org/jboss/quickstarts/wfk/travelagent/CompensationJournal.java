@@ -0,0 +1,116 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+
+import org.jboss.quickstarts.wfk.util.Settings;
+
+/**
+ * <p>Persistent journal of the external bookings which still have to be cancelled.</p>
+ *
+ * <p>Every change is made in a new transaction, so the journal is written even while the caller's own transaction is
+ * being rolled back. Failed attempts are retried with exponential backoff, starting at
+ * <code>travelagent.compensation.backoff</code> and capped at <code>travelagent.compensation.max-backoff</code>
+ * milliseconds, and are dead-lettered after <code>travelagent.compensation.max-attempts</code> attempts.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+public class CompensationJournal {
+	public static final long BACKOFF = Settings.getLong("travelagent.compensation.backoff", 5000);
+	public static final long MAX_BACKOFF = Settings.getLong("travelagent.compensation.max-backoff", 3600000);
+	public static final int MAX_ATTEMPTS = Settings.getInt("travelagent.compensation.max-attempts", 12);
+	
+	@Inject
+	private @Named("logger") Logger log;
+	
+	@Inject
+	private EntityManager em;
+	
+	/**
+	 * <p>Records that the external booking has to be cancelled. Recording the same booking again has no effect.</p>
+	 *
+	 * @param service External service holding the booking
+	 * @param bookingId Id of the booking at the external service
+	 * @param reason Why the booking is being cancelled
+	 * @return The journal entry for the booking
+	 */
+	public Compensation record(Compensation.Service service, Long bookingId, String reason) {
+		List<Compensation> existing = em.createNamedQuery(Compensation.FIND_BY_BOOKING, Compensation.class)
+				.setParameter("service", service)
+				.setParameter("bookingId", bookingId)
+				.getResultList();
+		
+		if(!existing.isEmpty()) {
+			return existing.get(0);
+		}
+		
+		Compensation compensation = new Compensation(service, bookingId, reason);
+		em.persist(compensation);
+		
+		log.info("Journaled cancellation of " + compensation);
+		return compensation;
+	}
+	
+	/**
+	 * <p>Returns the pending entries whose next attempt is due, the longest waiting first.</p>
+	 */
+	public List<Compensation> findDue(int limit) {
+		return em.createNamedQuery(Compensation.FIND_DUE, Compensation.class)
+				.setParameter("status", Compensation.Status.PENDING)
+				.setParameter("now", new Date())
+				.setMaxResults(limit)
+				.getResultList();
+	}
+	
+	public List<Compensation> findByStatus(List<Compensation.Status> statuses) {
+		return em.createNamedQuery(Compensation.FIND_BY_STATUS, Compensation.class)
+				.setParameter("statuses", statuses)
+				.getResultList();
+	}
+	
+	/**
+	 * <p>Marks the entry as done, the external booking is cancelled.</p>
+	 */
+	public void markDone(Long id) {
+		Compensation compensation = em.find(Compensation.class, id);
+		if(compensation != null) {
+			compensation.setAttempts(compensation.getAttempts() + 1);
+			compensation.setStatus(Compensation.Status.DONE);
+			compensation.setLastError(null);
+		}
+	}
+	
+	/**
+	 * <p>Schedules the next attempt of a failed entry, or dead-letters it if it ran out of attempts.</p>
+	 */
+	public void markFailed(Long id, String error) {
+		Compensation compensation = em.find(Compensation.class, id);
+		if(compensation == null) {
+			return;
+		}
+		
+		int attempts = compensation.getAttempts() + 1;
+		compensation.setAttempts(attempts);
+		compensation.setLastError(error);
+		
+		if(attempts >= MAX_ATTEMPTS) {
+			compensation.setStatus(Compensation.Status.DEAD);
+			log.severe("Gave up cancelling " + compensation + ", last error: " + error);
+		} else {
+			//5s, 10s, 20s... up to the maximum, so a service which is down isn't hammered
+			long delay = Math.min(MAX_BACKOFF, BACKOFF << Math.min(attempts - 1, 30));
+			compensation.setNextAttempt(new Date(System.currentTimeMillis() + delay));
+			log.warning("Could not cancel " + compensation + ", retrying in " + delay + "ms: " + error);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.jboss.quickstarts.wfk.util.UpstreamClients;
+import org.jboss.resteasy.client.ClientResponse;
+
+/**
+ * <p>Replays the {@link CompensationJournal}, cancelling the external bookings recorded in it.</p>
+ *
+ * <p>The journal is replayed every 15 seconds, and straight after new entries are recorded. Cancelling a booking which
+ * is already gone (404) counts as a success, so replaying an entry more than once is harmless.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class CompensationReplayer {
+	//how many entries are loaded from the journal at a time
+	private static final int BATCH = 50;
+	
+	@Inject
+	private @Named("logger") Logger log;
+	
+	@Inject
+	CompensationJournal journal;
+	
+	@Inject
+	UpstreamClients clients;
+	
+	//only one replay at a time, otherwise the same entry could be attempted twice concurrently
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	@Schedule(hour = "*", minute = "*", second = "*/15", persistent = false)
+	void scheduled() {
+		//if a replay is already running, it will pick up whatever is due
+		if(lock.tryLock()) {
+			try {
+				replayDue();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * <p>Replays the journal in the background, used straight after new entries have been recorded.</p>
+	 */
+	@Asynchronous
+	public void replayAsync() {
+		replay();
+	}
+	
+	/**
+	 * <p>Replays all the entries which are due, waiting for a replay in progress to finish first.</p>
+	 *
+	 * @return Number of external bookings cancelled
+	 */
+	public int replay() {
+		lock.lock();
+		try {
+			return replayDue();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private int replayDue() {
+		int done = 0;
+		List<Compensation> due;
+		
+		//entries which failed are pushed into the future, so this stops once everything due has been attempted
+		do {
+			due = journal.findDue(BATCH);
+			for(Compensation compensation : due) {
+				if(attempt(compensation)) {
+					done++;
+				}
+			}
+		} while(due.size() == BATCH);
+		
+		if(done > 0) {
+			log.info("Cancelled " + done + " external bookings from the compensation journal");
+		}
+		return done;
+	}
+	
+	private boolean attempt(Compensation compensation) {
+		try {
+			ClientResponse<Void> response = compensation.getService() == Compensation.Service.HOTEL
+					? clients.getHotelBookingService().deleteBookingById(compensation.getBookingId())
+					: clients.getTaxiBookingService().deleteBookingById(compensation.getBookingId());
+			response.releaseConnection();
+			
+			int status = response.getStatus();
+			if(status == 200 || status == 204 || status == 404) {
+				journal.markDone(compensation.getId());
+				return true;
+			}
+			
+			journal.markFailed(compensation.getId(), "External service responded with " + status);
+		} catch (RuntimeException e) {
+			journal.markFailed(compensation.getId(), e.toString());
+		}
+		return false;
+	}
+}
@@ -0,0 +1,126 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.UpstreamExecutor;
+
+/**
+ * <p>One external reservation (hotel or taxi) made as part of a TravelAgentBooking.</p>
+ *
+ * <p>Legs are dispatched on the {@link UpstreamExecutor} so that they run concurrently, and then awaited against a
+ * common deadline. If the caller stops waiting for a leg (deadline passed), but the leg still goes on to succeed
+ * afterwards, the leg releases its own reservation, as nobody else knows its id to compensate it.</p>
+ *
+ * @param <T> the booking type returned by the external service
+ * @author Jakub Gawron
+ */
+abstract class ReservationLeg<T> implements Callable<T> {
+	private static final Logger log = Logger.getLogger(ReservationLeg.class.getName());
+
+	private final String name;
+
+	//set by whoever gets there first: the leg when it completes, or the caller when it gives up waiting
+	private final AtomicBoolean settled = new AtomicBoolean(false);
+
+	private volatile long elapsed = -1;
+	private Future<T> future;
+
+	ReservationLeg(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * <p>Makes the reservation at the external service, throwing if it's refused.</p>
+	 */
+	protected abstract T reserve() throws Exception;
+
+	/**
+	 * <p>Cancels a reservation which was made after the caller stopped waiting for it.</p>
+	 */
+	protected abstract void release(T reservation) throws Exception;
+
+	@Override
+	public T call() throws Exception {
+		long start = System.nanoTime();
+		try {
+			T reservation = reserve();
+
+			if(!settled.compareAndSet(false, true)) {
+				//caller has already given up on us, so undo the reservation rather than leak it
+				try {
+					release(reservation);
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Could not release late " + name + " reservation " + reservation, e);
+				}
+			}
+
+			return reservation;
+		} finally {
+			elapsed = System.nanoTime() - start;
+		}
+	}
+
+	void dispatch(UpstreamExecutor executor) throws RestServiceException {
+		future = executor.submit(this);
+	}
+
+	/**
+	 * <p>Waits for the leg to finish until the deadline (in {@link System#nanoTime()} terms).</p>
+	 *
+	 * @return the reservation, or null if the leg was never dispatched
+	 * @throws RestServiceException if the external service refused the reservation, or it didn't finish in time
+	 */
+	T await(long deadline) throws RestServiceException {
+		if(future == null) {
+			return null;
+		}
+
+		try {
+			try {
+				return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				if(settled.compareAndSet(false, true)) {
+					future.cancel(false);
+					throw new RestServiceException("External " + name + " service did not respond in time", Response.Status.SERVICE_UNAVAILABLE, e);
+				}
+
+				//the leg completed just as we gave up, so the result is still ours to use (or compensate)
+				return future.get();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RestServiceException((Exception) cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			settled.set(true);
+			throw new RestServiceException(e);
+		}
+	}
+
+	/**
+	 * <p>Returns timing of this leg in the <code>Server-Timing</code> header format, e.g. <code>hotel;dur=120.3</code>.</p>
+	 */
+	String serverTiming() {
+		return serverTiming(name, elapsed);
+	}
+
+	static String serverTiming(String name, long nanos) {
+		return nanos < 0 ? name : String.format(Locale.ROOT, "%s;dur=%.1f", name, nanos / 1e6);
+	}
+}
@@ -0,0 +1,90 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.util.Map;
+
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * <p>Outcome of a single TravelAgentBooking submitted to the batch endpoint.</p>
+ *
+ * <p>The status is the one the booking would have got from <code>POST /travelagent/bookings</code> on its own, i.e.
+ * 201 with the booking when it was made, or an error status with a message otherwise. Bookings which were not made
+ * because of another booking of the same all-or-nothing batch have status 424.</p>
+ *
+ * @author Jakub Gawron
+ */
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class TravelAgentBatchResult {
+	//another booking of the batch failed, so this one was not made (WebDAV "Failed Dependency")
+	public static final int FAILED_DEPENDENCY = 424;
+	
+	private int index;
+	private int status;
+	private TravelAgentBooking booking;
+	private String error;
+	private Map<String, String> reasons;
+	
+	public TravelAgentBatchResult() {}
+	
+	public TravelAgentBatchResult(int index) {
+		this.index = index;
+	}
+	
+	void succeeded(TravelAgentBooking booking) {
+		this.status = 201;
+		this.booking = booking;
+		this.error = null;
+		this.reasons = null;
+	}
+	
+	void failed(int status, String error, Map<String, String> reasons) {
+		this.status = status;
+		this.booking = null;
+		this.error = error;
+		this.reasons = reasons;
+	}
+	
+	boolean isSuccessful() {
+		return status == 201;
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+	
+	public void setIndex(int index) {
+		this.index = index;
+	}
+	
+	public int getStatus() {
+		return status;
+	}
+	
+	public void setStatus(int status) {
+		this.status = status;
+	}
+	
+	public TravelAgentBooking getBooking() {
+		return booking;
+	}
+	
+	public void setBooking(TravelAgentBooking booking) {
+		this.booking = booking;
+	}
+	
+	public String getError() {
+		return error;
+	}
+	
+	public void setError(String error) {
+		this.error = error;
+	}
+	
+	public Map<String, String> getReasons() {
+		return reasons;
+	}
+	
+	public void setReasons(Map<String, String> reasons) {
+		this.reasons = reasons;
+	}
+}
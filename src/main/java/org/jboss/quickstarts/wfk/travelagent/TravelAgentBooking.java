@@ -6,7 +6,6 @@ import javax.persistence.Column;
 import javax.persistence.Embedded;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
@@ -22,27 +21,44 @@ import javax.validation.constraints.NotNull;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
 import org.jboss.quickstarts.wfk.booking.Booking;
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.flight.Flight;
 import org.jboss.quickstarts.wfk.hotel.Hotel;
 import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.util.PooledSequenceGenerator;
 
 import io.swagger.annotations.ApiModelProperty;
 
 @Entity
+/*
+ * The lists of TravelAgentBookings select their flight Booking, with the TravelAgentBooking, Customer and Flight fetched
+ * in the same query. The other way round, Hibernate would look the inverse Booking.travelAgentBooking up again with one
+ * query per row.
+ */
 @NamedQueries({
-	@NamedQuery(name = TravelAgentBooking.FIND_ALL, query = "SELECT b FROM TravelAgentBooking b"),
-	@NamedQuery(name = TravelAgentBooking.FIND_BY_CUSTOMER, query = "SELECT b FROM TravelAgentBooking b WHERE b.customer.id = :customer_id")
+	@NamedQuery(name = TravelAgentBooking.FIND_ALL, query = "SELECT fb FROM Booking fb JOIN FETCH fb.travelAgentBooking b JOIN FETCH fb.customer JOIN FETCH fb.flight ORDER BY b.id ASC"),
+	@NamedQuery(name = TravelAgentBooking.FIND_PAGE, query = "SELECT fb FROM Booking fb JOIN FETCH fb.travelAgentBooking b JOIN FETCH fb.customer JOIN FETCH fb.flight WHERE b.id > :id ORDER BY b.id ASC"),
+	@NamedQuery(name = TravelAgentBooking.FIND_BY_CUSTOMER, query = "SELECT fb FROM Booking fb JOIN FETCH fb.travelAgentBooking b JOIN FETCH fb.customer JOIN FETCH fb.flight WHERE b.customer.id = :customer_id ORDER BY b.id ASC"),
+	@NamedQuery(name = TravelAgentBooking.FIND_PAGE_BY_CUSTOMER, query = "SELECT fb FROM Booking fb JOIN FETCH fb.travelAgentBooking b JOIN FETCH fb.customer JOIN FETCH fb.flight WHERE b.customer.id = :customer_id AND b.id > :id ORDER BY b.id ASC")
 })
 @XmlRootElement
 @Table(name = "travelagentbooking")
+//the bookings of a customer are listed (and paged through) by id
+@org.hibernate.annotations.Table(appliesTo = "travelagentbooking", indexes = @Index(name = "travelagentbooking_customer_id_idx", columnNames = {"customer_id", "id"}))
 public class TravelAgentBooking {
 	public static final String FIND_ALL = "TravelAgentBooking.findAll";
+	public static final String FIND_PAGE = "TravelAgentBooking.findPage";
 	public static final String FIND_BY_CUSTOMER = "TravelAgentBooking.findByCustomer";
+	public static final String FIND_PAGE_BY_CUSTOMER = "TravelAgentBooking.findPageByCustomer";
 	
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "travelagentbooking_seq")
+    @GenericGenerator(name = "travelagentbooking_seq", strategy = PooledSequenceGenerator.NAME,
+            parameters = @Parameter(name = "sequence_name", value = "travelagentbooking_seq"))
 	private Long id;
 	
     @ApiModelProperty(hidden=true)
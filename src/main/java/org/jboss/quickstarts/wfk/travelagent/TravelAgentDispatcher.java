@@ -0,0 +1,91 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.util.logging.Logger;
+
+import javax.ejb.Asynchronous;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.util.ErrorMessage;
+import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.resteasy.spi.AsynchronousResponse;
+
+/**
+ * <p>Runs the travel agent bookings for the asynchronous endpoints of {@link TravelAgentRestService}.</p>
+ *
+ * <p>The methods are {@link Asynchronous}, so the booking runs on the EJB async thread pool, while the container
+ * request thread goes straight back to serve other requests. Once the booking is done (successfully or not), the
+ * suspended response is resumed with the outcome.</p>
+ *
+ * <p>The booking itself is delegated back to {@link TravelAgentRestService}, so both endpoints behave exactly the same,
+ * including their transactions and compensations.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Stateless
+public class TravelAgentDispatcher {
+	
+	@Inject
+	private @Named("logger") Logger log;
+	
+	@Inject
+	TravelAgentRestService travelAgent;
+	
+	@Asynchronous
+	public void createBooking(TravelAgentBooking booking, String idempotencyKey, AsynchronousResponse response) {
+		Response result;
+		try {
+			result = travelAgent.createBooking(booking, idempotencyKey);
+		} catch (Exception e) {
+			result = toResponse(e);
+		}
+		
+		resume(response, result);
+	}
+	
+	@Asynchronous
+	public void deleteBooking(Long id, AsynchronousResponse response) {
+		Response result;
+		try {
+			result = travelAgent.deleteBooking(id);
+		} catch (Exception e) {
+			result = toResponse(e);
+		}
+		
+		resume(response, result);
+	}
+	
+	private void resume(AsynchronousResponse response, Response result) {
+		try {
+			response.setResponse(result);
+		} catch (RuntimeException e) {
+			//the request has already timed out and the client got 503, nothing else we can do here
+			log.warning("Could not resume request with " + result.getStatus() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * <p>Builds the same error response {@link org.jboss.quickstarts.wfk.util.RestServiceExceptionHandler} would, as
+	 * exception mappers don't apply to resumed responses.</p>
+	 */
+	private Response toResponse(Exception e) {
+		if(e instanceof RestServiceException) {
+			RestServiceException re = (RestServiceException) e;
+			log.severe("Mapping RestServiceException with status \"" + re.getStatus() + "\", message: \"" + re.getMessage() + "\"");
+			
+			return Response.status(re.getStatus())
+					.entity(new ErrorMessage(re.getMessage(), re.getReasons()))
+					.type(MediaType.APPLICATION_JSON)
+					.build();
+		}
+		
+		log.severe("Unexpected exception in asynchronous booking: " + e);
+		return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+				.entity(new ErrorMessage(e.getMessage()))
+				.type(MediaType.APPLICATION_JSON)
+				.build();
+	}
+}
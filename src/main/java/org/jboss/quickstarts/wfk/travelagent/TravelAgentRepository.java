@@ -1,10 +1,12 @@
 package org.jboss.quickstarts.wfk.travelagent;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
+import org.jboss.quickstarts.wfk.booking.Booking;
 import org.jboss.quickstarts.wfk.customer.Customer;
 
 public class TravelAgentRepository {
@@ -17,8 +19,8 @@ public class TravelAgentRepository {
      * @return List of TravelAgentBooking objects
      */
     List<TravelAgentBooking> findAll() {
-        TypedQuery<TravelAgentBooking> query = em.createNamedQuery(TravelAgentBooking.FIND_ALL, TravelAgentBooking.class);
-        return query.getResultList();
+        TypedQuery<Booking> query = em.createNamedQuery(TravelAgentBooking.FIND_ALL, Booking.class);
+        return travelAgentBookings(query.getResultList());
     }
     
     /**
@@ -37,8 +39,43 @@ public class TravelAgentRepository {
      * @return List of TravelAgentBooking objects
      */
     List<TravelAgentBooking> findByCustomer(Customer customer) {
-        TypedQuery<TravelAgentBooking> query = em.createNamedQuery(TravelAgentBooking.FIND_BY_CUSTOMER, TravelAgentBooking.class).setParameter("customer_id", customer.getId());
-        return query.getResultList();
+        TypedQuery<Booking> query = em.createNamedQuery(TravelAgentBooking.FIND_BY_CUSTOMER, Booking.class).setParameter("customer_id", customer.getId());
+        return travelAgentBookings(query.getResultList());
+    }
+    
+    /**
+     * <p>Returns a page of persisted {@link TravelAgentBooking} objects, sorted by id, which come after the given id.</p>
+     *
+     * @param customer The Customer whose TravelAgentBookings to return, or null for the TravelAgentBookings of all Customers
+     * @param id The id of the last TravelAgentBooking of the previous page, or null for the first page
+     * @param max The maximum number of TravelAgentBookings to return
+     * @return List of TravelAgentBooking objects
+     */
+    List<TravelAgentBooking> findPage(Customer customer, Long id, int max) {
+        TypedQuery<Booking> query;
+        if (customer == null) {
+            query = id == null
+                    ? em.createNamedQuery(TravelAgentBooking.FIND_ALL, Booking.class)
+                    : em.createNamedQuery(TravelAgentBooking.FIND_PAGE, Booking.class).setParameter("id", id);
+        } else {
+            query = id == null
+                    ? em.createNamedQuery(TravelAgentBooking.FIND_BY_CUSTOMER, Booking.class)
+                    : em.createNamedQuery(TravelAgentBooking.FIND_PAGE_BY_CUSTOMER, Booking.class).setParameter("id", id);
+            query.setParameter("customer_id", customer.getId());
+        }
+        return travelAgentBookings(query.setMaxResults(max).getResultList());
+    }
+    
+    /**
+     * <p>Returns the TravelAgentBookings of flight Bookings read by the list queries of {@link TravelAgentBooking}, which
+     * select the flight Bookings so the whole list is read with one query.</p>
+     */
+    private List<TravelAgentBooking> travelAgentBookings(List<Booking> flightBookings) {
+        List<TravelAgentBooking> bookings = new ArrayList<TravelAgentBooking>(flightBookings.size());
+        for (Booking flightBooking : flightBookings) {
+            bookings.add(flightBooking.getTravelAgentBooking());
+        }
+        return bookings;
     }
     
     
@@ -1,50 +1,83 @@
 package org.jboss.quickstarts.wfk.travelagent;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
 
 import javax.annotation.Resource;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionManagement;
 import javax.ejb.TransactionManagementType;
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
+import javax.validation.ValidationException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
 
 import org.jboss.quickstarts.wfk.booking.Booking;
 import org.jboss.quickstarts.wfk.booking.BookingExistsException;
+import org.jboss.quickstarts.wfk.booking.BookingHoldReaper;
 import org.jboss.quickstarts.wfk.booking.BookingService;
 import org.jboss.quickstarts.wfk.booking.CustomerInvalidException;
 import org.jboss.quickstarts.wfk.booking.FlightInvalidException;
 import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.customer.CustomerRestService;
 import org.jboss.quickstarts.wfk.customer.CustomerService;
+import org.jboss.quickstarts.wfk.flight.Flight;
 import org.jboss.quickstarts.wfk.flight.FlightRestService;
+import org.jboss.quickstarts.wfk.flight.FlightService;
 import org.jboss.quickstarts.wfk.hotel.Hotel;
 import org.jboss.quickstarts.wfk.hotel.HotelBooking;
 import org.jboss.quickstarts.wfk.hotel.HotelBookingService;
-import org.jboss.quickstarts.wfk.hotel.HotelService;
 import org.jboss.quickstarts.wfk.taxi.Taxi;
 import org.jboss.quickstarts.wfk.taxi.TaxiBooking;
 import org.jboss.quickstarts.wfk.taxi.TaxiBookingService;
-import org.jboss.quickstarts.wfk.taxi.TaxiService;
+import org.jboss.quickstarts.wfk.util.EntityVersions;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.Keyset;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.Settings;
+import org.jboss.quickstarts.wfk.util.UpstreamClients;
+import org.jboss.quickstarts.wfk.util.UpstreamExecutor;
+import org.jboss.quickstarts.wfk.util.Validators;
+import org.jboss.resteasy.annotations.Suspend;
 import org.jboss.resteasy.client.ClientResponse;
 import org.jboss.resteasy.client.ClientResponseFailure;
-import org.jboss.resteasy.client.ProxyFactory;
+import org.jboss.resteasy.spi.AsynchronousResponse;
+
+import com.google.common.base.Function;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -63,32 +96,77 @@ import io.swagger.annotations.ApiResponses;
 public class TravelAgentRestService {
 	//Niamh Gohil
 	public static Long HOTEL_CUSTOMER_ID = new Long(5);
-	public static final String HOTEL_SERVICE_URL = "http://contacts-120232109.rhcloud.com";
 	public static Customer HOTEL_CUSTOMER = null;
 	
 	//Maciej Sokolowski
 	public static Long TAXI_CUSTOMER_ID = new Long(30003);
-	public static final String TAXI_SERVICE_URL = "http://contacts-120357332.rhcloud.com";
 	public static Customer TAXI_CUSTOMER = null;
 	
+	//how long we wait (in milliseconds) for both external reservations to complete
+	public static final long RESERVATION_TIMEOUT = Settings.getLong("travelagent.reservation.timeout", 10000);
+	
+	//how long (in milliseconds) an asynchronous request stays suspended, before the client gets 503
+	//has to be a constant for @Suspend, so keep it well above RESERVATION_TIMEOUT
+	public static final long ASYNC_TIMEOUT = 30000;
+	
+	//how long (in milliseconds) a flight is held while the external bookings are made, before the hold can be expired
+	public static final long HOLD_TIMEOUT = Math.max(Settings.getLong("travelagent.hold.timeout", 60000), 2 * RESERVATION_TIMEOUT);
+	
+	//how many bookings of a batch may have their external reservations in progress at once, and how big a batch may be
+	public static final int BATCH_CONCURRENCY = Settings.getInt("travelagent.batch.concurrency", 4);
+	public static final int BATCH_MAX_SIZE = Settings.getInt("travelagent.batch.max-size", 100);
+	
+	//how long (in milliseconds) the catalogue waits for the hotels and taxis, before leaving them out
+	public static final long CATALOGUE_TIMEOUT = Settings.getLong("travelagent.catalogue.timeout", 5000);
+	
+	//WebDAV "Multi-Status", not in Response.Status of JAX-RS 1.1
+	private static final int MULTI_STATUS = 207;
+	
 	@Inject
 	BookingService flightBookingService;
 	
 	@Inject
 	FlightRestService flightService;  
 	
+	@Inject
+	FlightService localFlights;
+	
+	@Inject
+	EntityVersions versions;
+	
 	@Inject
 	TravelAgentService travelAgentService;
 	
 	@Inject
 	CustomerService customerService;
 	
+	@Inject
+	UpstreamExecutor upstream;
+	
+	@Inject
+	UpstreamClients clients;
+	
+	@Inject
+	TravelCatalogue catalogue;
+	
+	@Inject
+	TravelAgentDispatcher dispatcher;
+	
+	@Inject
+	CompensationJournal journal;
+	
+	@Inject
+	CompensationReplayer replayer;
+	
+	@Inject
+	IdempotencyStore idempotency;
+	
 	@Resource
 	UserTransaction userTransaction;
 	
-	HotelBookingService hotelBookingService = null;
-	TaxiBookingService taxiBookingService = null;
-    
+	@Inject
+	private @Named("logger") Logger log;
+	
 	public TravelAgentRestService() {
         //Set customer id for external services, if set in environment
 		try {
@@ -116,19 +194,20 @@ public class TravelAgentRestService {
     @ApiOperation(value = "Fetch all Taxis", notes = "Returns a JSON array of all stored Taxi objects.")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Taxis retrieved successfuly"),
+            @ApiResponse(code = 304, message = "Taxis haven't changed since the ETag in If-None-Match"),
             @ApiResponse(code = 400, message = "Problems with external taxi booking service")
     })
+	public Response getTaxis(@ApiParam(hidden = true) @Context Request request) {
+    	//served from the cache, which is refreshed from upstream service in the background
+    	List<Taxi> taxis = catalogue.getTaxis();
+    	return revalidated(taxis, catalogue.getTaxiValidators(taxis), request);
+	}
+    
+    /**
+     * <p>Return all the Taxis, without validators. Only for use within the application.</p>
+     */
 	public Response getTaxis() {
-    	//Create client service instance to make REST requests to upstream service
-        TaxiService taxiService = ProxyFactory.create(TaxiService.class, TAXI_SERVICE_URL);
-        ClientResponse<List<Taxi>> response = taxiService.getTaxis();
-        
-        try {
-        	List<Taxi> taxis = response.getEntity();
-        	return Response.ok(taxis).build();
-        } catch (ClientResponseFailure e) {
-        	throw new RestServiceException("External Taxi resource is currently unavailable", Response.Status.INTERNAL_SERVER_ERROR, e);
-        }
+		return getTaxis(null);
 	}
     
     @GET
@@ -136,40 +215,202 @@ public class TravelAgentRestService {
     @ApiOperation(value = "Fetch all Hotels", notes = "Returns a JSON array of all stored Hotel objects.")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Hotels retrieved successfuly"),
+            @ApiResponse(code = 304, message = "Hotels haven't changed since the ETag in If-None-Match"),
             @ApiResponse(code = 400, message = "Problems with external hotel booking service")
     })
+	public Response getHotels(@ApiParam(hidden = true) @Context Request request) {
+    	//served from the cache, which is refreshed from upstream service in the background
+    	List<Hotel> hotels = catalogue.getHotels();
+    	return revalidated(hotels, catalogue.getHotelValidators(hotels), request);
+	}
+    
+    /**
+     * <p>Return all the Hotels, without validators. Only for use within the application.</p>
+     */
 	public Response getHotels() {
-    	//Create client service instance to make REST requests to upstream service
-        HotelService hotelService = ProxyFactory.create(HotelService.class, HOTEL_SERVICE_URL);
-        ClientResponse<List<Hotel>> response = hotelService.getHotels();
-        
-        try {
-        	List<Hotel> hotels = response.getEntity();
-        	return Response.ok(hotels).build();
-        } catch (ClientResponseFailure e) {
-        	throw new RestServiceException("External Hotel resource is currently unavailable", Response.Status.INTERNAL_SERVER_ERROR, e);
-        }
+		return getHotels(null);
 	}
     
+    private static Response revalidated(Object entity, Validators validators, Request request) {
+    	//the catalogue has just been refreshed, it will have validators next time
+    	if(validators == null) {
+    		return Response.ok(entity).build();
+    	}
+    	
+    	Response notModified = validators.notModified(request);
+    	return notModified != null ? notModified : validators.apply(Response.ok(entity)).build();
+    }
+    
     @GET
     @Path("/flights")
     @ApiOperation(value = "Fetch all Flights", notes = "Returns a JSON array of all stored Flight objects.")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "Flights retrieved successfuly")
+            @ApiResponse(code = 200, message = "Flights retrieved successfuly"),
+            @ApiResponse(code = 304, message = "Flights haven't changed since the ETag in If-None-Match")
     })
-	public Response getFlights() {
-    	return flightService.getAllFlights();
+	public Response getFlights(@ApiParam(hidden = true) @Context Request request) {
+    	return flightService.getAllFlights(request);
 	}
     
+    /**
+     * <p>Return everything the travel agent needs to make a booking (flights, hotels, taxis and customers) at once.</p>
+     *
+     * <p>The hotels and taxis are fetched from the upstream services while the flights and customers are read from the
+     * database. A section which can't be had within {@link #CATALOGUE_TIMEOUT} is UNAVAILABLE, and the rest are returned
+     * anyway. The customers section only holds the first page of customers, with the link to the next one, see
+     * {@link Keyset}.</p>
+     *
+     * <p>The ETag is made of those of all the sections, so the response only has validators when every section is
+     * there. It's checked before anything is read: the flight and customer versions are known up front (see
+     * {@link EntityVersions}), as are those of the cached hotels and taxis, so a client whose copy is current gets a 304
+     * without a query or an upstream call.</p>
+     */
+    @GET
+    @Path("/catalogue")
+    @ApiOperation(value = "Fetch the flights, hotels, taxis and customers at once",
+    		notes = "Returns a JSON object with a section for each, holding its status (OK or UNAVAILABLE) and either its items or the reason it's unavailable.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Catalogue retrieved successfuly, some sections may be unavailable"),
+            @ApiResponse(code = 304, message = "Catalogue hasn't changed since the ETag in If-None-Match")
+    })
+	public Response getCatalogue(@ApiParam(hidden = true) @Context Request request, @ApiParam(hidden = true) @Context UriInfo uriInfo) {
+    	//taken before the flights and customers are read, see EntityVersions
+    	Validators flightValidators = versions.validators(Flight.class);
+    	Validators customerValidators = versions.validators(Customer.class);
+    	
+    	Validators cachedHotelValidators = catalogue.getCachedHotelValidators();
+    	Validators cachedTaxiValidators = catalogue.getCachedTaxiValidators();
+    	if(cachedHotelValidators != null && cachedTaxiValidators != null) {
+    		Response notModified = Validators.combine("catalogue", flightValidators, cachedHotelValidators, cachedTaxiValidators, customerValidators)
+    				.notModified(request);
+    		if(notModified != null) {
+    			return notModified;
+    		}
+    	}
+    	
+    	long deadline = System.currentTimeMillis() + CATALOGUE_TIMEOUT;
+    	
+    	Future<List<Hotel>> hotelsFuture = fetch(new Callable<List<Hotel>>() {
+			@Override
+			public List<Hotel> call() {
+				return catalogue.getHotels();
+			}
+		});
+    	Future<List<Taxi>> taxisFuture = fetch(new Callable<List<Taxi>>() {
+			@Override
+			public List<Taxi> call() {
+				return catalogue.getTaxis();
+			}
+		});
+    	
+    	TravelCatalogueSection<Flight> flights = TravelCatalogueSection.available(localFlights.findAll());
+    	
+    	//relative to the customers resource if the method was called directly, rather than through JAX-RS
+    	UriBuilder customersUri = uriInfo != null ? uriInfo.getBaseUriBuilder().path(CustomerRestService.class) : UriBuilder.fromResource(CustomerRestService.class);
+    	List<Customer> customerRows = customerService.findPage(null, null, Keyset.DEFAULT_LIMIT + 1);
+    	TravelCatalogueSection<Customer> customers = TravelCatalogueSection.page(customerRows, Keyset.DEFAULT_LIMIT,
+    			Keyset.next(customerRows, Keyset.DEFAULT_LIMIT, customersUri, CustomerRestService.PAGE_KEY));
+    	
+    	TravelCatalogueSection<Hotel> hotels = await(hotelsFuture, deadline, "External Hotel resource is currently unavailable");
+    	TravelCatalogueSection<Taxi> taxis = await(taxisFuture, deadline, "External Taxi resource is currently unavailable");
+    	
+    	Map<String, TravelCatalogueSection<?>> sections = new LinkedHashMap<String, TravelCatalogueSection<?>>();
+    	sections.put("flights", flights);
+    	sections.put("hotels", hotels);
+    	sections.put("taxis", taxis);
+    	sections.put("customers", customers);
+    	
+    	Validators hotelValidators = hotels.isAvailable() ? catalogue.getHotelValidators(hotels.getItems()) : null;
+    	Validators taxiValidators = taxis.isAvailable() ? catalogue.getTaxiValidators(taxis.getItems()) : null;
+    	if(hotelValidators == null || taxiValidators == null) {
+    		return Response.ok(sections).build();
+    	}
+    	
+    	return revalidated(sections, Validators.combine("catalogue", flightValidators, hotelValidators, taxiValidators, customerValidators), request);
+	}
+    
+    /**
+     * <p>Return the catalogue, without validators. Only for use within the application.</p>
+     */
+	public Response getCatalogue() {
+		return getCatalogue(null, null);
+	}
+    
+    /**
+     * @return The outcome of the task run on an upstream thread, or null if the upstream threads are all busy
+     */
+    private <T> Future<T> fetch(Callable<T> task) {
+    	try {
+    		return upstream.submit(task);
+    	} catch (RestServiceException e) {
+    		log.warning("Catalogue section not fetched: " + e.getMessage());
+    		return null;
+    	}
+    }
+    
+    private <T> TravelCatalogueSection<T> await(Future<List<T>> future, long deadline, String error) {
+    	if(future == null) {
+    		return TravelCatalogueSection.unavailable(error);
+    	}
+    	
+    	try {
+    		return TravelCatalogueSection.available(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+    	} catch (ExecutionException e) {
+    		log.warning(error + ": " + e.getCause());
+    	} catch (TimeoutException e) {
+    		//left to finish, so it still fills the catalogue cache for the next request
+    		future.cancel(false);
+    		log.warning(error + ": no response within " + CATALOGUE_TIMEOUT + "ms");
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	return TravelCatalogueSection.unavailable(error);
+    }
+    
+    /**
+     * <p>Return all the TravelAgentBookings, sorted by id, in pages of at most <code>limit</code> bookings.</p>
+     *
+     * <p>If there are more bookings, the response has a <code>Link</code> header to the next page, see {@link Keyset}.</p>
+     */
     @GET
     @Path("/bookings")
-    @ApiOperation(value = "Fetch all TravelAgentBookings", notes = "Returns a JSON array of all stored TravelAgentBooking objects.")
+    @ApiOperation(value = "Fetch all TravelAgentBookings", notes = "Returns a JSON array of stored TravelAgentBooking objects, sorted by id. "
+    		+ "The link to the next page, if any, is in the Link header.")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Bookings retrieved successfuly"),
+            @ApiResponse(code = 400, message = "Invalid limit or cursor supplied"),
             @ApiResponse(code = 404, message = "Specified customer not found")
     })
 	public Response getBookings(@ApiParam(value = "id of customer", allowableValues = "range[0, infinity]", required = false)
-	@QueryParam("customer") Long customerId) {
+	@QueryParam("customer") Long customerId,
+	@ApiParam(value = "Maximum number of bookings to return", allowableValues = "range[1, infinity]", required = false)
+	@QueryParam("limit") Integer limit,
+	@ApiParam(value = "Cursor from the Link header of the previous page", required = false)
+	@QueryParam("after") String after,
+	@ApiParam(hidden = true) @Context UriInfo uriInfo) {
+    	int max = Keyset.limit(limit);
+    	Object[] key = Keyset.decode(after, Long.class);
+    	
+    	Customer customer = null;
+    	if(customerId != null && (customer = customerService.findById(customerId)) == null) {
+    		throw new RestServiceException("Customer not found!", Response.Status.NOT_FOUND);
+    	}
+    	
+    	List<TravelAgentBooking> bookings = travelAgentService.findPage(customer, key == null ? null : (Long) key[0], max + 1);
+    	
+    	return Keyset.page(bookings, max, uriInfo, new Function<TravelAgentBooking, Object[]>() {
+    		@Override
+    		public Object[] apply(TravelAgentBooking booking) {
+    			return new Object[] {booking.getId()};
+    		}
+    	});
+	}
+    
+    /**
+     * <p>Return all the TravelAgentBookings, optionally of one customer, without paging. Only for use within the
+     * application.</p>
+     */
+	public Response getBookings(Long customerId) {
     	List<TravelAgentBooking> bookings = new ArrayList<TravelAgentBooking>();
     	
     	if(customerId != null) {
@@ -209,10 +450,11 @@ public class TravelAgentRestService {
     
     @DELETE
     @Path("/bookings/{id:[0-9]+}")
-    @ApiOperation(value = "Delete TravelAgentBooking by id", notes = "Removes a TravelAgentBooking object with specified id from database")
+    @ApiOperation(value = "Delete TravelAgentBooking by id", notes = "Removes a TravelAgentBooking object with specified id from database, "
+    		+ "the hotel and taxi bookings are cancelled in the background")
     @ApiResponses(value = {
             @ApiResponse(code = 204, message = "TravelAgentBooking successfuly deleted"),
-            @ApiResponse(code = 400, message = "Could not delete TravelAgentBooking, either local or remote issue"),
+            @ApiResponse(code = 400, message = "Could not delete TravelAgentBooking"),
             @ApiResponse(code = 404, message = "TravelAgentBooking with id not found"),
             @ApiResponse(code = 500, message = "An unexpected error occurred whilst processing the request")
     })
@@ -228,24 +470,16 @@ public class TravelAgentRestService {
     	if(id != null && (travelAgentBooking = travelAgentService.findById(id)) != null) {
     		try {
 	    		try {
+	    			//remove local bookings first, in a transaction which doesn't wait for the external services
+	    			//if this fails, we will rollback transaction and remote bookings will still be intact
 	    			userTransaction.begin();
 	    			
-	    			//try to remove local bookings first
-	    			//if this fails, we will rollback transaction and remote bookings will still be intact
 	    			if(travelAgentService.delete(travelAgentBooking) == null) {
 	    				throw new RestServiceException("Flight booking could not be deleted");
 	    			}
 	    			
-	    			//next try to remove remote bookings
-	    			//if this fails, we will recover local transaction
-	    			hotelBookingService = ProxyFactory.create(HotelBookingService.class, HOTEL_SERVICE_URL);
-	    			taxiBookingService = ProxyFactory.create(TaxiBookingService.class, TAXI_SERVICE_URL);
-	    			
-	    			deleteExternalBookings(travelAgentBooking.getHotelBookingId(), travelAgentBooking.getTaxiBookingId());
-	    			
-	    			builder = Response.noContent();
-	    			
 	    			userTransaction.commit();
+	    			builder = Response.noContent();
 	    		} catch (RestServiceException e) {
 	    			
 	    			//rollback and rethrow the exception
@@ -259,6 +493,10 @@ public class TravelAgentRestService {
     		} catch (SystemException e) { //this will catch exceptions related to userTransaction.rollback()
     			throw new RestServiceException(e);
     		}
+    		
+    		//the local booking is gone, so the remote ones are cancelled like those of a failed booking
+    		cancelExternalBookings(travelAgentBooking.getHotelBookingId(), travelAgentBooking.getTaxiBookingId(),
+    				"TravelAgentBooking " + id + " deleted");
     	} else {
     		throw new RestServiceException("No Booking with the id " + id + " was found!", Response.Status.NOT_FOUND);
     	}
@@ -276,9 +514,26 @@ public class TravelAgentRestService {
             @ApiResponse(code = 500, message = "An unexpected error occurred whilst processing the request")
     })
     public Response createBooking(@ApiParam(value = "JSON representation of TravelAgentBooking object to be added to the database", required = true) 
-    	TravelAgentBooking booking) {
+    	final TravelAgentBooking booking,
+    	@ApiParam(value = "Unique key of this request, a retry with the same key gets the original response", required = false)
+    	@HeaderParam(IdempotencyStore.KEY_HEADER) String idempotencyKey) {
     	
-    	Response.ResponseBuilder builder;
+    	return idempotency.execute("POST /travelagent/bookings", idempotencyKey, booking, new Callable<Response>() {
+			@Override
+			public Response call() {
+				return createBooking(booking);
+			}
+		});
+    }
+    
+    /**
+     * <p>Creates the flight booking locally and the hotel and taxi bookings at the external services, all or nothing.</p>
+     *
+     * <p>No transaction is open while the external services are called. The flight is first held by a PENDING booking,
+     * written in a short transaction of its own, and once both external bookings are made, the hold is confirmed in a
+     * second short transaction. If anything fails, the hold is released and the external bookings are cancelled.</p>
+     */
+    public Response createBooking(TravelAgentBooking booking) {
     	
     	HotelBooking hotelBooking = null;
     	TaxiBooking taxiBooking = null;
@@ -286,134 +541,211 @@ public class TravelAgentRestService {
     	if(booking == null || booking.getFlight() == null || booking.getHotel() == null || booking.getTaxi() == null) {
     		throw new RestServiceException("Invalid/incomplete TravelAgentBooking supplied in request body", Response.Status.BAD_REQUEST);
     	}
-    	 
+    	
+    	//hold the flight first, as it's the only part which can be validated locally
+    	long flightStart = System.nanoTime();
+    	Booking hold = holdFlight(booking);
+    	long flightTime = System.nanoTime() - flightStart;
     	
     	try {
-        	try {
-    			userTransaction.begin();
-    			
-    			//try to create local flight booking first
-    			Booking flightBooking = new Booking(booking.getCustomer(), booking.getFlight(), booking.getBookingDate());
-    			flightBooking = flightBookingService.create(flightBooking);
-    			
-    			//now try to make hotel booking at external service
-    			hotelBooking = new HotelBooking(HOTEL_CUSTOMER, booking.getHotel(), booking.getBookingDate());
-    			hotelBookingService = ProxyFactory.create(HotelBookingService.class, HOTEL_SERVICE_URL);
-    			ClientResponse<HotelBooking> hotelBookingResponse = hotelBookingService.createBooking(hotelBooking);
-    			
-    			//check for exceptions based on the response code
-    			//this will throw corresponding exception, based on the status code
-    			parseResponse(hotelBookingResponse.getResponseStatus(), "Hotel", true);
-    			
-    			//no exceptions thrown yet, so extract an entity
-    			hotelBooking = hotelBookingResponse.getEntity();
-    			
-    			//finally try to make taxi booking at external service
-    			taxiBooking = new TaxiBooking(TAXI_CUSTOMER, booking.getTaxi(), booking.getBookingDate());
-    			taxiBookingService = ProxyFactory.create(TaxiBookingService.class, TAXI_SERVICE_URL);
-    			ClientResponse<TaxiBooking> taxiBookingResponse = taxiBookingService.createBooking(taxiBooking);
-    			
-    			//check for exceptions based on the response code
-    			//this will throw corresponding exception, based on the status code
-    			parseResponse(taxiBookingResponse.getResponseStatus(), "Taxi", true);
-    			
-    			//no exceptions thrown yet, so extract an entity
-    			taxiBooking = taxiBookingResponse.getEntity();
-    			
-    			//if it seems like all the commodities have been successfully booked, as they all have id set
-    			if(flightBooking != null && hotelBooking != null && taxiBooking != null &&
-    				flightBooking.getId() != null && hotelBooking.getId() != null && taxiBooking.getId() != null) {
-    			
-    				//just to make sure that the copy cached in the database is exactly the same as the one returned from external provider
-    				booking.setHotel(hotelBooking.getHotel());
-    				booking.setTaxi(taxiBooking.getTaxi());
-					
-					//just save those ids in our own database
-					booking.setFlightBooking(flightBooking);
-					booking.setHotelBookingId(hotelBooking.getId());
-					booking.setTaxiBookingId(taxiBooking.getId());
-					
-					//add travelagentbooking to database
-					booking = travelAgentService.create(booking);
-					builder = Response.status(Response.Status.CREATED).entity(booking);
-					
-					//commit transaction
-					userTransaction.commit();
-    			} else {
-    				throw new RestServiceException("Unexpected error occured");
-    			}
-        	} catch (CustomerInvalidException | FlightInvalidException e) { //customer or flight id are not in the database, so can't make booking for them
-        		
-        		// No external bookings shound be made yet, as this exception can happen for internal validations
-        		userTransaction.rollback();
-        		throw new RestServiceException(e.getMessage(), Response.Status.BAD_REQUEST, e);
-        		
-        	} catch (BookingExistsException e) {
-        		
-        		// No external bookings shound be made yet, as this exception can happen only for internal validations
-        		userTransaction.rollback();
-        		throw new RestServiceException(e.getMessage(), Response.Status.CONFLICT, e);
-        		
-        	} catch (ConstraintViolationException e) {
-        		// No external bookings shound be made yet, as this exception can happen only for internal validations
-        		
-                //Handle bean validation issues
-                Map<String, String> responseObj = new HashMap<>();
-                for (ConstraintViolation<?> violation : e.getConstraintViolations()) {
-                    responseObj.put(violation.getPropertyPath().toString(), violation.getMessage());
-                }
-                
-                //roll back transaction and return with exception
-                userTransaction.rollback();
-                throw new RestServiceException("Bad Request", responseObj, Response.Status.BAD_REQUEST, e);
-                
-        	} catch (ClientResponseFailure e) {
-        		//delete other booked services here
-        		try {
-        			deleteExternalBookings(hotelBooking == null ? null : hotelBooking.getId(), taxiBooking == null ? null : taxiBooking.getId());
-        			userTransaction.rollback();
-        		} catch (RestServiceException re) { 
-            		//roll back transaction and rethrow exception
-        			userTransaction.rollback();
-            		throw re;
-        		}
-        		
-        		throw new RestServiceException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR, e);
-        	} catch (RestServiceException e) { //this is the exception thrown by parseResponse method, can just be rethrown as it already has the response status and message set
-        		
-        		//delete other booked services here
-        		try {
-        			deleteExternalBookings(hotelBooking == null ? null : hotelBooking.getId(), taxiBooking == null ? null : taxiBooking.getId());
-        			userTransaction.rollback();
-        		} catch (RestServiceException re) { 
-            		//roll back transaction and rethrow exception
-        			userTransaction.rollback();
-            		throw re;
-        		}
-        		
-        		throw e;
-        		
-        	} catch (Exception e) { //this will catch any exceptions related to userTransaction.begin() and userTransaction.commit()
-        		
-        		//delete other booked services here
-        		try {
-        			deleteExternalBookings(hotelBooking == null ? null : hotelBooking.getId(), taxiBooking == null ? null : taxiBooking.getId());
-        			userTransaction.rollback();
-        		} catch (RestServiceException re) { 
-            		//roll back transaction and rethrow exception
-        			userTransaction.rollback();
-            		throw re;
-        		}
-        		
-        		//roll back transaction and return with exception
-                userTransaction.rollback();
-        		throw new RestServiceException(e);
+			//now dispatch hotel and taxi bookings at external services, so that they are made concurrently
+			ReservationLeg<HotelBooking> hotelLeg = hotelLeg(booking);
+			ReservationLeg<TaxiBooking> taxiLeg = taxiLeg(booking);
+			
+			//both legs are awaited against a single deadline, so the slower one determines the latency, not the sum
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESERVATION_TIMEOUT);
+			RuntimeException failure = null;
+			
+			hotelLeg.dispatch(upstream);
+			try {
+				taxiLeg.dispatch(upstream);
+			} catch (RestServiceException e) {
+				//taxi could not be dispatched, but the hotel may still get booked, so wait for it to compensate it
+				failure = e;
+			}
+			
+			//wait for both legs, even if one fails, so we know exactly which reservations need to be compensated
+			try {
+				hotelBooking = hotelLeg.await(deadline);
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			try {
+				taxiBooking = taxiLeg.await(deadline);
+			} catch (RuntimeException e) {
+				if(failure == null) {
+					failure = e;
+				}
+			}
+			
+			if(failure != null) {
+				throw failure;
+			}
+			
+			if(hotelBooking == null || taxiBooking == null || hotelBooking.getId() == null || taxiBooking.getId() == null) {
+				throw new RestServiceException("Unexpected error occured");
 			}
+			
+			//just to make sure that the copy cached in the database is exactly the same as the one returned from external provider
+			booking.setHotel(hotelBooking.getHotel());
+			booking.setTaxi(taxiBooking.getTaxi());
+			booking.setHotelBookingId(hotelBooking.getId());
+			booking.setTaxiBookingId(taxiBooking.getId());
+			
+			long confirmStart = System.nanoTime();
+			booking = confirmBooking(booking, hold);
+			long confirmTime = System.nanoTime() - confirmStart;
+			
+			Response.ResponseBuilder builder = Response.status(Response.Status.CREATED).entity(booking);
+			
+			//report how long each of the legs took, so the effect of making them concurrently can be seen,
+			//and how long a transaction was open in total, which is how long a database connection was in use
+			builder.header("Server-Timing", ReservationLeg.serverTiming("flight", flightTime) + ", " +
+					hotelLeg.serverTiming() + ", " + taxiLeg.serverTiming() + ", " +
+					ReservationLeg.serverTiming("confirm", confirmTime) + ", " +
+					ReservationLeg.serverTiming("tx", flightTime + confirmTime));
+			
+			return builder.build();
+			
+    	} catch (ClientResponseFailure e) {
+    		//cancel other booked services
+    		releaseAndCompensate(hold, hotelBooking, taxiBooking, e);
+    		throw new RestServiceException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR, e);
+    		
+    	} catch (RestServiceException e) { //this is the exception thrown by parseResponse method, can just be rethrown as it already has the response status and message set
+    		
+    		//cancel other booked services
+    		releaseAndCompensate(hold, hotelBooking, taxiBooking, e);
+    		throw e;
+    		
+    	} catch (RuntimeException e) {
+    		
+    		//cancel other booked services and return with exception
+    		releaseAndCompensate(hold, hotelBooking, taxiBooking, e);
+    		throw new RestServiceException(e);
+		}
+    }
+    
+    /**
+     * <p>Holds the flight of the booking with a PENDING flight booking, in a transaction of its own.</p>
+     *
+     * <p>The hold expires after {@link #HOLD_TIMEOUT}, so it doesn't take the seat for good if this request gets lost.</p>
+     */
+    private Booking holdFlight(TravelAgentBooking booking) {
+    	Booking flightBooking = new Booking(booking.getCustomer(), booking.getFlight(), booking.getBookingDate());
+    	Date expires = new Date(System.currentTimeMillis() + HOLD_TIMEOUT);
+    	
+    	try {
+    		userTransaction.begin();
+    		flightBooking = flightBookingService.hold(flightBooking, expires);
+    		userTransaction.commit();
+    		return flightBooking;
+    		
+    	} catch (CustomerInvalidException | FlightInvalidException e) { //customer or flight id are not in the database, so can't make booking for them
+    		rollback();
+    		throw new RestServiceException(e.getMessage(), Response.Status.BAD_REQUEST, e);
+    		
+    	} catch (BookingExistsException e) {
+    		rollback();
+    		throw new RestServiceException(e.getMessage(), Response.Status.CONFLICT, e);
+    		
+    	} catch (ConstraintViolationException e) {
+            //Handle bean validation issues
+            Map<String, String> responseObj = new HashMap<>();
+            for (ConstraintViolation<?> violation : e.getConstraintViolations()) {
+                responseObj.put(violation.getPropertyPath().toString(), violation.getMessage());
+            }
+            
+            rollback();
+            throw new RestServiceException("Bad Request", responseObj, Response.Status.BAD_REQUEST, e);
+            
+    	} catch (Exception e) { //this will catch any exceptions related to userTransaction.begin() and userTransaction.commit()
+    		rollback();
+    		throw new RestServiceException(e);
+    	}
+    }
+    
+    /**
+     * <p>Confirms the flight hold and saves the booking, in a transaction of its own.</p>
+     */
+    private TravelAgentBooking confirmBooking(TravelAgentBooking booking, Booking hold) {
+    	try {
+    		userTransaction.begin();
+    		
+    		Booking flightBooking = flightBookingService.confirmHold(hold.getId());
+    		if(flightBooking == null) {
+    			throw new RestServiceException("Flight booking hold expired before the external bookings were made", Response.Status.SERVICE_UNAVAILABLE);
+    		}
+    		
+    		//just save those ids in our own database
+    		booking.setFlightBooking(flightBooking);
+    		booking = travelAgentService.create(booking);
+    		
+    		userTransaction.commit();
+    		return booking;
+    		
+    	} catch (RestServiceException e) {
+    		rollback();
+    		throw e;
+    		
+    	} catch (Exception e) { //this will catch any exceptions related to userTransaction.begin() and userTransaction.commit()
+    		rollback();
+    		throw new RestServiceException(e);
+    	}
+    }
+    
+    /**
+     * <p>Rolls back the transaction of this request, if there is one.</p>
+     */
+    private void rollback() {
+    	try {
+    		if(userTransaction.getStatus() != Status.STATUS_NO_TRANSACTION) {
+    			userTransaction.rollback();
+    		}
     	} catch (SystemException e) {
     		throw new RestServiceException(e);
     	}
+    }
+    
+    @POST
+    @Path("/async/bookings")
+    @ApiOperation(value = "Add a new TravelAgentBooking to the database, without holding a request thread",
+    	notes = "Behaves exactly like POST /travelagent/bookings, but the request thread is released while the external bookings are made.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 201, message = "TravelAgentBooking created successfully."),
+            @ApiResponse(code = 400, message = "Invalid information supplied in request body"),
+            @ApiResponse(code = 409, message = "Resource conflicts with another existing resource"),
+            @ApiResponse(code = 500, message = "An unexpected error occurred whilst processing the request"),
+            @ApiResponse(code = 503, message = "Booking did not complete in time")
+    })
+    public void createBookingAsync(@ApiParam(value = "JSON representation of TravelAgentBooking object to be added to the database", required = true) 
+    	TravelAgentBooking booking,
+    	@ApiParam(value = "Unique key of this request, a retry with the same key gets the original response", required = false)
+    	@HeaderParam(IdempotencyStore.KEY_HEADER) String idempotencyKey,
+    	@ApiParam(hidden = true) @Suspend(ASYNC_TIMEOUT) AsynchronousResponse response) {
     	
-    	return builder.build();
+    	//returns straight away, the response is resumed by the dispatcher once the booking is done
+    	dispatcher.createBooking(booking, idempotencyKey, response);
+    }
+    
+    @DELETE
+    @Path("/async/bookings/{id:[0-9]+}")
+    @ApiOperation(value = "Delete TravelAgentBooking by id, without holding a request thread",
+    	notes = "Behaves exactly like DELETE /travelagent/bookings/{id}, but the request thread is released while the external bookings are removed.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 204, message = "TravelAgentBooking successfuly deleted"),
+            @ApiResponse(code = 400, message = "Could not delete TravelAgentBooking, either local or remote issue"),
+            @ApiResponse(code = 404, message = "TravelAgentBooking with id not found"),
+            @ApiResponse(code = 500, message = "An unexpected error occurred whilst processing the request"),
+            @ApiResponse(code = 503, message = "Removal did not complete in time")
+    })
+    public void deleteBookingAsync(
+    		@ApiParam(value = "Id of TravelAgentBooking to be deleted", allowableValues = "range[0, infinity]", required = true)
+            @PathParam("id")
+            Long id,
+            @ApiParam(hidden = true) @Suspend(ASYNC_TIMEOUT) AsynchronousResponse response) {
+    	
+    	dispatcher.deleteBooking(id, response);
     }
     
     private void parseResponse(Response.Status status, String type, boolean create) throws RestServiceException {
@@ -447,15 +779,438 @@ public class TravelAgentRestService {
 		}
     }
     
+    @GET
+    @Path("/compensations")
+    @ApiOperation(value = "Fetch compensations of failed TravelAgentBookings",
+    	notes = "Returns a JSON array of the external bookings which are waiting to be cancelled (PENDING), or which could not be cancelled at all (DEAD).")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Compensations retrieved successfuly")
+    })
+    public Response getCompensations(@ApiParam(value = "status of compensations, PENDING and DEAD if not specified", allowableValues = "PENDING, DONE, DEAD", required = false)
+    	@QueryParam("status") List<Compensation.Status> statuses) {
+    	
+    	if(statuses == null || statuses.isEmpty()) {
+    		statuses = Arrays.asList(Compensation.Status.PENDING, Compensation.Status.DEAD);
+    	}
+    	
+    	return Response.ok(journal.findByStatus(statuses)).build();
+    }
+    
+    @POST
+    @Path("/bookings/batch")
+    @ApiOperation(value = "Add many TravelAgentBookings at once",
+    	notes = "Takes a JSON array of TravelAgentBookings and returns a JSON array with the outcome of each of them, in the same order. "
+    		+ "With mode=atomic (the default) either all the bookings are made, or none of them. With mode=best-effort each booking is made, or fails, on its own.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 201, message = "All the TravelAgentBookings were created successfully."),
+            @ApiResponse(code = 207, message = "Some of the TravelAgentBookings could not be created (best-effort only), see the status of each"),
+            @ApiResponse(code = 400, message = "Invalid batch, or invalid TravelAgentBooking in an atomic batch"),
+            @ApiResponse(code = 409, message = "TravelAgentBooking of an atomic batch conflicts with another existing resource"),
+            @ApiResponse(code = 500, message = "An unexpected error occurred whilst processing the request")
+    })
+    public Response createBookings(
+    		@ApiParam(value = "atomic or best-effort", allowableValues = "atomic, best-effort", required = false)
+    		@QueryParam("mode") @DefaultValue("atomic") String mode,
+    		@ApiParam(value = "JSON array of TravelAgentBooking objects to be added to the database", required = true)
+    		List<TravelAgentBooking> bookings) {
+    	
+    	boolean atomic = "atomic".equals(mode);
+    	if(!atomic && !"best-effort".equals(mode)) {
+    		throw new RestServiceException("Batch mode must be either atomic or best-effort", Response.Status.BAD_REQUEST);
+    	}
+    	if(bookings == null || bookings.isEmpty()) {
+    		throw new RestServiceException("No TravelAgentBookings supplied in request body", Response.Status.BAD_REQUEST);
+    	}
+    	if(bookings.size() > BATCH_MAX_SIZE) {
+    		throw new RestServiceException("At most " + BATCH_MAX_SIZE + " TravelAgentBookings can be made at once", Response.Status.BAD_REQUEST);
+    	}
+    	
+    	List<TravelAgentBatchResult> results = new ArrayList<TravelAgentBatchResult>();
+    	List<BatchItem> items = new ArrayList<BatchItem>();
+    	List<Booking> flightBookings = new ArrayList<Booking>();
+    	
+    	for(int i = 0, size = bookings.size(); i < size; i++) {
+    		TravelAgentBooking booking = bookings.get(i);
+    		TravelAgentBatchResult result = new TravelAgentBatchResult(i);
+    		results.add(result);
+    		
+    		if(booking == null || booking.getFlight() == null || booking.getHotel() == null || booking.getTaxi() == null) {
+    			result.failed(400, "Invalid/incomplete TravelAgentBooking supplied in request body", null);
+    		} else {
+    			BatchItem item = new BatchItem(booking, result);
+    			items.add(item);
+    			flightBookings.add(item.flightBooking);
+    		}
+    	}
+    	
+    	//validate all the flight bookings in one go, before anything is reserved
+    	Map<Integer, ValidationException> invalid = flightBookingService.validateAll(flightBookings);
+    	for(Map.Entry<Integer, ValidationException> entry : invalid.entrySet()) {
+    		fail(items.get(entry.getKey()).result, entry.getValue());
+    	}
+    	
+    	List<BatchItem> valid = new ArrayList<BatchItem>();
+    	for(BatchItem item : items) {
+    		if(item.result.getStatus() == 0) {
+    			valid.add(item);
+    		}
+    	}
+    	
+    	if(atomic && valid.size() < results.size()) {
+    		//nothing has been reserved yet, so there is nothing to undo
+    		for(BatchItem item : valid) {
+    			item.result.failed(TravelAgentBatchResult.FAILED_DEPENDENCY, "Not made, because another TravelAgentBooking of the batch failed", null);
+    		}
+    		return batchResponse(results, true);
+    	}
+    	
+    	reserveAll(valid, atomic);
+    	
+    	if(atomic) {
+    		createAll(valid);
+    	} else {
+    		for(BatchItem item : valid) {
+    			if(item.result.getStatus() == 0) {
+    				createAll(Collections.singletonList(item));
+    			}
+    		}
+    	}
+    	
+    	return batchResponse(results, atomic);
+    }
+    
+    /**
+     * <p>Makes the external reservations of the batch, keeping at most {@link #BATCH_CONCURRENCY} bookings in flight.</p>
+     *
+     * <p>Bookings are awaited in the order they were dispatched, and a new one is dispatched as soon as the oldest one
+     * completes. In an atomic batch, nothing more is dispatched once a booking fails, and all the reservations are
+     * cancelled.</p>
+     */
+    private void reserveAll(List<BatchItem> items, boolean atomic) {
+    	Deque<BatchItem> inFlight = new ArrayDeque<BatchItem>();
+    	boolean failed = false;
+    	
+    	for(BatchItem item : items) {
+    		if(inFlight.size() >= BATCH_CONCURRENCY) {
+    			failed |= !awaitReservations(inFlight.poll());
+    		}
+    		if(atomic && failed) {
+    			break;
+    		}
+    		
+    		item.hotelLeg = hotelLeg(item.booking);
+    		item.taxiLeg = taxiLeg(item.booking);
+    		item.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESERVATION_TIMEOUT);
+    		try {
+    			item.hotelLeg.dispatch(upstream);
+    			item.taxiLeg.dispatch(upstream);
+    		} catch (RestServiceException e) {
+    			//whatever was dispatched is still awaited, so it can be compensated
+    			fail(item.result, e);
+    		}
+    		inFlight.add(item);
+    	}
+    	
+    	while(!inFlight.isEmpty()) {
+    		failed |= !awaitReservations(inFlight.poll());
+    	}
+    	
+    	List<BatchItem> compensated = new ArrayList<BatchItem>();
+    	for(BatchItem item : items) {
+    		if(atomic && failed && item.result.getStatus() == 0) {
+    			item.result.failed(TravelAgentBatchResult.FAILED_DEPENDENCY, "Not made, because another TravelAgentBooking of the batch failed", null);
+    		}
+    		if(item.result.getStatus() != 0) {
+    			compensated.add(item);
+    		}
+    	}
+    	compensate(compensated, "TravelAgentBooking batch failed");
+    }
+    
+    /**
+     * @return false if any of the reservations failed
+     */
+    private boolean awaitReservations(BatchItem item) {
+    	try {
+    		item.hotelBooking = item.hotelLeg.await(item.deadline);
+    	} catch (RuntimeException e) {
+    		if(item.result.getStatus() == 0) {
+    			fail(item.result, e);
+    		}
+    	}
+    	try {
+    		item.taxiBooking = item.taxiLeg.await(item.deadline);
+    	} catch (RuntimeException e) {
+    		if(item.result.getStatus() == 0) {
+    			fail(item.result, e);
+    		}
+    	}
+    	return item.result.getStatus() == 0;
+    }
+    
+    /**
+     * <p>Writes the bookings, whose external reservations have all been made, in a single transaction.</p>
+     *
+     * <p>If a booking can't be written, it gets its error and the others FAILED_DEPENDENCY. A failure on commit can't
+     * be put down to one booking, so it's the error of them all.</p>
+     */
+    private void createAll(List<BatchItem> items) {
+    	//the item being written when the failure happened, if any
+    	BatchItem failing = null;
+    	
+    	try {
+    		userTransaction.begin();
+    		
+    		for(BatchItem item : items) {
+    			failing = item;
+    			TravelAgentBooking booking = item.booking;
+    			Booking flightBooking = flightBookingService.createValidated(item.flightBooking);
+    			
+    			booking.setHotel(item.hotelBooking.getHotel());
+    			booking.setTaxi(item.taxiBooking.getTaxi());
+    			booking.setFlightBooking(flightBooking);
+    			booking.setHotelBookingId(item.hotelBooking.getId());
+    			booking.setTaxiBookingId(item.taxiBooking.getId());
+    			travelAgentService.create(booking);
+    		}
+    		
+    		failing = null;
+    		userTransaction.commit();
+    		
+    		for(BatchItem item : items) {
+    			item.result.succeeded(item.booking);
+    		}
+    	} catch (Exception e) {
+    		//the transaction is already gone if it's the commit which failed
+    		try {
+    			rollback();
+    		} finally {
+    			for(BatchItem item : items) {
+    				if(failing == null || item == failing) {
+    					fail(item.result, e);
+    				} else {
+    					item.result.failed(TravelAgentBatchResult.FAILED_DEPENDENCY, "Not made, because another TravelAgentBooking of the batch failed", null);
+    				}
+    			}
+    			compensate(items, "TravelAgentBooking could not be saved");
+    		}
+    	}
+    }
+    
+    /**
+     * <p>Journals the cancellation of all the external reservations made for the items.</p>
+     */
+    private void compensate(List<BatchItem> items, String reason) {
+    	boolean compensating = false;
+    	
+    	for(BatchItem item : items) {
+    		compensating |= journal(item.hotelBooking == null ? null : item.hotelBooking.getId(),
+    				item.taxiBooking == null ? null : item.taxiBooking.getId(), reason);
+    	}
+    	
+    	if(compensating) {
+    		replayer.replayAsync();
+    	}
+    }
+    
+    /**
+     * <p>Sets the status and error of a result, the same way a single booking would have failed.</p>
+     */
+    private void fail(TravelAgentBatchResult result, Exception e) {
+    	if(e instanceof ConstraintViolationException) {
+    		Map<String, String> reasons = new HashMap<>();
+    		for (ConstraintViolation<?> violation : ((ConstraintViolationException) e).getConstraintViolations()) {
+    			reasons.put(violation.getPropertyPath().toString(), violation.getMessage());
+    		}
+    		result.failed(Response.Status.BAD_REQUEST.getStatusCode(), "Bad Request", reasons);
+    	} else if(e instanceof CustomerInvalidException || e instanceof FlightInvalidException) {
+    		result.failed(Response.Status.BAD_REQUEST.getStatusCode(), e.getMessage(), null);
+    	} else if(e instanceof BookingExistsException) {
+    		result.failed(Response.Status.CONFLICT.getStatusCode(), e.getMessage(), null);
+    	} else if(e instanceof RestServiceException) {
+    		RestServiceException re = (RestServiceException) e;
+    		result.failed(re.getStatus().getStatusCode(), re.getMessage(), re.getReasons());
+    	} else {
+    		result.failed(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), e.getMessage(), null);
+    	}
+    }
+    
+    private Response batchResponse(List<TravelAgentBatchResult> results, boolean atomic) {
+    	int status = Response.Status.CREATED.getStatusCode();
+    	
+    	for(TravelAgentBatchResult result : results) {
+    		if(!result.isSuccessful() && result.getStatus() != TravelAgentBatchResult.FAILED_DEPENDENCY) {
+    			//an atomic batch fails like its first failed booking, a best-effort one reports mixed results
+    			status = atomic ? result.getStatus() : MULTI_STATUS;
+    			break;
+    		}
+    	}
+    	
+    	return Response.status(status).entity(results).build();
+    }
+    
+    /**
+     * <p>Releases the flight hold and makes sure the external bookings made so far get cancelled.</p>
+     *
+     * <p>The cancellations are recorded in the {@link CompensationJournal} (in its own transaction) first, and carried
+     * out in the background, so the client doesn't wait for them. A hold which can't be released is left for the
+     * {@link BookingHoldReaper} to expire.</p>
+     */
+    private void releaseAndCompensate(Booking hold, HotelBooking hotelBooking, TaxiBooking taxiBooking, Exception cause) {
+    	boolean compensating = journal(hotelBooking == null ? null : hotelBooking.getId(), taxiBooking == null ? null : taxiBooking.getId(),
+    			"TravelAgentBooking failed: " + cause.getMessage());
+    	
+    	try {
+    		userTransaction.begin();
+    		flightBookingService.releaseHold(hold.getId());
+    		userTransaction.commit();
+    	} catch (Exception e) {
+    		rollback();
+    		log.warning("Could not release flight booking hold " + hold.getId() + ", leaving it to expire: " + e.getMessage());
+    	}
+    	
+    	if(compensating) {
+    		replayer.replayAsync();
+    	}
+    }
+    
+    /**
+     * <p>Makes sure the external bookings get cancelled, in the background like those of a failed booking.</p>
+     */
+    private void cancelExternalBookings(Long hotelBookingId, Long taxiBookingId, String reason) {
+    	if(journal(hotelBookingId, taxiBookingId, reason)) {
+    		replayer.replayAsync();
+    	}
+    }
+    
+    /**
+     * <p>Records the external bookings in the {@link CompensationJournal}, or cancels them straight away if the journal
+     * can't be written.</p>
+     *
+     * @return true if the cancellations were journaled and are left to the {@link CompensationReplayer}
+     */
+    private boolean journal(Long hotelBookingId, Long taxiBookingId, String reason) {
+    	try {
+    		return journalCancellations(hotelBookingId, taxiBookingId, reason);
+    	} catch (RuntimeException e) {
+    		//journal can't be written, so fall back to cancelling straight away
+    		try {
+    			deleteExternalBookings(hotelBookingId, taxiBookingId);
+    		} catch (RestServiceException re) {
+    			log.severe("Could not cancel external bookings " + hotelBookingId + ", " + taxiBookingId + ": " + re.getMessage());
+    		}
+    		return false;
+    	}
+    }
+    
+    /**
+     * <p>Records the external bookings which were made in the {@link CompensationJournal}.</p>
+     *
+     * @return true if there was anything to cancel
+     */
+    private boolean journalCancellations(Long hotelBookingId, Long taxiBookingId, String reason) {
+    	boolean compensating = false;
+    	
+    	if(hotelBookingId != null) {
+    		journal.record(Compensation.Service.HOTEL, hotelBookingId, reason);
+    		compensating = true;
+    	}
+    	if(taxiBookingId != null) {
+    		journal.record(Compensation.Service.TAXI, taxiBookingId, reason);
+    		compensating = true;
+    	}
+    	
+    	return compensating;
+    }
+    
+    private ReservationLeg<HotelBooking> hotelLeg(TravelAgentBooking booking) {
+    	final HotelBookingService hotels = clients.getHotelBookingService();
+    	final HotelBooking hotelRequest = new HotelBooking(HOTEL_CUSTOMER, booking.getHotel(), booking.getBookingDate());
+    	
+    	return new ReservationLeg<HotelBooking>("hotel") {
+    		@Override
+    		protected HotelBooking reserve() {
+    			ClientResponse<HotelBooking> response = hotels.createBooking(hotelRequest);
+    			
+    			try {
+    				//check for exceptions based on the response code
+    				//this will throw corresponding exception, based on the status code
+    				parseResponse(response.getResponseStatus(), "Hotel", true);
+    				
+    				//no exceptions thrown yet, so extract an entity
+    				return response.getEntity();
+    			} finally {
+    				response.releaseConnection();
+    			}
+    		}
+    		
+    		@Override
+    		protected void release(HotelBooking reservation) {
+    			journal.record(Compensation.Service.HOTEL, reservation.getId(), "HotelBooking completed after the TravelAgentBooking timed out");
+    			replayer.replayAsync();
+    		}
+    	};
+    }
+    
+    private ReservationLeg<TaxiBooking> taxiLeg(TravelAgentBooking booking) {
+    	final TaxiBookingService taxis = clients.getTaxiBookingService();
+    	final TaxiBooking taxiRequest = new TaxiBooking(TAXI_CUSTOMER, booking.getTaxi(), booking.getBookingDate());
+    	
+    	return new ReservationLeg<TaxiBooking>("taxi") {
+    		@Override
+    		protected TaxiBooking reserve() {
+    			ClientResponse<TaxiBooking> response = taxis.createBooking(taxiRequest);
+    			
+    			try {
+    				parseResponse(response.getResponseStatus(), "Taxi", true);
+    				return response.getEntity();
+    			} finally {
+    				response.releaseConnection();
+    			}
+    		}
+    		
+    		@Override
+    		protected void release(TaxiBooking reservation) {
+    			journal.record(Compensation.Service.TAXI, reservation.getId(), "TaxiBooking completed after the TravelAgentBooking timed out");
+    			replayer.replayAsync();
+    		}
+    	};
+    }
+    
     private void deleteExternalBookings(Long hotelBookingId, Long taxiBookingId) throws RestServiceException {
-    	if(hotelBookingId != null && hotelBookingService != null) {
-    		ClientResponse<Void> response = hotelBookingService.deleteBookingById(hotelBookingId);
+    	if(hotelBookingId != null) {
+    		ClientResponse<Void> response = clients.getHotelBookingService().deleteBookingById(hotelBookingId);
+    		//nothing is read from a delete response, so the connection has to be handed back to the pool explicitly
+    		response.releaseConnection();
     		parseResponse(response.getResponseStatus(), "Hotel", false);
     	}
     	
-    	if(taxiBookingId != null && taxiBookingService != null) {
-    		ClientResponse<Void> response = taxiBookingService.deleteBookingById(taxiBookingId);
-    		parseResponse(response.getResponseStatus(), "Hotel", false);
+    	if(taxiBookingId != null) {
+    		ClientResponse<Void> response = clients.getTaxiBookingService().deleteBookingById(taxiBookingId);
+    		response.releaseConnection();
+    		parseResponse(response.getResponseStatus(), "Taxi", false);
+    	}
+    }
+    
+    /**
+     * <p>State of one booking while its batch is being processed.</p>
+     */
+    private static class BatchItem {
+    	final TravelAgentBooking booking;
+    	final Booking flightBooking;
+    	final TravelAgentBatchResult result;
+    	
+    	ReservationLeg<HotelBooking> hotelLeg;
+    	ReservationLeg<TaxiBooking> taxiLeg;
+    	long deadline;
+    	
+    	HotelBooking hotelBooking;
+    	TaxiBooking taxiBooking;
+    	
+    	BatchItem(TravelAgentBooking booking, TravelAgentBatchResult result) {
+    		this.booking = booking;
+    		this.flightBooking = new Booking(booking.getCustomer(), booking.getFlight(), booking.getBookingDate());
+    		this.result = result;
     	}
     }
 }
@@ -3,11 +3,15 @@ package org.jboss.quickstarts.wfk.travelagent;
 import java.util.List;
 import javax.inject.Inject;
 import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.util.ResponseCache;
 
 public class TravelAgentService {
 	@Inject
 	TravelAgentRepository crud;
 	
+	@Inject
+	ResponseCache responses;
+	
 	/**
 	 * <p>requests information about flight so we have meaningful output</p>
 	 * @param booking TravelAgentBooking
@@ -58,6 +62,22 @@ public class TravelAgentService {
         return bookings;
     }
     
+    /**
+     * <p>Returns a page of persisted {@link TravelAgentBooking} objects, sorted by id, which come after the given id.</p>
+     *
+     * @param customer The Customer whose TravelAgentBookings to return, or null for the TravelAgentBookings of all Customers
+     * @param id The id of the last TravelAgentBooking of the previous page, or null for the first page
+     * @param max The maximum number of TravelAgentBookings to return
+     * @return List of TravelAgentBooking objects
+     */
+    public List<TravelAgentBooking> findPage(Customer customer, Long id, int max) {
+        List<TravelAgentBooking> bookings = crud.findPage(customer, id, max);
+        for(TravelAgentBooking booking : bookings) {
+        	loadBooking(booking);
+        }
+        return bookings;
+    }
+    
     
     /**
      * <p>Writes the provided TravelAgentBooking object to the application database.<p/>
@@ -67,6 +87,9 @@ public class TravelAgentService {
      * @throws Exception
      */
     public TravelAgentBooking create(TravelAgentBooking booking) throws Exception {
+        //the flight Booking may be written along with it
+        responses.invalidate(ResponseCache.BOOKINGS);
+        
         // Write the booking to the database.
         return crud.create(booking);
     }
@@ -78,6 +101,11 @@ public class TravelAgentService {
      * @return The TravelAgentBooking object that has been successfully removed from the application database; or null
      */
     public TravelAgentBooking delete(TravelAgentBooking booking) {
-        return crud.delete(booking);
+        TravelAgentBooking deleted = crud.delete(booking);
+        if(deleted != null) {
+        	//the flight Booking is removed along with it, as an orphan, without BookingService seeing it
+        	responses.invalidate(ResponseCache.BOOKINGS);
+        }
+        return deleted;
     }
 }
@@ -0,0 +1,146 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.hotel.Hotel;
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.util.RefreshingCache;
+import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.Settings;
+import org.jboss.quickstarts.wfk.util.UpstreamClients;
+import org.jboss.quickstarts.wfk.util.UpstreamExecutor;
+import org.jboss.quickstarts.wfk.util.Validators;
+import org.jboss.resteasy.client.ClientResponse;
+import org.jboss.resteasy.client.ClientResponseFailure;
+
+/**
+ * <p>Cached catalogues of the hotels and taxis offered by the external services.</p>
+ *
+ * <p>The catalogues hardly ever change, but are requested on every page load of the travel agent, so they are kept in
+ * a {@link RefreshingCache} rather than fetched from the upstream service each time. The TTL, how long before expiry
+ * they get refreshed, how long stale catalogues may be served and how long to wait after a failed refresh can be set
+ * with the <code>travelagent.catalogue.ttl</code>, <code>travelagent.catalogue.refresh-ahead</code>,
+ * <code>travelagent.catalogue.max-stale</code> and <code>travelagent.catalogue.retry-delay</code> settings (in
+ * milliseconds).</p>
+ *
+ * @author Jakub Gawron
+ */
+@ApplicationScoped
+public class TravelCatalogue implements MetricSource {
+	
+	@Inject
+	UpstreamClients clients;
+	
+	@Inject
+	UpstreamExecutor upstream;
+	
+	private RefreshingCache<List<Hotel>> hotels;
+	private RefreshingCache<List<Taxi>> taxis;
+	
+	@PostConstruct
+	void start() {
+		long ttl = Settings.getLong("travelagent.catalogue.ttl", 60000);
+		long refreshAhead = Settings.getLong("travelagent.catalogue.refresh-ahead", 10000);
+		long maxStale = Settings.getLong("travelagent.catalogue.max-stale", 600000);
+		long retryDelay = Settings.getLong("travelagent.catalogue.retry-delay", 5000);
+		
+		hotels = new RefreshingCache<List<Hotel>>("hotels", new Callable<List<Hotel>>() {
+			@Override
+			public List<Hotel> call() {
+				ClientResponse<List<Hotel>> response = clients.getHotelService().getHotels();
+				
+				try {
+					return Collections.unmodifiableList(response.getEntity());
+				} catch (ClientResponseFailure e) {
+					throw new RestServiceException("External Hotel resource is currently unavailable", Response.Status.INTERNAL_SERVER_ERROR, e);
+				} finally {
+					response.releaseConnection();
+				}
+			}
+		}, upstream, ttl, refreshAhead, maxStale, retryDelay);
+		
+		taxis = new RefreshingCache<List<Taxi>>("taxis", new Callable<List<Taxi>>() {
+			@Override
+			public List<Taxi> call() {
+				ClientResponse<List<Taxi>> response = clients.getTaxiService().getTaxis();
+				
+				try {
+					return Collections.unmodifiableList(response.getEntity());
+				} catch (ClientResponseFailure e) {
+					throw new RestServiceException("External Taxi resource is currently unavailable", Response.Status.INTERNAL_SERVER_ERROR, e);
+				} finally {
+					response.releaseConnection();
+				}
+			}
+		}, upstream, ttl, refreshAhead, maxStale, retryDelay);
+	}
+	
+	/**
+	 * <p>Returns all the hotels offered by the external hotel service. The list can't be modified.</p>
+	 */
+	public List<Hotel> getHotels() throws RestServiceException {
+		return hotels.get();
+	}
+	
+	/**
+	 * <p>Returns all the taxis offered by the external taxi service. The list can't be modified.</p>
+	 */
+	public List<Taxi> getTaxis() throws RestServiceException {
+		return taxis.get();
+	}
+	
+	/**
+	 * <p>Returns the validators of hotels returned by {@link #getHotels()}, or null if they have just been replaced.</p>
+	 */
+	public Validators getHotelValidators(List<Hotel> list) {
+		return hotels.validators(list);
+	}
+	
+	/**
+	 * <p>Returns the validators of taxis returned by {@link #getTaxis()}, or null if they have just been replaced.</p>
+	 */
+	public Validators getTaxiValidators(List<Taxi> list) {
+		return taxis.validators(list);
+	}
+	
+	/**
+	 * <p>Returns the validators of the cached hotels, or null if there are none which can be served without loading
+	 * them.</p>
+	 */
+	public Validators getCachedHotelValidators() {
+		List<Hotel> list = hotels.peek();
+		return list == null ? null : hotels.validators(list);
+	}
+	
+	/**
+	 * <p>Returns the validators of the cached taxis, or null if there are none which can be served without loading
+	 * them.</p>
+	 */
+	public Validators getCachedTaxiValidators() {
+		List<Taxi> list = taxis.peek();
+		return list == null ? null : taxis.validators(list);
+	}
+	
+	@Override
+	public String getMetricsName() {
+		return "catalogue";
+	}
+	
+	@Override
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put(hotels.getName(), hotels.getStats());
+		metrics.put(taxis.getName(), taxis.getStats());
+		return metrics;
+	}
+}
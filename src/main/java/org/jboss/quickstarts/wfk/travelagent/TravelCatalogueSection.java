@@ -0,0 +1,86 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * <p>One section (flights, hotels, taxis or customers) of the catalogue returned by
+ * <code>GET /travelagent/catalogue</code>.</p>
+ *
+ * <p>A section whose service couldn't be reached has status UNAVAILABLE and the reason instead of the items, so the
+ * travel agent can still show the others. A section may be the first page of a longer collection (the customers), in
+ * which case it has the link to the next page of that collection, see {@link org.jboss.quickstarts.wfk.util.Keyset}.</p>
+ *
+ * @author Jakub Gawron
+ */
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class TravelCatalogueSection<T> {
+	public static final String OK = "OK";
+	public static final String UNAVAILABLE = "UNAVAILABLE";
+
+	private String status;
+	private List<T> items;
+	private String error;
+	private String next;
+
+	public TravelCatalogueSection() {}
+
+	static <T> TravelCatalogueSection<T> available(List<T> items) {
+		TravelCatalogueSection<T> section = new TravelCatalogueSection<T>();
+		section.status = OK;
+		section.items = items;
+		return section;
+	}
+
+	static <T> TravelCatalogueSection<T> page(List<T> rows, int limit, URI next) {
+		TravelCatalogueSection<T> section = available(rows.size() > limit ? new ArrayList<T>(rows.subList(0, limit)) : rows);
+		section.next = next == null ? null : next.toString();
+		return section;
+	}
+
+	static <T> TravelCatalogueSection<T> unavailable(String error) {
+		TravelCatalogueSection<T> section = new TravelCatalogueSection<T>();
+		section.status = UNAVAILABLE;
+		section.error = error;
+		return section;
+	}
+
+	boolean isAvailable() {
+		return OK.equals(status);
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public List<T> getItems() {
+		return items;
+	}
+
+	public void setItems(List<T> items) {
+		this.items = items;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public String getNext() {
+		return next;
+	}
+
+	public void setNext(String next) {
+		this.next = next;
+	}
+}
@@ -19,7 +19,6 @@ package org.jboss.quickstarts.wfk.util;
 import java.io.IOException;
 
 import javax.servlet.*;
-import javax.servlet.annotation.WebFilter;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -27,10 +26,11 @@ import javax.servlet.http.HttpServletResponse;
  *
  * <p>This enables an API to serve requests from other domains.</p>
  *
+ * <p>It's mapped to <code>/api/*</code> in web.xml.</p>
+ *
  * @author hugofirth
  * @see javax.servlet.Filter
  */
-@WebFilter("/api/*")
 public class ApiOriginFilter implements Filter {
     @Override
     public void doFilter(ServletRequest request, ServletResponse response,
@@ -38,7 +38,10 @@ public class ApiOriginFilter implements Filter {
         HttpServletResponse res = (HttpServletResponse) response;
         res.addHeader("Access-Control-Allow-Origin", "*");
         res.addHeader("Access-Control-Allow-Methods", "GET, POST, DELETE, PUT");
-        res.addHeader("Access-Control-Allow-Headers", "Content-Type");
+        //conditional requests revalidate the responses which have validators
+        res.addHeader("Access-Control-Allow-Headers", "Content-Type, Cache-Control, If-None-Match, If-Modified-Since");
+        //lets clients on other domains follow the pages of the collections
+        res.addHeader("Access-Control-Expose-Headers", "Link, ETag, Last-Modified");
         chain.doFilter(request, response);
     }
 
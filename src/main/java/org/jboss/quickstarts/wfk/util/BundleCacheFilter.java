@@ -0,0 +1,48 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>Sets how long the travel agent SPA may be cached.</p>
+ *
+ * <p>The script bundles in <code>travelagent/js/</code> are named after a hash of their content when the war is built,
+ * so a bundle never changes under its URL and may be kept for a year without being revalidated. The page which refers
+ * to them has to be revalidated on every visit, so a new build is picked up straight away.</p>
+ *
+ * <p>It's mapped in web.xml ahead of the {@link CompressionFilter}, so the header is set on the request as it was made,
+ * before it may be forwarded to the gzip copy of the resource (e.g. <code>index.html.gz</code>).</p>
+ *
+ * @author Jakub Gawron
+ */
+public class BundleCacheFilter implements Filter {
+    private static final String BUNDLES = "/travelagent/js/";
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse res = (HttpServletResponse) response;
+
+        String path = req.getRequestURI().substring(req.getContextPath().length());
+        res.setHeader("Cache-Control", path.startsWith(BUNDLES) ? IMMUTABLE : REVALIDATE);
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,193 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * <p>Circuit breaker guarding the calls to one upstream service.</p>
+ *
+ * <p>The outcome of the last <code>window</code> calls is kept. Once at least <code>minimumCalls</code> have been made,
+ * the circuit opens if the percentage of failed calls or of slow calls (taking longer than <code>slowCall</code>
+ * milliseconds) reaches its threshold. While open, calls are refused straight away. After <code>openFor</code>
+ * milliseconds the circuit goes half-open and lets <code>halfOpenCalls</code> trial calls through: if they all succeed
+ * the circuit closes again, otherwise it opens for another period.</p>
+ *
+ * <p>All the values are read from the <code>upstream.&lt;name&gt;.breaker.*</code> settings, see {@link Settings}.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class CircuitBreaker {
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+
+    //how many of the latest state transitions are kept for the metrics
+    private static final int HISTORY = 20;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int window;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    //outcomes of the latest calls, as a ring buffer
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int trialsInFlight;
+    private int trialsSucceeded;
+
+    private long rejected;
+    private final LinkedList<String> transitions = new LinkedList<String>();
+
+    public CircuitBreaker(String name) {
+        String prefix = "upstream." + name + ".breaker.";
+
+        this.name = name;
+        this.window = Math.max(1, Settings.getInt(prefix + "window", 20));
+        this.minimumCalls = Math.min(window, Settings.getInt(prefix + "minimum-calls", 10));
+        this.failureRateThreshold = Settings.getInt(prefix + "failure-rate", 50);
+        this.slowCallRateThreshold = Settings.getInt(prefix + "slow-call-rate", 80);
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(Settings.getLong(prefix + "slow-call", 3000));
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Settings.getLong(prefix + "open-for", 30000));
+        this.halfOpenCalls = Math.max(1, Settings.getInt(prefix + "half-open-calls", 3));
+
+        this.failed = new boolean[window];
+        this.slow = new boolean[window];
+    }
+
+    /**
+     * <p>Asks for permission to make a call. Every permitted call has to be followed by {@link #onResult(long, boolean)}.</p>
+     *
+     * @return false if the circuit is open and the call must not be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                rejected++;
+                return false;
+            }
+            transition(State.HALF_OPEN, "open for " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms");
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (trialsInFlight >= halfOpenCalls) {
+                rejected++;
+                return false;
+            }
+            trialsInFlight++;
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>Records the outcome of a permitted call.</p>
+     *
+     * @param nanos How long the call took
+     * @param failure Whether the call failed
+     */
+    public synchronized void onResult(long nanos, boolean failure) {
+        boolean slowCall = nanos >= slowCallNanos;
+
+        if (state == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+            if (failure || slowCall) {
+                open(failure ? "trial call failed" : "trial call was slow");
+            } else if (++trialsSucceeded >= halfOpenCalls) {
+                transition(State.CLOSED, trialsSucceeded + " trial calls succeeded");
+            }
+            return;
+        }
+
+        if (state == State.OPEN) {
+            //a call which started before the circuit opened, it doesn't count any more
+            return;
+        }
+
+        if (calls == window) {
+            //forget the oldest outcome
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failed[next] = failure;
+        slow[next] = slowCall;
+        failures += failure ? 1 : 0;
+        slowCalls += slowCall ? 1 : 0;
+        next = (next + 1) % window;
+
+        if (calls >= minimumCalls) {
+            if (failures * 100 >= failureRateThreshold * calls) {
+                open("failure rate " + (failures * 100 / calls) + "%");
+            } else if (slowCalls * 100 >= slowCallRateThreshold * calls) {
+                open("slow call rate " + (slowCalls * 100 / calls) + "%");
+            }
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("state", state);
+        metrics.put("calls", calls);
+        metrics.put("failureRate", calls == 0 ? 0 : failures * 100 / calls);
+        metrics.put("slowCallRate", calls == 0 ? 0 : slowCalls * 100 / calls);
+        metrics.put("rejected", rejected);
+        metrics.put("transitions", new ArrayList<String>(transitions));
+        return metrics;
+    }
+
+    private void open(String reason) {
+        transition(State.OPEN, reason);
+        openedAt = System.nanoTime();
+    }
+
+    private void transition(State to, String reason) {
+        String entry = timestamp() + " " + state + " -> " + to + " (" + reason + ")";
+        log.warning("Circuit breaker of " + name + " upstream: " + entry);
+
+        transitions.addFirst(entry);
+        if (transitions.size() > HISTORY) {
+            transitions.removeLast();
+        }
+
+        state = to;
+        trialsInFlight = 0;
+        trialsSucceeded = 0;
+
+        //every state starts with a clean window
+        calls = failures = slowCalls = next = 0;
+    }
+
+    private static String timestamp() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+}
@@ -0,0 +1,480 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>Compresses the responses with gzip or deflate, whichever the client accepts (gzip first).</p>
+ *
+ * <p>The static resources are compressed when the war is built (see the pom), and a request for one which has a
+ * <code>.gz</code> copy is forwarded to that copy, so nothing static is compressed per request.</p>
+ *
+ * <p>Any other response is compressed as it's written, if its type is text-like. The first
+ * <code>compression.min-bytes</code> bytes are held back: a response which ends before that is sent as it is, as it
+ * isn't worth compressing, otherwise the compressed output is streamed from then on without buffering the rest. Flushes
+ * are passed on once it's compressing, so streamed responses still arrive as they're written. A response which already
+ * has a <code>Content-Encoding</code> (e.g. a gzip body from the {@link ResponseCache}) is left alone.</p>
+ *
+ * <p>A request which is suspended (e.g. <code>POST /travelagent/async/bookings</code>) has its body written after the
+ * filter chain returns, so its response is only ended once the request completes, times out or fails.</p>
+ *
+ * <p>It's mapped to every request in web.xml, outside the {@link ResponseCacheFilter}.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class CompressionFilter implements Filter {
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final String API = "/api/";
+
+    private final int minBytes = Settings.getInt("compression.min-bytes", 1024);
+    private final int level = Settings.getInt("compression.level", Deflater.DEFAULT_COMPRESSION);
+
+    private ServletContext context;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        context = filterConfig.getServletContext();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse res = (HttpServletResponse) response;
+
+        String accepted = req.getHeader("Accept-Encoding");
+        String encoding = accepts(accepted, GZIP) ? GZIP : accepts(accepted, DEFLATE) ? DEFLATE : null;
+        if (encoding == null || "HEAD".equals(req.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String path = req.getRequestURI().substring(req.getContextPath().length());
+        if (encoding.equals(GZIP) && !path.startsWith(API) && !path.endsWith("/") && context.getResource(path + ".gz") != null) {
+            String type = context.getMimeType(path);
+            res.setHeader("Content-Encoding", GZIP);
+            res.addHeader("Vary", "Accept-Encoding");
+            req.getRequestDispatcher(path + ".gz").forward(req, new PrecompressedResponse(res, type));
+            return;
+        }
+
+        CompressingResponse compressing = new CompressingResponse(res, encoding);
+        boolean suspended = false;
+        try {
+            chain.doFilter(request, compressing);
+            suspended = request.isAsyncStarted();
+        } finally {
+            if (suspended) {
+                request.getAsyncContext().addListener(new FinishingListener(compressing));
+            } else {
+                compressing.finish();
+            }
+        }
+    }
+
+    /**
+     * @return true if the <code>Accept-Encoding</code> header accepts the encoding with a quality above 0
+     */
+    static boolean accepts(String header, String encoding) {
+        if (header == null) {
+            return false;
+        }
+
+        Boolean any = null;
+        for (String part : header.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+
+            if (name.equals(encoding)) {
+                return accepted;
+            }
+            if (name.equals("*")) {
+                any = accepted;
+            }
+        }
+        return any != null && any;
+    }
+
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.contains("json") || type.contains("javascript") || type.contains("xml");
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * <p>Serves the <code>.gz</code> copy of a static resource with the type of the resource.</p>
+     */
+    private static class PrecompressedResponse extends HttpServletResponseWrapper {
+        private final String type;
+
+        PrecompressedResponse(HttpServletResponse response, String type) {
+            super(response);
+            this.type = type;
+        }
+
+        @Override
+        public void setContentType(String ignored) {
+            if (type != null) {
+                super.setContentType(type);
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Type")) {
+                setContentType(value);
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Type")) {
+                setContentType(value);
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+    }
+
+    /**
+     * <p>Holds back the start of the body until it knows whether it's worth compressing, then either compresses the
+     * rest as it's written or passes it through.</p>
+     */
+    private class CompressingResponse extends HttpServletResponseWrapper {
+        private final String encoding;
+
+        private int status = SC_OK;
+        //the length is only known to be right if the body isn't compressed
+        private String contentLength;
+        //set once a Content-Encoding is set, or the response is an error or a redirect
+        private boolean passThrough;
+
+        private byte[] held = new byte[minBytes];
+        private int heldCount;
+        //the stream the body goes to once it's been decided whether to compress it, null until then
+        private OutputStream target;
+        private DeflaterOutputStream compressed;
+        private Deflater deflater;
+
+        private ServletOutputStream out;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            discard();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            discard();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            discard();
+            super.sendRedirect(location);
+        }
+
+        //the container writes the body of errors and redirects itself
+        private void discard() {
+            passThrough = true;
+            heldCount = 0;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            setHeader("Content-Length", Integer.toString(len));
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (header(name, value)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (header(name, value)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            addHeader(name, Integer.toString(value));
+        }
+
+        /**
+         * @return true if the header can be set on the response now
+         */
+        private boolean header(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Encoding")) {
+                passThrough = true;
+            } else if (name.equalsIgnoreCase("Content-Length") && target == null && !passThrough) {
+                //a body shorter than the threshold is sent as it is anyway
+                try {
+                    if (Long.parseLong(value.trim()) < minBytes) {
+                        passThrough = true;
+                        return true;
+                    }
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+                contentLength = value;
+                return false;
+            } else if (name.equalsIgnoreCase("Content-Length") && compressed != null) {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return stream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (out != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        private ServletOutputStream stream() {
+            if (out == null) {
+                out = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (target == null && !passThrough && heldCount + len <= held.length) {
+                            System.arraycopy(b, off, held, heldCount, len);
+                            heldCount += len;
+                            return;
+                        }
+                        decide(true).write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        //held back bytes stay held, so the threshold isn't defeated by a flush after every write
+                        if (target != null) {
+                            target.flush();
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        finish();
+                    }
+                };
+            }
+            return out;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            } else if (out != null) {
+                out.flush();
+            }
+            if (target != null) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (target == null) {
+                heldCount = 0;
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            if (target == null) {
+                heldCount = 0;
+                contentLength = null;
+                status = SC_OK;
+                passThrough = false;
+            }
+        }
+
+        /**
+         * <p>Decides whether the body is compressed and writes the held back bytes.</p>
+         *
+         * @param worthIt Whether the body is long enough to be worth compressing
+         * @return The stream the rest of the body goes to
+         */
+        private OutputStream decide(boolean worthIt) throws IOException {
+            if (target != null) {
+                return target;
+            }
+
+            ServletOutputStream stream = super.getOutputStream();
+            if (worthIt && !passThrough && status != SC_NO_CONTENT && status != SC_NOT_MODIFIED
+                    && status != SC_PARTIAL_CONTENT && isCompressible(getContentType())) {
+                super.setHeader("Content-Encoding", encoding);
+                super.addHeader("Vary", "Accept-Encoding");
+
+                //gzip is raw deflate in a gzip wrapper, while HTTP's deflate is deflate in a zlib wrapper
+                deflater = new Deflater(level, encoding.equals(GZIP));
+                compressed = encoding.equals(GZIP)
+                        ? new GzipStream(stream, deflater)
+                        : new DeflaterOutputStream(stream, deflater, 8192, true);
+                target = compressed;
+            } else {
+                if (contentLength != null) {
+                    super.setHeader("Content-Length", contentLength);
+                }
+                target = stream;
+            }
+
+            target.write(held, 0, heldCount);
+            held = null;
+            return target;
+        }
+
+        /**
+         * <p>Ends the body, sending whatever is still held back.</p>
+         */
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (target == null && heldCount > 0) {
+                decide(false);
+            }
+            if (compressed != null) {
+                try {
+                    compressed.finish();
+                } finally {
+                    //a Deflater holds native memory until it's ended
+                    deflater.end();
+                    compressed = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Ends the response of a suspended request once it's done.</p>
+     */
+    private static class FinishingListener implements AsyncListener {
+        private final CompressingResponse response;
+
+        FinishingListener(CompressingResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            response.finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            response.finish();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            response.finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    /**
+     * <p>A gzip stream with the given deflater, so it has the configured level.</p>
+     */
+    private static class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, 8192, true);
+            //the default deflater was only just created and has seen no input
+            def.end();
+            def = deflater;
+        }
+    }
+}
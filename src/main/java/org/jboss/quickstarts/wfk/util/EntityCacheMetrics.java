@@ -0,0 +1,70 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+
+/**
+ * <p>Publishes the hit ratios of the Hibernate second-level and query cache regions, see the cache settings in
+ * <code>persistence.xml</code>.</p>
+ *
+ * <p>The counts come from the Hibernate statistics (<code>hibernate.generate_statistics</code>), they're counted since
+ * the application started. A region is only listed once it has been used.</p>
+ *
+ * @author Jakub Gawron
+ */
+@ApplicationScoped
+public class EntityCacheMetrics implements MetricSource {
+
+    @Inject
+    private EntityManager em;
+
+    @Override
+    public String getMetricsName() {
+        return "cache";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Statistics statistics = em.unwrap(Session.class).getSessionFactory().getStatistics();
+
+        Map<String, Object> regions = new TreeMap<String, Object>();
+        for (String name : statistics.getSecondLevelCacheRegionNames()) {
+            SecondLevelCacheStatistics region = statistics.getSecondLevelCacheStatistics(name);
+            if (region == null) {
+                continue;
+            }
+
+            Map<String, Object> values = counts(region.getHitCount(), region.getMissCount(), region.getPutCount());
+            values.put("entries", region.getElementCountInMemory());
+            regions.put(name, values);
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("statistics", statistics.isStatisticsEnabled());
+        metrics.put("entities", counts(statistics.getSecondLevelCacheHitCount(), statistics.getSecondLevelCacheMissCount(),
+                statistics.getSecondLevelCachePutCount()));
+        metrics.put("queries", counts(statistics.getQueryCacheHitCount(), statistics.getQueryCacheMissCount(),
+                statistics.getQueryCachePutCount()));
+        metrics.put("regions", regions);
+        return metrics;
+    }
+
+    private static Map<String, Object> counts(long hits, long misses, long puts) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("hits", hits);
+        values.put("misses", misses);
+        values.put("puts", puts);
+        values.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return values;
+    }
+}
@@ -0,0 +1,42 @@
+package org.jboss.quickstarts.wfk.util;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.hibernate.proxy.HibernateProxyHelper;
+
+/**
+ * <p>Bumps the version of the type of every entity written or deleted, see {@link EntityVersions}.</p>
+ *
+ * <p>Like the <code>BookingListener</code>, it's an entity listener so it also sees the entities removed along with
+ * others, and it looks the versions up in JNDI as nothing can be injected into it with JPA 2.0.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class EntityVersionListener {
+    private static final String VERSIONS = "java:module/EntityVersions!" + EntityVersions.class.getName();
+
+    private static volatile EntityVersions versions;
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    void changed(Object entity) {
+        versions().changed(HibernateProxyHelper.getClassWithoutInitializingProxy(entity));
+    }
+
+    private static EntityVersions versions() {
+        EntityVersions found = versions;
+        if (found == null) {
+            try {
+                found = versions = InitialContext.doLookup(VERSIONS);
+            } catch (NamingException e) {
+                throw new IllegalStateException("Could not find " + VERSIONS, e);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,110 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * <p>A version for each type of entity (Flight, Customer, ...), which goes up whenever an entity of that type is
+ * written or deleted, and the {@link Validators} of the responses made of them.</p>
+ *
+ * <p>A write only counts once its transaction commits, see {@link EntityVersionListener}. A response takes the
+ * validators before reading its data, so at worst the data is newer than its ETag, and the client just gets it again
+ * next time.</p>
+ *
+ * @author Jakub Gawron
+ */
+@Singleton
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class EntityVersions {
+
+    @Resource
+    TransactionSynchronizationRegistry registry;
+
+    //versions start again from 0 when the application restarts, so they're only unique together with this
+    private final long epoch = System.currentTimeMillis();
+
+    private final ConcurrentMap<Class<?>, Version> versions = new ConcurrentHashMap<Class<?>, Version>();
+
+    /**
+     * <p>Bumps the version of the type, once the current transaction commits.</p>
+     */
+    public void changed(Class<?> type) {
+        final Version version = version(type);
+
+        if (registry.getTransactionKey() == null) {
+            version.bump();
+            return;
+        }
+
+        registry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {}
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    version.bump();
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Returns the validators of a response made of entities of the given type.</p>
+     */
+    public Validators validators(Class<?> type) {
+        return version(type).validators(type.getSimpleName().toLowerCase(Locale.ROOT), epoch);
+    }
+
+    /**
+     * @return When the versions started, in milliseconds since the epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    private Version version(Class<?> type) {
+        Version version = versions.get(type);
+        if (version == null) {
+            Version created = new Version(epoch);
+            version = versions.putIfAbsent(type, created);
+            if (version == null) {
+                version = created;
+            }
+        }
+        return version;
+    }
+
+    private static final class Version {
+        private long version;
+        private long modified;
+
+        Version(long modified) {
+            this.modified = modified;
+        }
+
+        synchronized void bump() {
+            version++;
+            //Last-Modified has whole seconds, so move on by at least one, or If-Modified-Since could miss this change
+            modified = Math.max(System.currentTimeMillis(), (modified / 1000 + 1) * 1000);
+        }
+
+        synchronized Validators validators(String type, long epoch) {
+            return new Validators(type, epoch, version, modified);
+        }
+    }
+}
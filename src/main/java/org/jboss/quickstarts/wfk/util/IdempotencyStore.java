@@ -0,0 +1,239 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * <p>Makes POST requests safe to retry, by remembering their responses under the <code>Idempotency-Key</code> header sent
+ * by the client.</p>
+ *
+ * <p>The first request with a given key is executed as usual and its response is stored, together with a fingerprint
+ * (SHA-256 hash) of the request body. A retry with the same key and body gets the stored response replayed, marked with
+ * the <code>Idempotent-Replayed: true</code> header, without touching the database or the upstream services. If the
+ * first request is still running, the retry waits for it (at most <code>idempotency.wait</code> milliseconds) instead of
+ * racing it. Reusing a key for a different body is refused with 400 BAD REQUEST.</p>
+ *
+ * <p>Only final outcomes are stored: successful responses and client errors (4xx). Server errors and unexpected
+ * exceptions are forgotten straight away, so the client can retry the request with the same key.</p>
+ *
+ * <p>The store is held in memory, so it is per server instance. It keeps at most <code>idempotency.max-entries</code>
+ * keys (dropping the least recently used) and each one for <code>idempotency.ttl</code> milliseconds, see
+ * {@link Settings}.</p>
+ *
+ * @author Jakub Gawron
+ */
+@ApplicationScoped
+public class IdempotencyStore implements MetricSource {
+    public static final String KEY_HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final long ttl = Settings.getLong("idempotency.ttl", TimeUnit.HOURS.toMillis(24));
+    private final long maxEntries = Settings.getLong("idempotency.max-entries", 10000);
+    private final long wait = Settings.getLong("idempotency.wait", 30000);
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+            .build();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * <p>Runs the request, or replays the response of an earlier request with the same key.</p>
+     *
+     * @param scope Identifies the endpoint, so the same key can be used with different endpoints
+     * @param key The <code>Idempotency-Key</code> sent by the client, the request is simply run if it's null
+     * @param request The request body, to make sure a key isn't reused for a different request
+     * @param action Runs the request
+     * @return The response of the request, either fresh or replayed
+     * @throws RestServiceException thrown by the request (or replayed), or if the key can't be used
+     */
+    public Response execute(String scope, String key, Object request, Callable<Response> action) throws RestServiceException {
+        if (key == null) {
+            return call(action);
+        }
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            throw new RestServiceException(KEY_HEADER + " has to be between 1 and " + MAX_KEY_LENGTH + " characters long", Response.Status.BAD_REQUEST);
+        }
+
+        //the body has to be hashed before running the request, which may change it (e.g. set its id)
+        String fingerprint = fingerprint(request);
+        ConcurrentMap<String, Entry> map = entries.asMap();
+        String id = scope + " " + key;
+
+        while (true) {
+            Entry created = new Entry(fingerprint);
+            Entry existing = map.putIfAbsent(id, created);
+
+            if (existing == null) {
+                return run(id, created, action);
+            }
+
+            if (!existing.fingerprint.equals(fingerprint)) {
+                mismatched.incrementAndGet();
+                throw new RestServiceException(KEY_HEADER + " " + key + " was already used for a different request", Response.Status.BAD_REQUEST);
+            }
+
+            if (existing.done.getCount() > 0) {
+                waited.incrementAndGet();
+                await(existing, key);
+            }
+
+            if (existing.isStored()) {
+                replayed.incrementAndGet();
+                return existing.replay();
+            }
+
+            //the original request failed and was forgotten, so run this one instead
+            map.remove(id, existing);
+        }
+    }
+
+    private Response run(String id, Entry entry, Callable<Response> action) {
+        executed.incrementAndGet();
+        boolean stored = false;
+
+        try {
+            Response response = call(action);
+            if (response.getStatus() < 500) {
+                entry.store(response);
+                stored = true;
+            }
+            return response;
+        } catch (RestServiceException e) {
+            if (e.getStatus().getStatusCode() < 500) {
+                entry.store(e);
+                stored = true;
+            }
+            throw e;
+        } finally {
+            if (!stored) {
+                discarded.incrementAndGet();
+                entries.asMap().remove(id, entry);
+            }
+            entry.done.countDown();
+        }
+    }
+
+    private void await(Entry entry, String key) {
+        try {
+            if (!entry.done.await(wait, TimeUnit.MILLISECONDS)) {
+                throw new RestServiceException("A request with " + KEY_HEADER + " " + key + " is still in progress, please try again shortly", Response.Status.CONFLICT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestServiceException(e);
+        }
+    }
+
+    private static Response call(Callable<Response> action) {
+        try {
+            return action.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RestServiceException(e);
+        }
+    }
+
+    private static String fingerprint(Object request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return BaseEncoding.base16().encode(digest.digest(mapper.writeValueAsBytes(request)));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RestServiceException(e);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "idempotency";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("keys", entries.size());
+        metrics.put("maxKeys", maxEntries);
+        metrics.put("ttlMillis", ttl);
+        metrics.put("executed", executed.get());
+        metrics.put("replayed", replayed.get());
+        metrics.put("waited", waited.get());
+        metrics.put("mismatched", mismatched.get());
+        metrics.put("discarded", discarded.get());
+        return metrics;
+    }
+
+    /**
+     * <p>One key, with the outcome of its request once that's done.</p>
+     */
+    private static class Entry {
+        final String fingerprint;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        //written before done is counted down, so they're visible to the waiting threads
+        private int status;
+        private Object entity;
+        private Map<String, List<Object>> headers;
+        private RestServiceException error;
+
+        Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        void store(Response response) {
+            status = response.getStatus();
+            entity = response.getEntity();
+            headers = new LinkedHashMap<String, List<Object>>(response.getMetadata());
+        }
+
+        void store(RestServiceException e) {
+            error = e;
+        }
+
+        boolean isStored() {
+            return error != null || headers != null;
+        }
+
+        Response replay() {
+            if (error != null) {
+                throw error;
+            }
+
+            Response.ResponseBuilder builder = Response.status(status).entity(entity);
+            for (Map.Entry<String, List<Object>> header : headers.entrySet()) {
+                for (Object value : header.getValue()) {
+                    builder.header(header.getKey(), value);
+                }
+            }
+            return builder.header(REPLAYED_HEADER, "true").build();
+        }
+    }
+}
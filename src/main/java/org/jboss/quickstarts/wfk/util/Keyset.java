@@ -0,0 +1,144 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.base.Function;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * <p>Helper for keyset (cursor) pagination of the collection endpoints.</p>
+ *
+ * <p>Rather than skipping <code>offset</code> rows, which the database has to read and throw away, a page starts right
+ * after the sort key of the last row of the previous page, e.g. <code>WHERE c.name &gt; :name OR (c.name = :name AND
+ * c.id &gt; :id) ORDER BY c.name, c.id</code>. With an index on the sort key, page N is as cheap as page 1.</p>
+ *
+ * <p>The client asks for at most <code>limit</code> rows (<code>page.default-limit</code> if not given, at most
+ * <code>page.max-limit</code>, see {@link Settings}). If there are more, the response carries a
+ * <code>Link: &lt;...?limit=..&amp;after=..&gt;; rel="next"</code> header, where <code>after</code> is an opaque cursor
+ * (the sort key of the last row as a base64url encoded JSON array). The last page has no such header.</p>
+ *
+ * @author Jakub Gawron
+ */
+public final class Keyset {
+    public static final int DEFAULT_LIMIT = Settings.getInt("page.default-limit", 100);
+    public static final int MAX_LIMIT = Settings.getInt("page.max-limit", 1000);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final BaseEncoding cursors = BaseEncoding.base64Url().omitPadding();
+
+    private Keyset() {}
+
+    /**
+     * <p>Checks the page size asked for by the client.</p>
+     *
+     * @param limit The <code>limit</code> query parameter, or null
+     * @return The number of rows to return
+     * @throws RestServiceException 400 BAD REQUEST if the limit is below 1
+     */
+    public static int limit(Integer limit) throws RestServiceException {
+        if (limit == null) {
+            return DEFAULT_LIMIT;
+        }
+        if (limit < 1) {
+            throw new RestServiceException("The limit must be at least 1", Response.Status.BAD_REQUEST);
+        }
+        return Math.min(limit, MAX_LIMIT);
+    }
+
+    /**
+     * <p>Encodes the sort key of a row as a cursor.</p>
+     */
+    public static String encode(Object... key) {
+        try {
+            return cursors.encode(mapper.writeValueAsBytes(key));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't encode the cursor", e);
+        }
+    }
+
+    /**
+     * <p>Decodes a cursor made by {@link #encode(Object...)}.</p>
+     *
+     * @param after The <code>after</code> query parameter, or null for the first page
+     * @param types The types of the sort key, either String or Long
+     * @return The sort key, or null for the first page
+     * @throws RestServiceException 400 BAD REQUEST if the cursor is not a sort key of the given types
+     */
+    public static Object[] decode(String after, Class<?>... types) throws RestServiceException {
+        if (after == null || after.isEmpty()) {
+            return null;
+        }
+
+        List<?> values;
+        try {
+            values = mapper.readValue(cursors.decode(after), List.class);
+        } catch (IllegalArgumentException e) {
+            values = null;
+        } catch (IOException e) {
+            values = null;
+        }
+        if (values == null || values.size() != types.length) {
+            throw new RestServiceException("Invalid cursor " + after, Response.Status.BAD_REQUEST);
+        }
+
+        Object[] key = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            Object value = values.get(i);
+            if (types[i] == Long.class && (value instanceof Integer || value instanceof Long)) {
+                key[i] = ((Number) value).longValue();
+            } else if (types[i] == String.class && value instanceof String) {
+                key[i] = value;
+            } else {
+                throw new RestServiceException("Invalid cursor " + after, Response.Status.BAD_REQUEST);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * <p>Builds the response with a page of rows.</p>
+     *
+     * @param rows Up to <code>limit + 1</code> rows, the extra one only tells there is a next page and is left out
+     * @param limit The page size
+     * @param uriInfo The request uri, to build the link to the next page from
+     * @param key Returns the sort key of a row
+     * @return 200 OK with the rows, and a <code>Link</code> header if there is a next page
+     */
+    public static <T> Response page(List<T> rows, int limit, UriInfo uriInfo, Function<T, Object[]> key) {
+        //relative to the current resource if the method was called directly, rather than through JAX-RS
+        URI next = next(rows, limit, uriInfo != null ? uriInfo.getRequestUriBuilder() : UriBuilder.fromUri(""), key);
+        if (next == null) {
+            return Response.ok(rows).build();
+        }
+
+        List<T> page = new ArrayList<T>(rows.subList(0, limit));
+        return Response.ok(page).header("Link", "<" + next + ">; rel=\"next\"").build();
+    }
+
+    /**
+     * <p>Returns the link to the page after a page of rows, for a page which is returned within another response.</p>
+     *
+     * @param rows Up to <code>limit + 1</code> rows, the extra one only tells there is a next page
+     * @param limit The page size
+     * @param builder The uri of the collection, the limit and cursor are set on it
+     * @param key Returns the sort key of a row
+     * @return The link, or null if there is no next page
+     */
+    public static <T> URI next(List<T> rows, int limit, UriBuilder builder, Function<T, Object[]> key) {
+        if (rows.size() <= limit) {
+            return null;
+        }
+
+        String after = encode(key.apply(rows.get(limit - 1)));
+        return builder.replaceQueryParam("limit", limit).replaceQueryParam("after", after).build();
+    }
+}
@@ -0,0 +1,50 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.Properties;
+
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.type.Type;
+
+/**
+ * <p>Id generator which takes the ids of an entity from a database sequence, a block at a time.</p>
+ *
+ * <p>Unlike <code>IDENTITY</code> columns, the id is known before the row is inserted, so Hibernate can send the inserts
+ * to the database in JDBC batches (see <code>hibernate.jdbc.batch_size</code> in <code>persistence.xml</code>). The
+ * sequence is incremented by the allocation size, and Hibernate hands out all the ids of a block without asking the
+ * database again, so there is only one sequence call per block of inserts. Each sequence value is the first id of its
+ * block (the "pooled-lo" optimizer), so rows inserted with plain SQL, taking their ids from the same sequence (see
+ * <code>import.sql</code>), never clash with the ids handed out by Hibernate.</p>
+ *
+ * <p>The allocation size is read from <code>id.allocation-size.&lt;sequence_name&gt;</code>, then
+ * <code>id.allocation-size</code> (see {@link Settings}), and is 50 by default. With 1, every id is fetched from the
+ * sequence on its own. Entities use it with:</p>
+ *
+ * <pre>
+ * &#64;GeneratedValue(generator = "booking_seq")
+ * &#64;GenericGenerator(name = "booking_seq", strategy = PooledSequenceGenerator.NAME,
+ *         parameters = &#64;Parameter(name = "sequence_name", value = "booking_seq"))
+ * </pre>
+ *
+ * <p>Databases without sequences get a table standing in for the sequence.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class PooledSequenceGenerator extends SequenceStyleGenerator {
+    public static final String NAME = "org.jboss.quickstarts.wfk.util.PooledSequenceGenerator";
+
+    public static final int DEFAULT_ALLOCATION_SIZE = 50;
+
+    @Override
+    public void configure(Type type, Properties params, Dialect dialect) throws MappingException {
+        String sequence = params.getProperty(SEQUENCE_PARAM, DEF_SEQUENCE_NAME);
+        int allocationSize = Math.max(1, Settings.getInt("id.allocation-size." + sequence,
+                Settings.getInt("id.allocation-size", DEFAULT_ALLOCATION_SIZE)));
+
+        params.setProperty(INCREMENT_PARAM, Integer.toString(allocationSize));
+        params.setProperty(OPT_PARAM, allocationSize > 1 ? "pooled-lo" : "none");
+
+        super.configure(type, params, dialect);
+    }
+}
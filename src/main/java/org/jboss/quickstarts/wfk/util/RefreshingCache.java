@@ -0,0 +1,331 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * <p>Read-through cache of a single value (e.g. the list of hotels) which is expensive to load.</p>
+ *
+ * <p>The value goes through these stages, measured from the time it was loaded:</p>
+ * <ul>
+ *     <li>fresh - served from the cache; once it gets within <code>refreshAhead</code> of the TTL, a background refresh is
+ *     started, so a busy cache never actually expires</li>
+ *     <li>stale (for up to <code>maxStale</code> past the TTL) - still served straight away, while a background refresh
+ *     revalidates it. This also keeps the value available when the upstream is slow or down</li>
+ *     <li>expired - the caller has to wait for a load</li>
+ * </ul>
+ *
+ * <p>Only one load runs at any time. Callers that need the value while it's being loaded wait for that load instead of
+ * starting their own, so a burst of requests results in a single call to the loader. A background refresh which fails
+ * isn't tried again for <code>retryDelay</code>, so an upstream which is down isn't called on every request while the
+ * stale value is served.</p>
+ *
+ * @param <T> type of the cached value, which should be immutable as it's shared between all the callers
+ * @author Jakub Gawron
+ */
+public class RefreshingCache<T> {
+    private static final Logger log = Logger.getLogger(RefreshingCache.class.getName());
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final String name;
+    private final Callable<T> loader;
+    private final UpstreamExecutor executor;
+
+    private final long ttl;
+    private final long refreshAhead;
+    private final long maxStale;
+    private final long retryDelay;
+
+    //when the versions of the value started, see validators()
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong versions = new AtomicLong();
+
+    private volatile Entry<T> entry;
+    private final AtomicReference<FutureTask<T>> loading = new AtomicReference<FutureTask<T>>();
+    //no background refresh is started before this time (in milliseconds since the epoch), after one has failed
+    private volatile long retryAt;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     * @param name Name used in logs and stats
+     * @param loader Loads the value, throwing if it can't
+     * @param executor Runs the background refreshes
+     * @param ttl How long (in milliseconds) a loaded value is fresh
+     * @param refreshAhead How long (in milliseconds) before the TTL to start refreshing the value
+     * @param maxStale How long (in milliseconds) after the TTL the value may still be served
+     * @param retryDelay How long (in milliseconds) to wait after a failed background refresh before trying again
+     */
+    public RefreshingCache(String name, Callable<T> loader, UpstreamExecutor executor, long ttl, long refreshAhead, long maxStale,
+            long retryDelay) {
+        this.name = name;
+        this.loader = loader;
+        this.executor = executor;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.refreshAhead = TimeUnit.MILLISECONDS.toNanos(Math.min(refreshAhead, ttl));
+        this.maxStale = TimeUnit.MILLISECONDS.toNanos(maxStale);
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * <p>Returns the cached value, loading it first if there is no value or it has expired.</p>
+     *
+     * @throws RestServiceException (or whatever the loader throws) if the value had to be loaded and that failed
+     */
+    public T get() throws RestServiceException {
+        Entry<T> current = entry;
+
+        if (current != null) {
+            long age = System.nanoTime() - current.loaded;
+
+            if (age < ttl) {
+                hits.incrementAndGet();
+                if (age >= ttl - refreshAhead) {
+                    refreshInBackground(current);
+                }
+                return current.value;
+            }
+
+            if (age < ttl + maxStale) {
+                staleHits.incrementAndGet();
+                refreshInBackground(current);
+                return current.value;
+            }
+        }
+
+        misses.incrementAndGet();
+        return await(load());
+    }
+
+    /**
+     * <p>Returns the cached value if it can be served without loading it, otherwise null. Like {@link #get()}, it starts
+     * a background refresh if the value is due one.</p>
+     */
+    public T peek() {
+        Entry<T> current = entry;
+        if (current == null) {
+            return null;
+        }
+
+        long age = System.nanoTime() - current.loaded;
+        if (age >= ttl + maxStale) {
+            return null;
+        }
+        if (age >= ttl - refreshAhead) {
+            refreshInBackground(current);
+        }
+        return current.value;
+    }
+
+    /**
+     * <p>Drops the cached value, so the next call to {@link #get()} loads it again.</p>
+     */
+    public void invalidate() {
+        entry = null;
+    }
+
+    /**
+     * <p>Returns the counters of this cache, which can be used to tune the TTL.</p>
+     */
+    public Map<String, Object> getStats() {
+        Entry<T> current = entry;
+        long served = hits.get() + staleHits.get();
+        long total = served + misses.get();
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("hits", hits.get());
+        stats.put("staleHits", staleHits.get());
+        stats.put("misses", misses.get());
+        stats.put("hitRatio", total == 0 ? 0.0 : (double) served / total);
+        stats.put("loads", loads.get());
+        stats.put("refreshes", refreshes.get());
+        stats.put("refreshFailures", refreshFailures.get());
+        stats.put("ageMillis", current == null ? null : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - current.loaded));
+        stats.put("ttlMillis", TimeUnit.NANOSECONDS.toMillis(ttl));
+        return stats;
+    }
+
+    /**
+     * <p>Returns the validators of a value returned by {@link #get()}. The version of the value only goes up when a load
+     * returns something different from the cached value, i.e. whose JSON differs. The values' own equals isn't enough,
+     * as e.g. two taxis with the same registration are equal even if their ids or seats differ.</p>
+     *
+     * @return The validators, or null if the value has just been replaced
+     */
+    public Validators validators(T value) {
+        Entry<T> current = entry;
+        if (current == null || current.value != value) {
+            return null;
+        }
+        return new Validators(name, epoch, current.version, current.modified);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * <p>Returns the load in progress, or runs a new one in the calling thread if there is none.</p>
+     */
+    private FutureTask<T> load() {
+        while (true) {
+            FutureTask<T> task = loading.get();
+            if (task != null) {
+                return task;
+            }
+
+            FutureTask<T> created = newLoad();
+            if (loading.compareAndSet(null, created)) {
+                //whoever started the load runs it, everybody else waits for it in await()
+                runLoad(created);
+                return created;
+            }
+        }
+    }
+
+    /**
+     * <p>Starts a load on the executor, unless one is already in progress, the value has been replaced since the caller
+     * read it, or the last background refresh failed less than <code>retryDelay</code> ago.</p>
+     *
+     * @param seen The entry the caller found
+     */
+    private void refreshInBackground(Entry<T> seen) {
+        if (System.currentTimeMillis() < retryAt || loading.get() != null) {
+            return;
+        }
+
+        final FutureTask<T> created = newLoad();
+        if (!loading.compareAndSet(null, created)) {
+            return;
+        }
+        if (entry != seen) {
+            //another refresh finished between the caller reading the entry and now
+            loading.compareAndSet(created, null);
+            return;
+        }
+
+        refreshes.incrementAndGet();
+        try {
+            executor.submit(Executors.callable(new Runnable() {
+                @Override
+                public void run() {
+                    runLoad(created);
+                    try {
+                        await(created);
+                    } catch (RuntimeException e) {
+                        //keep serving the value we already have, and give the upstream some time before trying again
+                        retryAt = System.currentTimeMillis() + retryDelay;
+                        refreshFailures.incrementAndGet();
+                        log.log(Level.WARNING, "Could not refresh " + name + " cache, retrying in " + retryDelay + "ms: " + e.getMessage());
+                    }
+                }
+            }));
+        } catch (RestServiceException e) {
+            //the executor is saturated, so skip this refresh
+            loading.compareAndSet(created, null);
+            refreshFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>Runs a load which has been claimed in <code>loading</code>, and lets the next one start once it has completed,
+     * so nobody can start a second load while this one is still running.</p>
+     */
+    private void runLoad(FutureTask<T> task) {
+        try {
+            task.run();
+        } finally {
+            loading.compareAndSet(task, null);
+        }
+    }
+
+    private FutureTask<T> newLoad() {
+        return new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                loads.incrementAndGet();
+                T value = loader.call();
+                HashCode hash = contentHash(value);
+                Entry<T> previous = entry;
+                if (previous != null && hash != null && hash.equals(previous.hash)) {
+                    //unchanged, so keep the same value and version
+                    value = previous.value;
+                    entry = new Entry<T>(value, hash, System.nanoTime(), previous.version, previous.modified);
+                } else {
+                    long modified = System.currentTimeMillis();
+                    if (previous != null) {
+                        //Last-Modified has whole seconds, so move on by at least one
+                        modified = Math.max(modified, (previous.modified / 1000 + 1) * 1000);
+                    }
+                    entry = new Entry<T>(value, hash, System.nanoTime(), versions.incrementAndGet(), modified);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * @return A hash of the value as JSON, or null if it can't be serialised, in which case it's taken to have changed
+     */
+    private HashCode contentHash(T value) {
+        try {
+            return Hashing.murmur3_128().hashBytes(mapper.writeValueAsBytes(value));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not hash the " + name + " cache value: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private T await(FutureTask<T> task) throws RestServiceException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RestServiceException((Exception) cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestServiceException(e);
+        }
+    }
+
+    private static class Entry<T> {
+        final T value;
+        final HashCode hash;
+        final long loaded;
+        final long version;
+        final long modified;
+
+        Entry(T value, HashCode hash, long loaded, long version, long modified) {
+            this.value = value;
+            this.hash = hash;
+            this.loaded = loaded;
+            this.version = version;
+            this.modified = modified;
+        }
+    }
+}
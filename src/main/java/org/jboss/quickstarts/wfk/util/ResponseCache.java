@@ -0,0 +1,245 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * <p>Cache of the encoded bodies of the hot read only resources, e.g. <code>GET /flights</code>, so a repeated request
+ * is answered with a single write of a byte array, without any JPA or Jackson work. See {@link ResponseCacheFilter}.</p>
+ *
+ * <p>A response is keyed by its path, query, <code>Host</code> and <code>Accept</code> headers, and kept both as it is
+ * and gzip compressed. Each cached resource belongs to groups named after the data it's made of (e.g. the bookings are
+ * made of {@link #BOOKINGS}, {@link #CUSTOMERS} and {@link #FLIGHTS}). The services call {@link #invalidate(String)}
+ * whenever they write that data, and every response of the group is dropped once the transaction commits.</p>
+ *
+ * <p>Each group has a generation, which goes up whenever it's invalidated. A response is only stored if the generations
+ * of its groups are still what they were before it was made, so a response made from data read just before a commit
+ * can't be cached after the invalidation.</p>
+ *
+ * <p>At most <code>response-cache.max-entries</code> responses (the least recently used are dropped) of at most
+ * <code>response-cache.max-bytes</code> each are kept, see {@link Settings}.</p>
+ *
+ * @author Jakub Gawron
+ */
+@ApplicationScoped
+public class ResponseCache implements MetricSource {
+    public static final String FLIGHTS = "flights";
+    public static final String CUSTOMERS = "customers";
+    public static final String BOOKINGS = "bookings";
+
+    //cached resources, relative to the api root, with the groups each is made of
+    private static final Map<String, List<String>> RESOURCES = new HashMap<String, List<String>>();
+    static {
+        RESOURCES.put("/flights", Arrays.asList(FLIGHTS));
+        RESOURCES.put("/travelagent/flights", Arrays.asList(FLIGHTS));
+        RESOURCES.put("/customers", Arrays.asList(CUSTOMERS));
+        RESOURCES.put("/bookings", Arrays.asList(BOOKINGS, CUSTOMERS, FLIGHTS));
+    }
+
+    private final long maxEntries = Settings.getLong("response-cache.max-entries", 1000);
+    private final int maxBytes = Settings.getInt("response-cache.max-bytes", 1024 * 1024);
+    //smaller bodies aren't worth compressing
+    private final int gzipMinBytes = Settings.getInt("response-cache.gzip-min-bytes", 512);
+
+    @Resource
+    TransactionSynchronizationRegistry registry;
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(maxEntries)
+            .build();
+
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param path Path of the resource, relative to the api root
+     * @return The groups of a cached resource, or null if the resource isn't cached
+     */
+    public List<String> groups(String path) {
+        return RESOURCES.get(path);
+    }
+
+    /**
+     * @return The cached response, or null
+     */
+    public Entry get(String key) {
+        Entry entry = entries.getIfPresent(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * <p>Returns the generation of the groups, to be taken before the response is made and passed to
+     * {@link #put(String, List, long, int, Map, byte[])}.</p>
+     */
+    public long generation(List<String> groups) {
+        long generation = 0;
+        for (String group : groups) {
+            generation += generation(group).get();
+        }
+        return generation;
+    }
+
+    /**
+     * <p>Stores a response, unless any of its groups has been invalidated since it was made or it's too big.</p>
+     *
+     * @param key Path, query and Accept header of the request
+     * @param groups The groups of the resource
+     * @param generation The generation of the groups, from before the response was made
+     * @param status The status of the response
+     * @param headers The headers of the response, other than those describing the body encoding
+     * @param body The body of the response
+     */
+    public void put(String key, List<String> groups, long generation, int status, Map<String, List<String>> headers, byte[] body) {
+        if (body.length > maxBytes || generation(groups) != generation) {
+            discarded.incrementAndGet();
+            return;
+        }
+
+        Entry entry = new Entry(groups, status, headers, body, body.length < gzipMinBytes ? null : gzip(body));
+        entries.put(key, entry);
+        stores.incrementAndGet();
+
+        //the groups may have been invalidated while it was being stored, in which case it may already have been missed
+        if (generation(groups) != generation) {
+            entries.asMap().remove(key, entry);
+            discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>Drops the responses of a group, once the current transaction commits (or straight away without one).</p>
+     */
+    public void invalidate(final String group) {
+        if (registry.getTransactionKey() == null) {
+            evict(group);
+            return;
+        }
+
+        registry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {}
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    evict(group);
+                }
+            }
+        });
+    }
+
+    private void evict(String group) {
+        generation(group).incrementAndGet();
+        invalidations.incrementAndGet();
+
+        Iterator<Entry> cached = entries.asMap().values().iterator();
+        while (cached.hasNext()) {
+            if (cached.next().groups.contains(group)) {
+                cached.remove();
+            }
+        }
+    }
+
+    private AtomicLong generation(String group) {
+        AtomicLong generation = generations.get(group);
+        if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = generations.putIfAbsent(group, created);
+            if (generation == null) {
+                generation = created;
+            }
+        }
+        return generation;
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try {
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(body);
+            out.close();
+        } catch (IOException e) {
+            //can't happen in memory
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "responses";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        long bytes = 0;
+        for (Entry entry : entries.asMap().values()) {
+            bytes += entry.body.length + (entry.gzip == null ? 0 : entry.gzip.length);
+        }
+        long total = hits.get() + misses.get();
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("entries", entries.size());
+        metrics.put("maxEntries", maxEntries);
+        metrics.put("bytes", bytes);
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        metrics.put("hitRatio", total == 0 ? 0.0 : (double) hits.get() / total);
+        metrics.put("stores", stores.get());
+        metrics.put("discarded", discarded.get());
+        metrics.put("invalidations", invalidations.get());
+        return metrics;
+    }
+
+    /**
+     * <p>A cached response. It's shared between all the requests, so it must not be modified.</p>
+     */
+    public static final class Entry {
+        final List<String> groups;
+        public final int status;
+        public final Map<String, List<String>> headers;
+        public final byte[] body;
+        //null if the body is too small to be worth compressing
+        public final byte[] gzip;
+
+        Entry(List<String> groups, int status, Map<String, List<String>> headers, byte[] body, byte[] gzip) {
+            this.groups = groups;
+            this.status = status;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.gzip = gzip;
+        }
+    }
+}
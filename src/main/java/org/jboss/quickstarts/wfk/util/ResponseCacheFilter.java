@@ -0,0 +1,354 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>Answers the GET requests of the resources cached by the {@link ResponseCache} straight from the cache, and fills
+ * the cache with the responses of those which miss.</p>
+ *
+ * <p>A miss is passed on to JAX-RS as usual, while the status, headers and body of the response are recorded on the way
+ * out. Only complete 200 OK responses written through the output stream are stored. A hit writes the recorded headers
+ * and the body (gzip compressed if the client accepts it) in one go, or 304 NOT MODIFIED if the client's copy is current.
+ * That is checked like {@link Validators#notModified(javax.ws.rs.core.Request)} does on a miss: by
+ * <code>If-None-Match</code> against the ETag, or failing that by <code>If-Modified-Since</code> against the
+ * Last-Modified date.</p>
+ *
+ * <p>The gzip variant is made here, so a miss is passed on without the <code>Accept-Encoding</code> of the request, and
+ * what's recorded is the identity body. web.xml maps this filter inside the {@link CompressionFilter}, which still sees
+ * the client's <code>Accept-Encoding</code> and so compresses the response of a miss on its way out, after it's been
+ * recorded.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class ResponseCacheFilter implements Filter {
+    private static final String API = "/api";
+    private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    @Inject
+    ResponseCache cache;
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse res = (HttpServletResponse) response;
+
+        String path = req.getRequestURI().substring(req.getContextPath().length());
+        List<String> groups = "GET".equals(req.getMethod()) && path.startsWith(API) ? cache.groups(path.substring(API.length())) : null;
+        if (groups == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        //the Host too, as the paged responses have an absolute Link to their next page
+        String key = path + "?" + (req.getQueryString() == null ? "" : req.getQueryString()) + "|" + req.getHeader("Host") + "|"
+                + req.getHeader("Accept");
+        ResponseCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            replay(entry, req, res);
+            return;
+        }
+
+        long generation = cache.generation(groups);
+        RecordingResponse recording = new RecordingResponse(res);
+        chain.doFilter(new IdentityRequest(req), recording);
+
+        //the body of a suspended request is written after this returns, so it can't be recorded here
+        if (!request.isAsyncStarted() && recording.isCacheable()) {
+            cache.put(key, groups, generation, recording.status, recording.headers, recording.body.toByteArray());
+        }
+    }
+
+    private static void replay(ResponseCache.Entry entry, HttpServletRequest req, HttpServletResponse res) throws IOException {
+        boolean notModified = isNotModified(entry, req);
+
+        for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+            if (notModified && header.getKey().equalsIgnoreCase("Content-Type")) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                res.addHeader(header.getKey(), value);
+            }
+        }
+        res.setHeader("Vary", "Accept, Accept-Encoding");
+
+        if (notModified) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = entry.body;
+        if (entry.gzip != null && CompressionFilter.accepts(req.getHeader("Accept-Encoding"), "gzip")) {
+            res.setHeader("Content-Encoding", "gzip");
+            body = entry.gzip;
+        }
+
+        res.setStatus(entry.status);
+        res.setContentLength(body.length);
+        res.getOutputStream().write(body);
+    }
+
+    /**
+     * @return true if the client's copy of the cached response is current
+     */
+    private static boolean isNotModified(ResponseCache.Entry entry, HttpServletRequest req) {
+        //an If-None-Match overrides the If-Modified-Since, as the date is the weaker validator
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            List<String> tags = entry.headers.get("ETag");
+            return tags != null && matches(ifNoneMatch, tags.get(0));
+        }
+
+        List<String> modified = entry.headers.get("Last-Modified");
+        if (modified == null) {
+            return false;
+        }
+
+        long since;
+        try {
+            since = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (since < 0) {
+            return false;
+        }
+
+        try {
+            //HTTP dates have whole seconds
+            return format().parse(modified.get(0)).getTime() / 1000 <= since / 1000;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private static SimpleDateFormat format() {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static boolean matches(String ifNoneMatch, String tag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * <p>Hides the <code>Accept-Encoding</code> of the request.</p>
+     */
+    private static class IdentityRequest extends HttpServletRequestWrapper {
+        IdentityRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return name.equalsIgnoreCase("Accept-Encoding") ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (name.equalsIgnoreCase("Accept-Encoding")) {
+                return Collections.enumeration(Collections.<String>emptyList());
+            }
+            return super.getHeaders(name);
+        }
+    }
+
+    /**
+     * <p>Passes the response through, recording its status, headers and body.</p>
+     */
+    private static class RecordingResponse extends HttpServletResponseWrapper {
+        //the headers describing the body are set when it's replayed
+        private static final List<String> SKIPPED = java.util.Arrays.asList("Content-Length", "Content-Encoding", "Transfer-Encoding", "Date", "Vary");
+
+        int status = SC_OK;
+        final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        //set when something makes the response unfit to be shared, e.g. a cookie
+        boolean uncacheable;
+        private ServletOutputStream out;
+
+        RecordingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        boolean isCacheable() {
+            return !uncacheable && status == SC_OK && out != null && headers.containsKey("Content-Type");
+        }
+
+        private void record(String name, String value, boolean replace) {
+            //a body which is already encoded can't be replayed as it is
+            if (name.equalsIgnoreCase("Set-Cookie") || name.equalsIgnoreCase("Content-Encoding")) {
+                uncacheable = true;
+            }
+            for (String skipped : SKIPPED) {
+                if (skipped.equalsIgnoreCase(name)) {
+                    return;
+                }
+            }
+
+            List<String> values = headers.get(name);
+            if (values == null || replace) {
+                values = new ArrayList<String>(1);
+                headers.put(name, values);
+            }
+            values.add(value);
+        }
+
+        private static String date(long date) {
+            return format().format(new Date(date));
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            uncacheable = true;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            uncacheable = true;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            uncacheable = true;
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            record(name, value, true);
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            record(name, value, false);
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            record(name, date(date), true);
+            super.setDateHeader(name, date);
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            record(name, date(date), false);
+            super.addDateHeader(name, date);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            record(name, Integer.toString(value), true);
+            super.setIntHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            record(name, Integer.toString(value), false);
+            super.addIntHeader(name, value);
+        }
+
+        @Override
+        public void setContentType(String type) {
+            if (type != null) {
+                record("Content-Type", type, true);
+            }
+            super.setContentType(type);
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            //only the bytes written to the output stream are recorded
+            uncacheable = true;
+            return super.getWriter();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                final ServletOutputStream target = super.getOutputStream();
+                out = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        body.write(b);
+                        target.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        body.write(b, off, len);
+                        target.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        target.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        target.close();
+                    }
+                };
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.jboss.quickstarts.wfk.util;
+
+/**
+ * <p>Small helper for reading deployment settings.</p>
+ *
+ * <p>A setting such as <code>upstream.executor.threads</code> is looked up first as a JVM system property
+ * (<code>-Dupstream.executor.threads=32</code>) and then as an environment variable with the dots replaced by
+ * underscores and upper cased (<code>UPSTREAM_EXECUTOR_THREADS=32</code>), which is how OpenShift passes settings in.
+ * If neither is present, or the value can't be parsed, the supplied default is used.</p>
+ *
+ * @author Jakub Gawron
+ */
+public final class Settings {
+
+    private Settings() {}
+
+    public static String get(String name, String defaultValue) {
+        String value = null;
+
+        try {
+            value = System.getProperty(name);
+
+            if (value == null) {
+                value = System.getenv(name.replace('.', '_').replace('-', '_').toUpperCase());
+            }
+        } catch (SecurityException e) {}
+
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(get(name, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        try {
+            return Long.parseLong(get(name, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String name, double defaultValue) {
+        try {
+            return Double.parseDouble(get(name, Double.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        return Boolean.parseBoolean(get(name, Boolean.toString(defaultValue)));
+    }
+}
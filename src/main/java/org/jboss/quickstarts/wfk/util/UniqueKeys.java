@@ -0,0 +1,57 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Helper for relying on the unique constraints of the database, instead of looking for a duplicate before every
+ * insert.</p>
+ *
+ * <p>With <code>insert.optimistic</code> on (the default, see {@link Settings}), the validators skip the query for an
+ * existing row with the same unique key, and the repositories insert straight away, turning a violation of the unique
+ * constraint into the same exception the validator would have thrown. That saves a round trip on every insert, and
+ * also catches the duplicates made at the same time, which the query can't see before they're committed.</p>
+ *
+ * @author Jakub Gawron
+ */
+public final class UniqueKeys {
+    /**
+     * <p>Whether the validators should skip the query for a duplicate, and leave it to the unique constraint.</p>
+     */
+    public static final boolean OPTIMISTIC = Settings.getBoolean("insert.optimistic", true);
+
+    //SQLSTATE of a unique constraint violation in H2, PostgreSQL, HSQLDB and DB2
+    private static final String UNIQUE_VIOLATION = "23505";
+    //SQLSTATE of any integrity constraint violation (unique, foreign key, not null...) in MySQL, Oracle and SQL Server
+    private static final String INTEGRITY_VIOLATION = "23000";
+    //vendor codes which tell a unique violation from the others under 23000: MySQL ER_DUP_ENTRY and
+    //ER_DUP_ENTRY_WITH_KEY_NAME, Oracle ORA-00001, SQL Server unique constraint and unique index
+    private static final List<Integer> UNIQUE_VIOLATION_CODES = Arrays.asList(1062, 1586, 1, 2627, 2601);
+
+    private UniqueKeys() {}
+
+    /**
+     * <p>Checks whether an exception thrown by an insert or update was caused by a unique constraint violation.</p>
+     *
+     * @param e The exception, usually a {@link javax.persistence.PersistenceException}
+     * @return true if there is an SQLException with the SQLSTATE of a unique violation among its causes, or with the
+     *         generic SQLSTATE of an integrity violation and the vendor code of a unique one
+     */
+    public static boolean isViolation(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof SQLException) {
+                SQLException sql = (SQLException) cause;
+                String state = sql.getSQLState();
+                if (UNIQUE_VIOLATION.equals(state)) {
+                    return true;
+                }
+                //a foreign key or not null violation must not be reported as a duplicate
+                if (INTEGRITY_VIOLATION.equals(state) && UNIQUE_VIOLATION_CODES.contains(sql.getErrorCode())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
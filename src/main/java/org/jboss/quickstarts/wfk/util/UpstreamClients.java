@@ -0,0 +1,150 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.jboss.quickstarts.wfk.area.AreaService;
+import org.jboss.quickstarts.wfk.hotel.HotelBookingService;
+import org.jboss.quickstarts.wfk.hotel.HotelService;
+import org.jboss.quickstarts.wfk.metrics.MetricSource;
+import org.jboss.quickstarts.wfk.taxi.TaxiBookingService;
+import org.jboss.quickstarts.wfk.taxi.TaxiService;
+import org.jboss.resteasy.client.ClientExecutor;
+import org.jboss.resteasy.client.ProxyFactory;
+import org.jboss.resteasy.client.core.executors.ApacheHttpClient4Executor;
+
+/**
+ * <p>Registry of the client proxies used to talk to the external (upstream) RESTful services.</p>
+ *
+ * <p>Building a proxy with {@link ProxyFactory} means parsing all the JAX-RS annotations of the interface, so the proxies
+ * are built only once here and then shared. All of them use a single pool of keep-alive HTTP connections, instead of
+ * opening a new connection for every request.</p>
+ *
+ * <p>Every upstream (hotel, taxi and area) has its own {@link UpstreamGuard}, i.e. a circuit breaker and a limit on
+ * concurrent calls, so one slow or failing upstream can't hold up the others. Their state is published as the
+ * <code>upstreams</code> metrics.</p>
+ *
+ * <p>Note that the pooled connection is only handed back once the response has been read, so callers which don't read
+ * the entity (e.g. on DELETE, or when the status is an error) must call
+ * {@link org.jboss.resteasy.client.ClientResponse#releaseConnection()}.</p>
+ *
+ * <p>The following settings (see {@link Settings}) are recognised:</p>
+ * <ul>
+ *     <li><code>upstream.hotel.url</code>, <code>upstream.taxi.url</code>, <code>upstream.area.url</code> - base URLs</li>
+ *     <li><code>upstream.http.max-connections</code> - size of the whole connection pool</li>
+ *     <li><code>upstream.http.max-connections-per-route</code> - connections kept to a single upstream host</li>
+ *     <li><code>upstream.http.connect-timeout</code>, <code>upstream.http.read-timeout</code> - in milliseconds</li>
+ * </ul>
+ *
+ * <p>The proxies can be pointed at other URLs while the application is running with
+ * {@link #connect(String, String, String)}, e.g. by the tests, which talk to stubs of the upstream services.</p>
+ *
+ * @author Jakub Gawron
+ */
+@ApplicationScoped
+public class UpstreamClients implements MetricSource {
+    public static final String DEFAULT_HOTEL_URL = "http://contacts-120232109.rhcloud.com";
+    public static final String DEFAULT_TAXI_URL = "http://contacts-120357332.rhcloud.com";
+    public static final String DEFAULT_AREA_URL = "http://states-100937864.rhcloud.com";
+
+    @Inject
+    private @Named("logger") Logger log;
+
+    private ThreadSafeClientConnManager connectionManager;
+
+    private final UpstreamGuard hotelGuard = new UpstreamGuard("hotel");
+    private final UpstreamGuard taxiGuard = new UpstreamGuard("taxi");
+    private final UpstreamGuard areaGuard = new UpstreamGuard("area");
+
+    private ClientExecutor executor;
+
+    private volatile HotelService hotelService;
+    private volatile HotelBookingService hotelBookingService;
+    private volatile TaxiService taxiService;
+    private volatile TaxiBookingService taxiBookingService;
+    private volatile AreaService areaService;
+
+    @PostConstruct
+    void start() {
+        connectionManager = new ThreadSafeClientConnManager();
+        connectionManager.setMaxTotal(Settings.getInt("upstream.http.max-connections", 100));
+        connectionManager.setDefaultMaxPerRoute(Settings.getInt("upstream.http.max-connections-per-route", 20));
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, Settings.getInt("upstream.http.connect-timeout", 2000));
+        HttpConnectionParams.setSoTimeout(params, Settings.getInt("upstream.http.read-timeout", 10000));
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        executor = new ApacheHttpClient4Executor(new DefaultHttpClient(connectionManager, params));
+
+        connect(Settings.get("upstream.hotel.url", DEFAULT_HOTEL_URL),
+                Settings.get("upstream.taxi.url", DEFAULT_TAXI_URL),
+                Settings.get("upstream.area.url", DEFAULT_AREA_URL));
+    }
+
+    /**
+     * <p>Points the proxies at the given base URLs. Calls which are already under way finish against the old ones.</p>
+     */
+    public void connect(String hotelUrl, String taxiUrl, String areaUrl) {
+        //services of the same upstream share its guard, as they share its host
+        hotelService = hotelGuard.protect(HotelService.class, ProxyFactory.create(HotelService.class, hotelUrl, executor));
+        hotelBookingService = hotelGuard.protect(HotelBookingService.class, ProxyFactory.create(HotelBookingService.class, hotelUrl, executor));
+        taxiService = taxiGuard.protect(TaxiService.class, ProxyFactory.create(TaxiService.class, taxiUrl, executor));
+        taxiBookingService = taxiGuard.protect(TaxiBookingService.class, ProxyFactory.create(TaxiBookingService.class, taxiUrl, executor));
+        areaService = areaGuard.protect(AreaService.class, ProxyFactory.create(AreaService.class, areaUrl, executor));
+
+        log.info("Upstream clients ready: hotel=" + hotelUrl + ", taxi=" + taxiUrl + ", area=" + areaUrl);
+    }
+
+    @PreDestroy
+    void stop() {
+        connectionManager.shutdown();
+    }
+
+    public HotelService getHotelService() {
+        return hotelService;
+    }
+
+    public HotelBookingService getHotelBookingService() {
+        return hotelBookingService;
+    }
+
+    public TaxiService getTaxiService() {
+        return taxiService;
+    }
+
+    public TaxiBookingService getTaxiBookingService() {
+        return taxiBookingService;
+    }
+
+    public AreaService getAreaService() {
+        return areaService;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "upstreams";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        for (UpstreamGuard guard : new UpstreamGuard[] {hotelGuard, taxiGuard, areaGuard}) {
+            metrics.put(guard.getName(), guard.getMetrics());
+        }
+        metrics.put("connectionsInPool", connectionManager.getConnectionsInPool());
+        return metrics;
+    }
+}
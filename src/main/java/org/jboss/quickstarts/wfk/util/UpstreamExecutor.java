@@ -0,0 +1,80 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.core.Response;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>Bounded thread pool used to run calls to the external (upstream) services concurrently.</p>
+ *
+ * <p>Both the number of threads and the number of queued calls are capped, so a slow upstream can't make us spawn an
+ * unbounded number of threads. When the pool and its queue are full, the call is refused straight away with
+ * a 503 SERVICE UNAVAILABLE instead of piling up behind the others.</p>
+ *
+ * <p>Sizes can be changed with the <code>upstream.executor.threads</code> and <code>upstream.executor.queue</code>
+ * settings, see {@link Settings}.</p>
+ *
+ * @author Jakub Gawron
+ */
+@ApplicationScoped
+public class UpstreamExecutor {
+
+    @Inject
+    private @Named("logger") Logger log;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    void start() {
+        int threads = threads();
+        int queue = Settings.getInt("upstream.executor.queue", 64);
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadFactoryBuilder().setNameFormat("upstream-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+
+        log.info("Started upstream executor with " + threads + " threads and a queue of " + queue);
+    }
+
+    /**
+     * <p>Returns the number of upstream threads, which is also the default limit of each upstream's bulkhead, see
+     * {@link UpstreamGuard}.</p>
+     */
+    static int threads() {
+        return Settings.getInt("upstream.executor.threads", 16);
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * <p>Schedules the task to run on one of the upstream threads.</p>
+     *
+     * @param task The call to make
+     * @return Future holding the outcome of the call
+     * @throws RestServiceException with status 503 if the pool is saturated
+     */
+    public <T> Future<T> submit(Callable<T> task) throws RestServiceException {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new RestServiceException("External services are busy, please try again shortly", Response.Status.SERVICE_UNAVAILABLE, e);
+        }
+    }
+}
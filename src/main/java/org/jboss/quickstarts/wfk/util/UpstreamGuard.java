@@ -0,0 +1,166 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import org.jboss.resteasy.client.ClientResponse;
+import org.jboss.resteasy.client.core.BaseClientResponse;
+
+/**
+ * <p>Protects the application from one misbehaving upstream service.</p>
+ *
+ * <p>It combines a {@link CircuitBreaker}, so calls fail fast while the upstream is down, with a bulkhead: a limit on
+ * how many calls to the upstream may be in progress at once (<code>upstream.&lt;name&gt;.bulkhead</code>, waiting at
+ * most <code>upstream.&lt;name&gt;.bulkhead.wait</code> milliseconds for a free slot). A slow upstream can then only tie
+ * up its own share of threads, instead of all of them. Either way, refused calls throw a {@link RestServiceException}
+ * with status 503 SERVICE UNAVAILABLE. By default the limit is the number of upstream threads (see
+ * {@link UpstreamExecutor}) and a call waits up to 100 milliseconds, so a short burst queues briefly instead of being
+ * refused.</p>
+ *
+ * <p>A slot is held until the connection of the response is released, i.e. once its entity has been read or
+ * {@link ClientResponse#releaseConnection()} has been called, as the body is still being received until then.</p>
+ *
+ * <p>A call fails if it throws, or if the upstream responds with a 5xx status. Any other response, including 4xx ones
+ * such as 409 CONFLICT, means the upstream is working fine.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class UpstreamGuard {
+    private final String name;
+    private final CircuitBreaker breaker;
+
+    private final int limit;
+    private final long wait;
+    private final Semaphore bulkhead;
+    private final AtomicLong bulkheadRejected = new AtomicLong();
+
+    public UpstreamGuard(String name) {
+        this.name = name;
+        this.breaker = new CircuitBreaker(name);
+        this.limit = Math.max(1, Settings.getInt("upstream." + name + ".bulkhead", UpstreamExecutor.threads()));
+        this.wait = Settings.getLong("upstream." + name + ".bulkhead.wait", 100);
+        this.bulkhead = new Semaphore(limit);
+    }
+
+    /**
+     * <p>Wraps the client proxy, so that all its calls go through this guard.</p>
+     */
+    public <T> T protect(Class<T> type, final T target) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return invokeTarget(target, method, args);
+                }
+                return call(target, method, args);
+            }
+        });
+
+        return type.cast(proxy);
+    }
+
+    private Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            if (!bulkhead.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                bulkheadRejected.incrementAndGet();
+                throw new RestServiceException("External " + name + " service is busy, please try again shortly", Response.Status.SERVICE_UNAVAILABLE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestServiceException(e);
+        }
+
+        boolean released = false;
+        try {
+            if (!breaker.tryAcquire()) {
+                throw new RestServiceException("External " + name + " service is currently unavailable", Response.Status.SERVICE_UNAVAILABLE);
+            }
+
+            long start = System.nanoTime();
+            boolean failure = true;
+            Object result;
+            try {
+                result = invokeTarget(target, method, args);
+                failure = result instanceof ClientResponse && ((ClientResponse<?>) result).getStatus() >= 500;
+            } finally {
+                breaker.onResult(System.nanoTime() - start, failure);
+            }
+
+            if (result instanceof BaseClientResponse && !((BaseClientResponse<?>) result).wasReleased()) {
+                //the body is read after the call returns, so the slot is given back with the connection
+                BaseClientResponse<?> response = (BaseClientResponse<?>) result;
+                response.setStreamFactory(new ReleasingStreamFactory(response.getStreamFactory()));
+                released = true;
+            }
+            return result;
+        } finally {
+            if (!released) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * <p>Gives the bulkhead slot back once the connection of a response is released.</p>
+     */
+    private class ReleasingStreamFactory implements BaseClientResponse.BaseClientResponseStreamFactory {
+        private final BaseClientResponse.BaseClientResponseStreamFactory target;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ReleasingStreamFactory(BaseClientResponse.BaseClientResponseStreamFactory target) {
+            this.target = target;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return target.getInputStream();
+        }
+
+        @Override
+        public void performReleaseConnection() {
+            try {
+                target.performReleaseConnection();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    bulkhead.release();
+                }
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>(breaker.getMetrics());
+        metrics.put("bulkheadLimit", limit);
+        metrics.put("bulkheadInUse", limit - bulkhead.availablePermits());
+        metrics.put("bulkheadRejected", bulkheadRejected.get());
+        return metrics;
+    }
+}
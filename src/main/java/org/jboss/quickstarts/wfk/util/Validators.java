@@ -0,0 +1,104 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.Date;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * <p>The <code>ETag</code> and <code>Last-Modified</code> validators of a representation, built from the version of the
+ * data it's made of rather than from its content, so they're known before the data is read.</p>
+ *
+ * <p>The ETag is <code>"&lt;type&gt;-&lt;epoch&gt;-&lt;version&gt;"</code>. Versions start again when the application
+ * restarts, so they're only unique together with the epoch (when the versions started). Responses are marked
+ * <code>no-cache</code>, i.e. the client may keep them but has to revalidate them on every use, which costs a 304 NOT
+ * MODIFIED as long as the version hasn't changed.</p>
+ *
+ * @author Jakub Gawron
+ */
+public final class Validators {
+    private final EntityTag tag;
+    private final Date lastModified;
+
+    /**
+     * @param type Name of the type of data, e.g. <code>flight</code>
+     * @param epoch When the versions started, in milliseconds since the epoch
+     * @param version Version of the data
+     * @param modified When the data last changed, in milliseconds since the epoch
+     */
+    public Validators(String type, long epoch, long version, long modified) {
+        this.tag = new EntityTag(type + "-" + Long.toString(epoch, 36) + "-" + version);
+        //HTTP dates have no milliseconds
+        this.lastModified = new Date(modified / 1000 * 1000);
+    }
+
+    private Validators(EntityTag tag, Date lastModified) {
+        this.tag = tag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * <p>Returns the validators of a representation made of several others, e.g. the travel catalogue. Its ETag is a
+     * hash of theirs, so it changes whenever any of them does, and it was last modified when the latest of them was.</p>
+     *
+     * @param type Name of the type of data, e.g. <code>catalogue</code>
+     * @param parts The validators of the representations it's made of
+     */
+    public static Validators combine(String type, Validators... parts) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        Date lastModified = new Date(0);
+        for (Validators part : parts) {
+            hasher.putUnencodedChars(part.tag.getValue()).putChar('\n');
+            if (part.lastModified.after(lastModified)) {
+                lastModified = part.lastModified;
+            }
+        }
+        return new Validators(new EntityTag(type + "-" + hasher.hash()), lastModified);
+    }
+
+    public EntityTag getTag() {
+        return tag;
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * <p>Checks the <code>If-None-Match</code> and <code>If-Modified-Since</code> headers of the request.</p>
+     *
+     * @param request The HTTP request; null when not called over HTTP
+     * @return 304 NOT MODIFIED if the client's copy is current, otherwise null and the data has to be sent
+     */
+    public Response notModified(Request request) {
+        if (request == null) {
+            return null;
+        }
+
+        Response.ResponseBuilder builder = request.evaluatePreconditions(lastModified, tag);
+        return builder == null ? null : apply(builder).build();
+    }
+
+    /**
+     * <p>Adds the validators and the cache control to a response.</p>
+     */
+    public Response.ResponseBuilder apply(Response.ResponseBuilder builder) {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setPrivate(true);
+        cacheControl.setNoCache(true);
+
+        return builder.tag(tag).lastModified(lastModified).cacheControl(cacheControl);
+    }
+
+    /**
+     * <p>Adds the validators and the cache control to a response which has already been built.</p>
+     */
+    public Response apply(Response response) {
+        return apply(Response.fromResponse(response)).build();
+    }
+}
@@ -18,9 +18,10 @@
 -- You can use this file to load seed data into the database using SQL statements
 -- Since the database doesn't know to increase the Sequence to match what is manually loaded here it starts at 1 and tries
 --  to enter a record with the same PK and create an error.  If we use a high we don't interfere with the sequencing (at least until later).
+-- The ids are taken from the same sequences Hibernate uses (see PooledSequenceGenerator), so they never clash.
 -- NOTE: this file should be removed for production systems. 
 
-insert into customer (email, name, phone_number) values ('kubatek94@gmail.com', 'Jakub Gawron', '07706133111')
+insert into customer (id, email, name, phone_number) values (next value for customer_seq, 'kubatek94@gmail.com', 'Jakub Gawron', '07706133111')
 
-insert into flight (departure, destination, number) values ('NCL', 'SXE', 'EZY73')
-insert into flight (departure, destination, number) values ('SXE', 'NCL', 'EZY88')
+insert into flight (id, departure, destination, number) values (next value for flight_seq, 'NCL', 'SXE', 'EZY73')
+insert into flight (id, departure, destination, number) values (next value for flight_seq, 'SXE', 'NCL', 'EZY88')
@@ -21,14 +21,14 @@
         .module('app.customer')
         .controller('CustomerListController', CustomerListController);
 
-    CustomerListController.$inject = ['$scope', '$filter', 'Customer', 'messageBag'];
+    CustomerListController.$inject = ['$scope', '$filter', 'Customer', 'messageBag', 'pages'];
 
     /**
      * Description of File
      * @author hugofirth
      * @constructor
      */
-    function CustomerListController($scope, $filter, Customer, messageBag) {
+    function CustomerListController($scope, $filter, Customer, messageBag, pages) {
         //Assign service to $scope variables
         $scope.customerService = Customer;
         $scope.messageService = messageBag;
@@ -51,9 +51,10 @@
 
         //Get customers
         $scope.customerService.query(
-            //Successful query
-            function(data) {
+            //Successful query, the first page of customers
+            function(data, headers) {
                 $scope.customerService.data = data;
+                $scope.nextPage = pages.next(headers);
                 $scope.customers = getHeadings($scope.customerService.data);
                 //Keep the contacts list headings in sync with the underlying customers
                 $scope.$watchCollection('customerService.data', function(newCustomers, oldCustomers) {
@@ -68,6 +69,22 @@
             }
         );
 
+        //Get the next page of customers, if there is one
+        $scope.loadMore = function() {
+            pages.load($scope.nextPage, $scope.customerService.data).then(
+                //Successful query
+                function(nextPage) {
+                    $scope.nextPage = nextPage;
+                },
+                //Error
+                function(result) {
+                    for(var error in result.data){
+                        $scope.messageService.push('danger', result.data[error]);
+                    }
+                }
+            );
+        };
+
         //Boolean flag representing whether the details of the contacts are expanded inline
         $scope.details = false;
 
@@ -20,9 +20,9 @@
         .module('app.customer')
         .controller('CustomerController', CustomerController);
 
-    CustomerController.$inject = ['$scope', '$routeParams', 'Customer', 'TravelBooking', 'messageBag'];
+    CustomerController.$inject = ['$scope', '$routeParams', 'Customer', 'TravelBooking', 'messageBag', 'pages'];
 
-    function CustomerController($scope, $routeParams, Customer, TravelBooking, messageBag) {
+    function CustomerController($scope, $routeParams, Customer, TravelBooking, messageBag, pages) {
         //Assign service to $scope variables
         $scope.customerService = Customer;
         $scope.messageService = messageBag;
@@ -49,9 +49,10 @@
         //Get bookings for customer
         $scope.bookingService.query(
             {customer: $scope.customerService.current.id},
-            //Successful query
-            function(data) {
+            //Successful query, followed by the rest of the pages
+            function(data, headers) {
                 $scope.bookings = data;
+                pages.follow(headers, $scope.bookings);
             },
             //Error
             function(result) {
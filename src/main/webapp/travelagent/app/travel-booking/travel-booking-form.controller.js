@@ -20,52 +20,49 @@
         .module('app.travel-booking')
         .controller('TravelBookingFormController', TravelBookingFormController);
 
-    TravelBookingFormController.$inject = ['$scope', 'TravelBooking', 'Customer', 'messageBag', '$http'];
+    TravelBookingFormController.$inject = ['$scope', 'TravelBooking', 'Customer', 'messageBag', '$http', 'pages'];
 
-    function TravelBookingFormController($scope, TravelBooking, Customer, messageBag, $http) {
+    function TravelBookingFormController($scope, TravelBooking, Customer, messageBag, $http, pages) {
         //Assign service to $scope variables
         $scope.bookingService = TravelBooking;
         $scope.customerService = Customer;
         $scope.messageService = messageBag;
 
-        //Load customers and external resources
-        $scope.customerService.data = Customer.query();
-
         $scope.taxis = [];
         $scope.hotels = [];
         $scope.flights = [];
+        $scope.customerService.data = [];
+
+        //Load the flights, hotels, taxis and customers with a single request, a section whose service is down
+        //comes back UNAVAILABLE while the others are still shown. The customers come a page at a time, the catalogue
+        //only has the first one and the link to the next
+        var sections = {
+            taxis: function(section) { $scope.taxis = section.items; },
+            hotels: function(section) { $scope.hotels = section.items; },
+            flights: function(section) { $scope.flights = section.items; },
+            customers: function(section) {
+                $scope.customerService.data = section.items;
+                pages.loadAll(section.next, $scope.customerService.data).then(null, function() {
+                    $scope.messageService.push('danger', '/customers resource unavailable');
+                });
+            }
+        };
 
-
-        //** NOTE **
-        //You should edit the parameter of the $http.get(...) function calls to specify the URL structure to return
-        // Commodity entities from your TravelAgent API
-
-        // EDIT ==>
-
-        $http.get('../api/travelagent/taxis')
-            .success(function(data) {
-                $scope.taxis = data;
-            })
-            .error(function() {
-                $scope.messageService.push('danger', '/taxis resource unavailable');
-            });
-        $http.get('../api/travelagent/hotels')
-            .success(function(data) {
-                $scope.hotels = data;
-            })
-            .error(function() {
-                    $scope.messageService.push('danger', '/hotels resource unavailable');
-            });
-        $http.get('../api/travelagent/flights')
+        $http.get('../api/travelagent/catalogue')
             .success(function(data) {
-                $scope.flights = data;
+                angular.forEach(sections, function(assign, name) {
+                    var section = data[name];
+                    if(section && section.status === 'OK') {
+                        assign(section);
+                    } else {
+                        $scope.messageService.push('danger', '/' + name + ' resource unavailable');
+                    }
+                });
             })
             .error(function() {
-                $scope.messageService.push('danger', '/flights resource unavailable');
+                $scope.messageService.push('danger', '/catalogue resource unavailable');
             });
 
-        // <== EDIT
-
         //Get today's date for the bookingDate form value min
         $scope.date = Date.now();
 
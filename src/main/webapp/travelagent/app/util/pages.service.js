@@ -0,0 +1,66 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+(function() {
+    'use strict';
+    angular
+        .module('app.util')
+        //Defines the pages factory, which follows the Link headers of the paged collections of the api
+        .factory('pages', pages);
+
+    pages.$inject = ['$http', '$q'];
+
+    //pages factory function, the api returns collections a page at a time, with a link to the next page if there is one
+    function pages($http, $q) {
+        var nextLink = /<([^>]*)>\s*;\s*rel="?next"?/;
+
+        //Returns the url of the next page, given the headers getter of a response, or null for the last page
+        var next = function(headers) {
+            var match = nextLink.exec(headers('Link') || '');
+            return match ? match[1] : null;
+        };
+
+        //Fetches the next page and appends its items to list, returns a promise of the url of the page after it
+        var load = function(url, list) {
+            return $http.get(url).then(function(response) {
+                Array.prototype.push.apply(list, response.data);
+                return next(response.headers);
+            });
+        };
+
+        //Fetches the page at url and all the ones after it, appending their items to list
+        var loadAll = function(url, list) {
+            if(!url) {
+                return $q.when(list);
+            }
+            return load(url, list).then(function(nextUrl) {
+                return loadAll(nextUrl, list);
+            });
+        };
+
+        //Fetches all the pages after the one whose headers are given, appending their items to list
+        var follow = function(headers, list) {
+            return loadAll(next(headers), list);
+        };
+
+        return {
+            next: next,
+            load: load,
+            loadAll: loadAll,
+            follow: follow
+        };
+    }
+})();
@@ -18,19 +18,20 @@
     'use strict';
     angular
         .module('app.util')
-        //Defines the ajaxNonceInterceptor factory, gets invoked for each request
-        .factory('ajaxNonceInterceptor', ajaxNonceInterceptor);
-
-    //ajaxNonceInterceptor factory function, gets called after each http request
-    function ajaxNonceInterceptor() {
-        // This interceptor is equivalent to the behavior induced by jQuery's $.ajaxSetup({cache:false});
-        var param_start = /\?/;
+        //Defines the revalidateInterceptor factory, gets invoked for each request
+        .factory('revalidateInterceptor', revalidateInterceptor);
 
+    //revalidateInterceptor factory function, gets called after each http request
+    function revalidateInterceptor() {
+        // The api sends ETag and Last-Modified validators, and marks its responses no-cache, so the browser keeps them
+        // and asks with If-None-Match whether they have changed, getting an empty 304 if they haven't. A nonce in the
+        // URL would throw all that away, so instead every GET asks the browser to revalidate its copy (MSIE would
+        // otherwise reuse it without asking).
         return {
             request: function (config) {
                 if (config.method == 'GET') {
-                    // Add a query parameter named '_' to the URL, with a value equal to the current timestamp
-                    config.url += (param_start.test(config.url) ? "&" : "?") + '_=' + new Date().getTime();
+                    config.headers = config.headers || {};
+                    config.headers['Cache-Control'] = 'max-age=0';
                 }
                 return config;
             }
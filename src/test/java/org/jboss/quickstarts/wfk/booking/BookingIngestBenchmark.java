@@ -0,0 +1,207 @@
+package org.jboss.quickstarts.wfk.booking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * <p>Benchmark of writing a large number of bookings through <code>POST /bookings/bulk</code>.</p>
+ *
+ * <p>This is not a unit test (it's not run by surefire), but a small program to be run against a freshly deployed
+ * application:</p>
+ *
+ * <pre>
+ * java -cp target/test-classes:&lt;test classpath&gt; org.jboss.quickstarts.wfk.booking.BookingIngestBenchmark \
+ *     http://localhost:8080/jboss-contacts-swagger/api 1000000 5000 4
+ * </pre>
+ *
+ * <p>The arguments are the base url of the api, the number of bookings, the number of bookings per request and the
+ * number of concurrent clients. The bookings are spread over one customer and as many flights as needed, with one
+ * booking per flight per day for the next {@value #DAYS} days. It prints the throughput in bookings per second, and the
+ * time the server spent validating and writing them.</p>
+ *
+ * <p>To compare the old and the new write path, run it twice, restarting the server in between:</p>
+ * <ul>
+ *     <li>with <code>-Did.allocation-size=1 -Dingest.flush-size=1</code>, every booking gets its id from the database
+ *     and is inserted on its own, i.e. a round trip for the id and one for the insert, like with the
+ *     <code>IDENTITY</code> ids the entities used to have;</li>
+ *     <li>with the defaults, ids are handed out 50 at a time, and the inserts are sent in JDBC batches of 50 (see
+ *     <code>hibernate.jdbc.batch_size</code>).</li>
+ * </ul>
+ *
+ * <p><code>hibernate.show_sql</code> should be turned off for both runs, or logging the statements is all that gets
+ * measured.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class BookingIngestBenchmark {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    //days each flight is booked on, so 1M bookings need 1000 flights
+    private static final int DAYS = 1000;
+
+    private final String api;
+    private final int bookings;
+    private final int chunk;
+    private final int clients;
+
+    public BookingIngestBenchmark(String api, int bookings, int chunk, int clients) {
+        this.api = api;
+        this.bookings = bookings;
+        this.chunk = chunk;
+        this.clients = clients;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String api = args.length > 0 ? args[0] : "http://localhost:8080/jboss-contacts-swagger/api";
+        int bookings = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int chunk = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        new BookingIngestBenchmark(api, bookings, chunk, clients).run();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() throws Exception {
+        final Map<String, Object> customer = post("/customers", customer());
+
+        int flightCount = (bookings + DAYS - 1) / DAYS;
+        final List<Map<String, Object>> flights = new ArrayList<Map<String, Object>>(flightCount);
+        //flight numbers have to be unique and exactly 5 characters
+        char prefix = (char) ('A' + (System.currentTimeMillis() / 1000) % 26);
+        for (int i = 0; i < flightCount; i++) {
+            flights.add(post("/flights", flight(String.format("%c%04d", prefix, i))));
+        }
+        System.out.println("Created " + flightCount + " flights, ingesting " + bookings + " bookings in requests of "
+                + chunk + " with " + clients + " clients");
+
+        final List<String> dates = new ArrayList<String>(DAYS);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        Calendar calendar = Calendar.getInstance();
+        for (int i = 0; i < DAYS; i++) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dates.add(format.format(calendar.getTime()));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Map<String, Object>>> futures = new ArrayList<Future<Map<String, Object>>>();
+
+        long start = System.nanoTime();
+        for (int from = 0; from < bookings; from += chunk) {
+            final int first = from;
+            final int last = Math.min(bookings, from + chunk);
+
+            futures.add(pool.submit(new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() throws Exception {
+                    //built when it's sent, so only the requests in flight are held in memory
+                    List<Map<String, Object>> body = new ArrayList<Map<String, Object>>(last - first);
+                    for (int i = first; i < last; i++) {
+                        body.add(booking(customer, flights.get(i / DAYS), dates.get(i % DAYS)));
+                    }
+                    return mapper.readValue(send("/bookings/bulk", body, 200), Map.class);
+                }
+            }));
+        }
+
+        long created = 0;
+        long serverMillis = 0;
+        for (Future<Map<String, Object>> future : futures) {
+            Map<String, Object> result = future.get();
+            created += ((Number) result.get("created")).longValue();
+            serverMillis += ((Number) result.get("millis")).longValue();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format("%d of %d bookings created in %.1f s, %.0f bookings/s, %.1f ms per request on the server",
+                created, bookings, seconds, created / seconds, (double) serverMillis / futures.size()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> post(String path, Map<String, Object> body) throws IOException {
+        return mapper.readValue(send(path, body, 201), Map.class);
+    }
+
+    private String send(String path, Object body, int expected) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(api + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout((int) TimeUnit.MINUTES.toMillis(10));
+        connection.setDoOutput(true);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            mapper.writeValue(out, body);
+        } finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String response = in == null ? "" : read(in);
+        if (status != expected) {
+            throw new IllegalStateException("POST " + path + " got " + status + ": " + response);
+        }
+        return response;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            StringBuilder builder = new StringBuilder();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                builder.append(new String(buffer, 0, n, "UTF-8"));
+            }
+            return builder.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Map<String, Object> customer() {
+        Map<String, Object> customer = new LinkedHashMap<String, Object>();
+        customer.put("name", "Ingest Test");
+        customer.put("email", "ingest" + System.currentTimeMillis() + "@newcastle.ac.uk");
+        customer.put("phoneNumber", "01234567858");
+        return customer;
+    }
+
+    private static Map<String, Object> flight(String number) {
+        Map<String, Object> flight = new LinkedHashMap<String, Object>();
+        flight.put("number", number);
+        flight.put("departure", "NCL");
+        flight.put("destination", "WAW");
+        return flight;
+    }
+
+    private static Map<String, Object> booking(Map<String, Object> customer, Map<String, Object> flight, String date) {
+        Map<String, Object> booking = new LinkedHashMap<String, Object>();
+        //only the ids of the customer and the flight are needed
+        booking.put("customer", Collections.singletonMap("id", customer.get("id")));
+        booking.put("flight", Collections.singletonMap("id", flight.get("id")));
+        booking.put("bookingDate", date);
+        return booking;
+    }
+}
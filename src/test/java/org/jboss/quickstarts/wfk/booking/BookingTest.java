@@ -2,22 +2,35 @@ package org.jboss.quickstarts.wfk.booking;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
+import javax.persistence.EntityManager;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.arquillian.junit.InSequence;
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.customer.CustomerRestService;
 import org.jboss.quickstarts.wfk.flight.Flight;
+import org.jboss.quickstarts.wfk.flight.FlightAvailability;
 import org.jboss.quickstarts.wfk.flight.FlightRestService;
+import org.jboss.quickstarts.wfk.util.ConcurrentRequests;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.SqlStatements;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
@@ -70,6 +83,11 @@ public class BookingTest {
     @Inject
     GuestBookingRestService guestBookingRestService;
     
+    @Inject
+    EntityManager em;
+    
+    private static final ObjectMapper mapper = new ObjectMapper();
+    
     
     /**
      * Create valid booking and check that it is persisted
@@ -417,6 +435,207 @@ public class BookingTest {
     	}
     }
     
+    /**
+     * Retry a booking with the same Idempotency-Key and check that the original response is replayed
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(10)
+    public void idempotentBooking() throws ParseException {
+    	SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    	
+    	Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "booking100@newcastle.ac.uk", "07706133212"));
+    	Flight flight = addFlight(new Flight(null, "BK100", "NRL", "DNE"));
+    	
+    	Response response = bookingRestService.createBooking(new Booking(customer, flight, sdf.parse("2016-03-01")), "booking-100");
+    	assertEquals("Unexpected response status", 201, response.getStatus());
+    	Booking booking = (Booking) response.getEntity();
+    	
+    	//the retry would be a conflict, if it was made again
+    	Response retry = bookingRestService.createBooking(new Booking(customer, flight, sdf.parse("2016-03-01")), "booking-100");
+    	assertEquals("Unexpected response status", 201, retry.getStatus());
+    	assertEquals("Response was not replayed", "true", retry.getMetadata().getFirst(IdempotencyStore.REPLAYED_HEADER));
+    	assertEquals("Replayed a different booking", booking.getId(), ((Booking) retry.getEntity()).getId());
+    	
+    	List<Booking> bookings = (List<Booking>) bookingRestService.getAllBookings(customer.getId()).getEntity();
+    	assertEquals("Booking was made twice", 1, bookings.size());
+    	
+    	//the same key can't be used for another booking
+    	try {
+    		bookingRestService.createBooking(new Booking(customer, flight, sdf.parse("2016-03-02")), "booking-100");
+    		fail("Expected a RestServiceException to be thrown");
+    	} catch (RestServiceException e) {
+    		assertEquals("Unexpected response status", Response.Status.BAD_REQUEST, e.getStatus());
+    	}
+    }
+    
+    /**
+     * Book a flight on a few days and check the availability calendar, and that its ETag changes with the bookings
+     */
+    @Test
+    @InSequence(11)
+    public void flightAvailability() throws ParseException {
+    	SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    	
+    	Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "booking110@newcastle.ac.uk", "07706133212"));
+    	Flight flight = addFlight(new Flight(null, "BK110", "NRL", "DNE"));
+    	
+    	bookingRestService.createBooking(new Booking(customer, flight, sdf.parse("2016-03-01")));
+    	bookingRestService.createBooking(new Booking(customer, flight, sdf.parse("2016-03-03")));
+    	
+    	Response response = flightRestService.getFlightAvailability(flight.getId(), "2016-02-28", "2016-03-12", null);
+    	assertEquals("Unexpected response status", 200, response.getStatus());
+    	FlightAvailability calendar = (FlightAvailability) response.getEntity();
+    	assertEquals("Unexpected number of days", 14, calendar.getDays());
+    	assertEquals("Unexpected number of booked days", 2, calendar.getBooked());
+    	//bits 2 and 4 of the first byte
+    	assertEquals("Unexpected bitset", "FAA=", calendar.getBitset());
+    	assertTrue("Booked day is free", calendar.isBooked(2));
+    	assertFalse("Free day is booked", calendar.isBooked(3));
+    	
+    	Object tag = response.getMetadata().getFirst("ETag");
+    	assertNotNull("Calendar has no ETag", tag);
+    	assertEquals("ETag changed without any bookings", tag, flightRestService.getFlightAvailability(flight.getId(), "2016-02-28", "2016-03-12", null).getMetadata().getFirst("ETag"));
+    	
+    	bookingRestService.createBooking(new Booking(customer, flight, sdf.parse("2016-03-02")));
+    	response = flightRestService.getFlightsAvailability(String.valueOf(flight.getId()), "2016-02-28", "2016-03-12", null);
+    	assertFalse("ETag didn't change with a new booking", tag.equals(response.getMetadata().getFirst("ETag")));
+    	
+    	try {
+    		flightRestService.getFlightAvailability(flight.getId(), "2016-03-12", "2016-02-28", null);
+    		fail("Expected a RestServiceException to be thrown");
+    	} catch (RestServiceException e) {
+    		assertEquals("Unexpected response status", Response.Status.BAD_REQUEST, e.getStatus());
+    	}
+    }
+    
+    /**
+     * Make many identical bookings at the same time and check that exactly one of them is created
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(12)
+    public void concurrentDuplicateBookings() throws Exception {
+    	SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    	
+    	final Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "booking120@newcastle.ac.uk", "07706133212"));
+    	final Flight flight = addFlight(new Flight(null, "BK120", "NRL", "DNE"));
+    	final Date date = sdf.parse("2016-03-01");
+    	
+    	ConcurrentRequests.assertCreatedOnce("booking", new Callable<Response>() {
+    		@Override
+    		public Response call() {
+    			return bookingRestService.createBooking(new Booking(customer, flight, date));
+    		}
+    	});
+    	
+    	List<Booking> bookings = (List<Booking>) bookingRestService.getAllBookings(customer.getId()).getEntity();
+    	assertEquals("Duplicate booking was saved", 1, bookings.size());
+    }
+    
+    /**
+     * Ingest a list of bookings with an invalid one and check that only the valid ones are created
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(13)
+    public void ingestBookings() throws ParseException {
+    	SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    	
+    	Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "booking130@newcastle.ac.uk", "07706133212"));
+    	Flight flight = addFlight(new Flight(null, "BK130", "NRL", "DNE"));
+    	
+    	List<Booking> bookings = new ArrayList<Booking>();
+    	bookings.add(new Booking(customer, flight, sdf.parse("2016-03-01")));
+    	bookings.add(new Booking(customer, flight, sdf.parse("2016-03-02")));
+    	bookings.add(new Booking(customer, flight, sdf.parse("2016-03-01"))); //same flight and date as the first one
+    	bookings.add(new Booking(customer, flight, sdf.parse("2016-03-03")));
+    	
+    	Response response = bookingRestService.ingestBookings(bookings);
+    	assertEquals("Unexpected response status", 200, response.getStatus());
+    	
+    	BookingIngestResult result = (BookingIngestResult) response.getEntity();
+    	assertEquals("Unexpected number of bookings created", 3, result.getCreated());
+    	assertEquals("Unexpected invalid bookings", Collections.singleton(2), result.getErrors().keySet());
+    	
+    	List<Booking> created = (List<Booking>) bookingRestService.getAllBookings(customer.getId()).getEntity();
+    	assertEquals("Unexpected number of bookings saved", 3, created.size());
+    }
+    
+    /**
+     * Export all the bookings in both formats and check that every booking is written once
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(14)
+    public void exportBookings() throws Exception {
+    	List<Booking> all = (List<Booking>) bookingRestService.getAllBookings(null).getEntity();
+    	
+    	Response response = bookingRestService.exportBookings("ndjson");
+    	assertEquals("Unexpected response status", 200, response.getStatus());
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	((StreamingOutput) response.getEntity()).write(out);
+    	
+    	String[] lines = out.toString("UTF-8").split("\n");
+    	assertEquals("Unexpected number of bookings exported", all.size(), lines.length);
+    	for(int i = 0; i < lines.length; i++) {
+    		assertEquals("Unexpected booking exported", all.get(i).getId().longValue(), ((Number) mapper.readValue(lines[i], Map.class).get("id")).longValue());
+    	}
+    	
+    	response = bookingRestService.exportBookings("json");
+    	out = new ByteArrayOutputStream();
+    	((StreamingOutput) response.getEntity()).write(out);
+    	assertEquals("Unexpected number of bookings exported", all.size(), mapper.readValue(out.toByteArray(), List.class).size());
+    	
+    	try {
+    		bookingRestService.exportBookings("xml");
+    		fail("Expected a RestServiceException to be thrown");
+    	} catch (RestServiceException e) {
+    		assertEquals("Unexpected response status", Response.Status.BAD_REQUEST, e.getStatus());
+    	}
+    }
+    
+    /**
+     * Check that each list endpoint reads its page with a single SQL statement, however many rows there are
+     */
+    @Test
+    @InSequence(15)
+    public void listInOneStatement() throws Exception {
+    	final Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "booking150@newcastle.ac.uk", "07706133212"));
+    	Flight flight1 = addFlight(new Flight(null, "BK150", "NRL", "DNE"));
+    	Flight flight2 = addFlight(new Flight(null, "BK151", "NRL", "DNE"));
+    	SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    	bookingRestService.createBooking(new Booking(customer, flight1, sdf.parse("2016-03-01")));
+    	bookingRestService.createBooking(new Booking(customer, flight2, sdf.parse("2016-03-01")));
+    	
+    	assertEquals("Unexpected statements listing bookings", 1, SqlStatements.count(em, new Callable<Object>() {
+    		@Override
+    		public Object call() {
+    			return bookingRestService.getAllBookings(null, null, null, null);
+    		}
+    	}));
+    	//the customer is looked up in the second-level cache
+    	assertEquals("Unexpected statements listing bookings of a customer", 1, SqlStatements.count(em, new Callable<Object>() {
+    		@Override
+    		public Object call() {
+    			return bookingRestService.getAllBookings(customer.getId(), null, null, null);
+    		}
+    	}));
+    	assertEquals("Unexpected statements listing customers", 1, SqlStatements.count(em, new Callable<Object>() {
+    		@Override
+    		public Object call() {
+    			return customerRestService.getAllCustomers(null, null, null);
+    		}
+    	}));
+    	//none once the list is in the query cache, which the flights just created may have invalidated
+    	assertTrue("Unexpected statements listing flights", SqlStatements.count(em, new Callable<Object>() {
+    		@Override
+    		public Object call() {
+    			return flightRestService.getAllFlights(null, null, null, null);
+    		}
+    	}) <= 1);
+    }
+    
     private Customer addCustomer(Customer c) {
     	Response response = customerRestService.createCustomer(c);
     	return (Customer) response.getEntity();
@@ -3,8 +3,12 @@ package org.jboss.quickstarts.wfk.customer;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -12,7 +16,10 @@ import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.arquillian.junit.InSequence;
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.customer.CustomerRestService;
+import org.jboss.quickstarts.wfk.util.ConcurrentRequests;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.resteasy.mock.MockHttpRequest;
+import org.jboss.resteasy.specimpl.RequestImpl;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
@@ -57,6 +64,12 @@ public class CustomerTest {
     @Inject
     CustomerRestService customerRestService;
     
+    @Inject
+    CustomerEmailFilter emails;
+    
+    @Inject
+    CustomerValidator validator;
+    
     /**
      * Create valid customer and check that it is persisted
      */
@@ -256,4 +269,110 @@ public class CustomerTest {
     		assertEquals("Unexpected response status", Response.Status.NOT_FOUND, e.getStatus());
     	}
     }
+    
+    /**
+     * Create many customers with the same email at the same time and check that exactly one of them is created
+     */
+    @Test
+    @InSequence(10)
+    public void concurrentDuplicateCustomers() throws Exception {
+    	ConcurrentRequests.assertCreatedOnce("customer", new Callable<Response>() {
+    		@Override
+    		public Response call() {
+    			return customerRestService.createCustomer(new Customer(null, "Jakub Gawron", "concurrent@newcastle.ac.uk", "07706133212"));
+    		}
+    	});
+    }
+    
+    /**
+     * Page through the customers two at a time and check that every customer is returned once, in the same order as
+     * without paging
+     */
+    @Test
+    @InSequence(11)
+    @SuppressWarnings("unchecked")
+    public void pageCustomers() {
+    	customerRestService.createCustomer(new Customer(null, "Paging Test", "paging1@newcastle.ac.uk", "07706133212"));
+    	customerRestService.createCustomer(new Customer(null, "Paging Test", "paging2@newcastle.ac.uk", "07706133212"));
+    	customerRestService.createCustomer(new Customer(null, "Paging Test", "paging3@newcastle.ac.uk", "07706133212"));
+    	
+    	List<Customer> all = (List<Customer>) customerRestService.getAllCustomers().getEntity();
+    	List<Customer> paged = new ArrayList<Customer>();
+    	
+    	String after = null;
+    	do {
+    		Response response = customerRestService.getAllCustomers(2, after, null);
+    		List<Customer> page = (List<Customer>) response.getEntity();
+    		assertTrue("Unexpected page size", page.size() <= 2);
+    		paged.addAll(page);
+    		
+    		Object link = response.getMetadata().getFirst("Link");
+    		after = link == null ? null : link.toString().replaceAll(".*[?&]after=([^&>]*).*", "$1");
+    	} while(after != null);
+    	
+    	assertEquals("Unexpected number of customers", all.size(), paged.size());
+    	for(int i = 0; i < all.size(); i++) {
+    		assertEquals("Unexpected customer on page " + (i / 2), all.get(i).getId(), paged.get(i).getId());
+    	}
+    	
+    	try {
+    		customerRestService.getAllCustomers(2, "not a cursor", null);
+    		fail("Expected a RestServiceException to be thrown");
+    	} catch (RestServiceException e) {
+    		assertEquals("Unexpected response status", Response.Status.BAD_REQUEST, e.getStatus());
+    	}
+    }
+    
+    /**
+     * Does the email filter skip the query for unused emails, and still let duplicates be found?
+     */
+    @Test
+    @InSequence(12)
+    public void filterEmails() {
+    	assertFalse("Unused email may be present", emails.mightContain("bloom12@newcastle.ac.uk"));
+    	
+    	long saved = ((Number) emails.getMetrics().get("queriesSaved")).longValue();
+    	assertFalse("Unused email exists", validator.emailAlreadyExists(new Customer(null, "Jakub Gawron", "bloom13@newcastle.ac.uk", "07706133210")));
+    	assertEquals("Query was not skipped", saved + 1, ((Number) emails.getMetrics().get("queriesSaved")).longValue());
+    	
+    	customerRestService.createCustomer(new Customer(null, "Jakub Gawron", "Bloom12@newcastle.ac.uk", "07706133210"));
+    	assertTrue("Email of a new customer is absent", emails.mightContain("bloom12@newcastle.ac.uk"));
+    	assertTrue("Email of a new customer is absent", emails.mightContain(" BLOOM12@newcastle.ac.uk"));
+    	assertTrue("Existing email was not found", validator.emailAlreadyExists(new Customer(null, "Jakub Gawron", "Bloom12@newcastle.ac.uk", "07706133210")));
+    	
+    	Customer other = (Customer) customerRestService.createCustomer(new Customer(null, "Jakub Gawron", "bloom14@newcastle.ac.uk", "07706133210")).getEntity();
+    	try {
+    		customerRestService.updateCustomer(other.getId(), new Customer(other.getId(), "Jakub Gawron", "Bloom12@newcastle.ac.uk", "07706133210"));
+    		fail("Expected a RestServiceException to be thrown");
+    	} catch (RestServiceException e) {
+    		assertEquals("Unexpected response status", Response.Status.CONFLICT, e.getStatus());
+    	}
+    }
+    
+    /**
+     * Is a customer revalidated with its ETag, until a customer is changed?
+     */
+    @Test
+    @InSequence(13)
+    public void revalidateCustomer() throws Exception {
+    	Customer customer = (Customer) customerRestService.createCustomer(new Customer(null, "Jakub Gawron", "test13@newcastle.ac.uk", "07706133210")).getEntity();
+    	
+    	Response response = customerRestService.getCustomer(customer.getId(), new RequestImpl(MockHttpRequest.get("/customers/" + customer.getId())));
+    	EntityTag tag = (EntityTag) response.getMetadata().getFirst("ETag");
+    	assertEquals("Unexpected response status", 200, response.getStatus());
+    	assertNotNull("Customer has no ETag", tag);
+    	assertNotNull("Customer has no Last-Modified", response.getMetadata().getFirst("Last-Modified"));
+    	
+    	response = customerRestService.getCustomer(customer.getId(), new RequestImpl(MockHttpRequest.get("/customers/" + customer.getId())
+    			.header("If-None-Match", tag.toString())));
+    	assertEquals("Current copy was not revalidated", 304, response.getStatus());
+    	assertNull("Customer was sent again", response.getEntity());
+    	
+    	customerRestService.updateCustomer(customer.getId(), new Customer(customer.getId(), "Jakub Gawron", "test13@ncl.ac.uk", "07706133210"));
+    	response = customerRestService.getCustomer(customer.getId(), new RequestImpl(MockHttpRequest.get("/customers/" + customer.getId())
+    			.header("If-None-Match", tag.toString())));
+    	assertEquals("Changed customer was not sent", 200, response.getStatus());
+    	assertFalse("ETag didn't change", tag.equals(response.getMetadata().getFirst("ETag")));
+    	assertEquals("Unexpected customer", "test13@ncl.ac.uk", ((Customer) response.getEntity()).getEmail());
+    }
 }
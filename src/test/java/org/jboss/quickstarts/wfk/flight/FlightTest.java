@@ -3,15 +3,22 @@ package org.jboss.quickstarts.wfk.flight;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
+import javax.persistence.EntityManager;
 import javax.ws.rs.core.Response;
 
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.arquillian.junit.InSequence;
 import org.jboss.quickstarts.wfk.flight.Flight;
+import org.jboss.quickstarts.wfk.util.ConcurrentRequests;
+import org.jboss.quickstarts.wfk.util.ResponseCache;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.SqlStatements;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
@@ -56,6 +63,15 @@ public class FlightTest {
     @Inject
     FlightRestService flightRestService;
     
+    @Inject
+    FlightService flightService;
+    
+    @Inject
+    EntityManager em;
+    
+    @Inject
+    ResponseCache responses;
+    
     
     /**
      * Create valid flight and check that it is persisted
@@ -147,4 +163,61 @@ public class FlightTest {
     		assertEquals("Unexpected response status", Response.Status.NOT_FOUND, e.getStatus());
     	}
     }
+    
+    /**
+     * Is a flight read from the second-level cache, and dropped from it when it's deleted?
+     */
+    @Test
+    @InSequence(6)
+    public void cacheFlight() throws Exception {
+    	final Flight flight = (Flight) flightRestService.createFlight(new Flight(null, "DW106", "DUB", "WAW")).getEntity();
+    	
+    	assertEquals("Flight was not read from the cache", 0, SqlStatements.count(em, new Callable<Object>() {
+    		@Override
+    		public Object call() {
+    			return flightService.findById(flight.getId());
+    		}
+    	}));
+    	assertTrue("Flight is not cached", em.getEntityManagerFactory().getCache().contains(Flight.class, flight.getId()));
+    	
+    	flightRestService.deleteFlight(flight.getId());
+    	assertFalse("Deleted flight is still cached", em.getEntityManagerFactory().getCache().contains(Flight.class, flight.getId()));
+    }
+    
+    /**
+     * Is a cached response to GET /flights dropped once a flight is created?
+     */
+    @Test
+    @InSequence(7)
+    public void invalidateCachedFlights() throws Exception {
+    	List<String> groups = responses.groups("/flights");
+    	assertEquals(Collections.singletonList(ResponseCache.FLIGHTS), groups);
+    	
+    	String key = "/api/flights?|localhost:8080|application/json";
+    	responses.put(key, groups, responses.generation(groups), 200, Collections.<String, List<String>>emptyMap(), "[]".getBytes("UTF-8"));
+    	assertNotNull("Response was not cached", responses.get(key));
+    	
+    	Flight flight = (Flight) flightRestService.createFlight(new Flight(null, "DW107", "DUB", "WAW")).getEntity();
+    	assertNull("Response is still cached after a flight was created", responses.get(key));
+    	
+    	//a response made before the flight was created must not be cached either
+    	long generation = responses.generation(groups);
+    	flightRestService.deleteFlight(flight.getId());
+    	responses.put(key, groups, generation, 200, Collections.<String, List<String>>emptyMap(), "[]".getBytes("UTF-8"));
+    	assertNull("Stale response was cached", responses.get(key));
+    }
+    
+    /**
+     * Create many flights with the same number at the same time and check that exactly one of them is created
+     */
+    @Test
+    @InSequence(8)
+    public void concurrentDuplicateFlights() throws Exception {
+    	ConcurrentRequests.assertCreatedOnce("flight", new Callable<Response>() {
+    		@Override
+    		public Response call() {
+    			return flightRestService.createFlight(new Flight(null, "DW108", "DUB", "WAW"));
+    		}
+    	});
+    }
 }
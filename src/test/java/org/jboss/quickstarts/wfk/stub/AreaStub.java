@@ -0,0 +1,66 @@
+package org.jboss.quickstarts.wfk.stub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.area.Area;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * <p>Stub of the external area code service, see {@link org.jboss.quickstarts.wfk.area.AreaService}.</p>
+ *
+ * <p>It knows a handful of US area codes, any other one is answered with 404 NOT FOUND.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class AreaStub extends StubServer {
+    private final ConcurrentMap<Integer, Area> areas = new ConcurrentSkipListMap<Integer, Area>();
+
+    public AreaStub() {
+        super("area");
+
+        addArea(201, "New Jersey", "NJ");
+        addArea(202, "District of Columbia", "DC");
+        addArea(206, "Washington", "WA");
+        addArea(212, "New York", "NY");
+        addArea(305, "Florida", "FL");
+        addArea(312, "Illinois", "IL");
+        addArea(415, "California", "CA");
+        addArea(617, "Massachusetts", "MA");
+        addArea(702, "Nevada", "NV");
+    }
+
+    public Area addArea(int id, String state, String abbr) {
+        Area area = new Area();
+        area.setId(id);
+        area.setState(state);
+        area.setAbbr(abbr);
+        areas.put(id, area);
+        return area;
+    }
+
+    @Override
+    protected boolean isBooking(String method, List<String> path) {
+        return false;
+    }
+
+    @Override
+    protected Reply handle(String method, List<String> path, HttpExchange exchange) {
+        if (!"GET".equals(method) || path.isEmpty() || path.size() > 2 || !"areas".equals(path.get(0))) {
+            return new Reply(Response.Status.NOT_FOUND, null);
+        }
+
+        if (path.size() == 1) {
+            return new Reply(Response.Status.OK, new ArrayList<Area>(areas.values()));
+        }
+
+        Long id = id(path, 1);
+        Area area = id == null ? null : areas.get(id.intValue());
+        return area == null ? new Reply(Response.Status.NOT_FOUND, null) : new Reply(Response.Status.OK, area);
+    }
+}
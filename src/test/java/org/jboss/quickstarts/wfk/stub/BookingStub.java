@@ -0,0 +1,158 @@
+package org.jboss.quickstarts.wfk.stub;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.customer.Customer;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * <p>Stub of an upstream service which takes bookings of its commodities (hotels, taxis), one per commodity per day.</p>
+ *
+ * <p>It answers <code>/api/&lt;commodities&gt;</code> and <code>/api/bookings</code> like the real service: a booking
+ * without a customer, of an unknown commodity, or without a date is refused with 400 BAD REQUEST, and a booking of a
+ * commodity which is already booked for that day with 409 CONFLICT.</p>
+ *
+ * @param <C> type of the commodity
+ * @param <B> type of the booking
+ * @author Jakub Gawron
+ */
+public abstract class BookingStub<C, B> extends StubServer {
+    private final String commodities;
+    private final Class<C> commodityType;
+    private final Class<B> bookingType;
+
+    private final ConcurrentMap<Long, C> catalogue = new ConcurrentSkipListMap<Long, C>();
+    private final ConcurrentMap<Long, B> bookings = new ConcurrentSkipListMap<Long, B>();
+    //"<commodity id>@<date>" of every booking, so a commodity can't be booked twice for the same day
+    private final ConcurrentMap<String, Long> booked = new ConcurrentSkipListMap<String, Long>();
+
+    private final AtomicLong commodityIds = new AtomicLong(1000);
+    private final AtomicLong bookingIds = new AtomicLong();
+
+    protected BookingStub(String name, String commodities, Class<C> commodityType, Class<B> bookingType) {
+        super(name);
+        this.commodities = commodities;
+        this.commodityType = commodityType;
+        this.bookingType = bookingType;
+    }
+
+    protected abstract Long getId(C commodity);
+
+    protected abstract void setId(C commodity, Long id);
+
+    protected abstract Customer getCustomer(B booking);
+
+    protected abstract C getCommodity(B booking);
+
+    protected abstract Date getDate(B booking);
+
+    /**
+     * <p>Completes a booking which has been accepted, with its new id and the commodity as it is in the catalogue.</p>
+     */
+    protected abstract void accept(B booking, Long id, C commodity);
+
+    /**
+     * <p>Adds a commodity to the catalogue, keeping its id if it has one.</p>
+     */
+    public C addCommodity(C commodity) {
+        Long id = getId(commodity);
+        if (id == null) {
+            id = commodityIds.incrementAndGet();
+            setId(commodity, id);
+        }
+        catalogue.put(id, commodity);
+        return commodity;
+    }
+
+    public List<B> getBookings() {
+        return new ArrayList<B>(bookings.values());
+    }
+
+    @Override
+    protected boolean isBooking(String method, List<String> path) {
+        return "POST".equals(method) && path.size() == 2 && "bookings".equals(path.get(1));
+    }
+
+    @Override
+    protected Reply handle(String method, List<String> path, HttpExchange exchange) {
+        if (path.size() < 2 || path.size() > 3 || !"api".equals(path.get(0))) {
+            return new Reply(Response.Status.NOT_FOUND, null);
+        }
+
+        String resource = path.get(1);
+        Long id = id(path, 2);
+        if (path.size() == 3 && id == null) {
+            return new Reply(Response.Status.NOT_FOUND, null);
+        }
+
+        if (commodities.equals(resource)) {
+            if ("GET".equals(method)) {
+                return id == null ? new Reply(Response.Status.OK, new ArrayList<C>(catalogue.values())) : found(catalogue.get(id));
+            }
+            if ("POST".equals(method) && id == null) {
+                C commodity = read(exchange, commodityType);
+                return commodity == null ? new Reply(Response.Status.BAD_REQUEST, null) : new Reply(Response.Status.CREATED, addCommodity(commodity));
+            }
+        } else if ("bookings".equals(resource)) {
+            if ("GET".equals(method)) {
+                return id == null ? new Reply(Response.Status.OK, getBookings()) : found(bookings.get(id));
+            }
+            if ("POST".equals(method) && id == null) {
+                return book(read(exchange, bookingType));
+            }
+            if ("DELETE".equals(method) && id != null) {
+                return cancel(id);
+            }
+        }
+
+        return new Reply(Response.Status.NOT_FOUND, null);
+    }
+
+    private Reply book(B booking) {
+        if (booking == null || getCustomer(booking) == null || getCustomer(booking).getId() == null || getDate(booking) == null) {
+            return new Reply(Response.Status.BAD_REQUEST, null);
+        }
+
+        C requested = getCommodity(booking);
+        C commodity = requested == null || getId(requested) == null ? null : catalogue.get(getId(requested));
+        if (commodity == null) {
+            return new Reply(Response.Status.BAD_REQUEST, null);
+        }
+
+        Long id = bookingIds.incrementAndGet();
+        if (booked.putIfAbsent(key(getId(commodity), getDate(booking)), id) != null) {
+            return new Reply(Response.Status.CONFLICT, null);
+        }
+
+        accept(booking, id, commodity);
+        bookings.put(id, booking);
+        return new Reply(Response.Status.CREATED, booking);
+    }
+
+    private Reply cancel(Long id) {
+        B booking = bookings.remove(id);
+        if (booking == null) {
+            return new Reply(Response.Status.NOT_FOUND, null);
+        }
+
+        booked.remove(key(getId(getCommodity(booking)), getDate(booking)), id);
+        return new Reply(Response.Status.NO_CONTENT, null);
+    }
+
+    private static Reply found(Object entity) {
+        return entity == null ? new Reply(Response.Status.NOT_FOUND, null) : new Reply(Response.Status.OK, entity);
+    }
+
+    private static String key(Long commodityId, Date date) {
+        return commodityId + "@" + new SimpleDateFormat("yyyy-MM-dd").format(date);
+    }
+}
@@ -0,0 +1,55 @@
+package org.jboss.quickstarts.wfk.stub;
+
+import java.util.Date;
+
+import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.hotel.Hotel;
+import org.jboss.quickstarts.wfk.hotel.HotelBooking;
+
+/**
+ * <p>Stub of the external hotel service, see {@link org.jboss.quickstarts.wfk.hotel.HotelService} and
+ * {@link org.jboss.quickstarts.wfk.hotel.HotelBookingService}.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class HotelStub extends BookingStub<Hotel, HotelBooking> {
+
+    public HotelStub() {
+        super("hotel", "hotels", Hotel.class, HotelBooking.class);
+
+        addCommodity(new Hotel(101L, "Marriott", "01912345678", "NE14ST"));
+        addCommodity(new Hotel(102L, "Premier Inn", "01912345679", "NE18AD"));
+        addCommodity(new Hotel(103L, "Hilton", "01234567890", "SE193A"));
+    }
+
+    @Override
+    protected Long getId(Hotel hotel) {
+        return hotel.getId();
+    }
+
+    @Override
+    protected void setId(Hotel hotel, Long id) {
+        hotel.setId(id);
+    }
+
+    @Override
+    protected Customer getCustomer(HotelBooking booking) {
+        return booking.getCustomer();
+    }
+
+    @Override
+    protected Hotel getCommodity(HotelBooking booking) {
+        return booking.getHotel();
+    }
+
+    @Override
+    protected Date getDate(HotelBooking booking) {
+        return booking.getDate();
+    }
+
+    @Override
+    protected void accept(HotelBooking booking, Long id, Hotel hotel) {
+        booking.setId(id);
+        booking.setHotel(hotel);
+    }
+}
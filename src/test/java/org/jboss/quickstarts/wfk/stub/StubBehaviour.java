@@ -0,0 +1,143 @@
+package org.jboss.quickstarts.wfk.stub;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.quickstarts.wfk.util.Settings;
+
+/**
+ * <p>How badly a stub upstream behaves: how slow it is, and how often it fails.</p>
+ *
+ * <p>The latency follows a log-normal distribution, which is what response times of real services tend to look like:
+ * most requests take about the median, with a long tail of slow ones. It's given by its median and its 99th percentile,
+ * both in milliseconds. If they're equal, every request takes exactly that long.</p>
+ *
+ * <p>The initial values are read from these settings (see {@link Settings}), and can be changed at any time, e.g. by a
+ * test which wants to see what happens when an upstream slows down. A change replaces the whole {@link Faults} at once,
+ * so a request never sees half of it:</p>
+ * <ul>
+ *     <li><code>stub.&lt;name&gt;.latency</code> - median latency, 0 by default</li>
+ *     <li><code>stub.&lt;name&gt;.latency.p99</code> - 99th percentile of the latency, the median by default</li>
+ *     <li><code>stub.&lt;name&gt;.error-rate</code> - percentage of requests answered with 500 INTERNAL SERVER ERROR</li>
+ *     <li><code>stub.&lt;name&gt;.conflict-rate</code> - percentage of new bookings refused with 409 CONFLICT, on top of
+ *     the real conflicts</li>
+ * </ul>
+ *
+ * @author Jakub Gawron
+ */
+public class StubBehaviour {
+    //z-score of the 99th percentile of the standard normal distribution
+    private static final double P99_Z = 2.3263;
+
+    private volatile Faults faults = new Faults(0, 0, 0, 0);
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public StubBehaviour(String name) {
+        String prefix = "stub." + name + ".";
+        long latency = Settings.getLong(prefix + "latency", 0);
+
+        setLatency(latency, Settings.getLong(prefix + "latency.p99", latency));
+        setErrorRate(Settings.getInt(prefix + "error-rate", 0));
+        setConflictRate(Settings.getInt(prefix + "conflict-rate", 0));
+    }
+
+    /**
+     * @param median Median latency, in milliseconds
+     * @param p99 99th percentile of the latency, in milliseconds
+     */
+    public synchronized void setLatency(long median, long p99) {
+        faults = new Faults(median, p99, faults.errorRate, faults.conflictRate);
+    }
+
+    /**
+     * @param percent Percentage of requests failing with 500 INTERNAL SERVER ERROR
+     */
+    public synchronized void setErrorRate(int percent) {
+        faults = new Faults(faults.median, faults.p99, percent, faults.conflictRate);
+    }
+
+    /**
+     * @param percent Percentage of new bookings refused with 409 CONFLICT
+     */
+    public synchronized void setConflictRate(int percent) {
+        faults = new Faults(faults.median, faults.p99, faults.errorRate, percent);
+    }
+
+    /**
+     * <p>Holds up the calling thread for a random latency.</p>
+     */
+    void delay() throws InterruptedException {
+        requests.incrementAndGet();
+
+        Faults faults = this.faults;
+        long latency = faults.median;
+        if (faults.sigma > 0) {
+            latency = Math.round(faults.median * Math.exp(faults.sigma * ThreadLocalRandom.current().nextGaussian()));
+        }
+        if (latency > 0) {
+            TimeUnit.MILLISECONDS.sleep(latency);
+        }
+    }
+
+    /**
+     * @return true if this request should fail with an error
+     */
+    boolean injectError() {
+        int errorRate = faults.errorRate;
+        if (errorRate > 0 && ThreadLocalRandom.current().nextInt(100) < errorRate) {
+            errors.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this new booking should be refused as a conflict
+     */
+    boolean injectConflict() {
+        int conflictRate = faults.conflictRate;
+        if (conflictRate > 0 && ThreadLocalRandom.current().nextInt(100) < conflictRate) {
+            conflicts.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Faults faults = this.faults;
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("latencyMillis", faults.median);
+        metrics.put("latencyP99Millis", faults.p99);
+        metrics.put("errorRate", faults.errorRate);
+        metrics.put("conflictRate", faults.conflictRate);
+        metrics.put("requests", requests.get());
+        metrics.put("injectedErrors", errors.get());
+        metrics.put("injectedConflicts", conflicts.get());
+        return metrics;
+    }
+
+    /**
+     * <p>The latency and failure rates in force, never changed once made.</p>
+     */
+    private static class Faults {
+        final long median;
+        final long p99;
+        final double sigma;
+        final int errorRate;
+        final int conflictRate;
+
+        Faults(long median, long p99, int errorRate, int conflictRate) {
+            this.median = Math.max(0, median);
+            this.p99 = Math.max(this.median, p99);
+            this.sigma = this.median == 0 || this.p99 == this.median ? 0 : Math.log((double) this.p99 / this.median) / P99_Z;
+            this.errorRate = Math.max(0, Math.min(100, errorRate));
+            this.conflictRate = Math.max(0, Math.min(100, conflictRate));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.jboss.quickstarts.wfk.stub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.jboss.quickstarts.wfk.util.Settings;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Base of the stub upstream services, which stand in for the external RESTful services in benchmarks and tests.</p>
+ *
+ * <p>Each stub is a small HTTP server, embedded in the calling JVM, which answers the same requests as the real service
+ * (see e.g. {@link org.jboss.quickstarts.wfk.hotel.HotelBookingService}) from in-memory maps. Every request is first
+ * held up and possibly failed according to the {@link StubBehaviour} of the stub.</p>
+ *
+ * <p>A stub listens on <code>stub.&lt;name&gt;.port</code> of the loopback interface (<code>stub.host</code>), or on
+ * any free port if that's not set.</p>
+ *
+ * @author Jakub Gawron
+ */
+public abstract class StubServer {
+    private static final Logger log = Logger.getLogger(StubServer.class.getName());
+
+    protected static final ObjectMapper mapper = new ObjectMapper();
+
+    static {
+        //same date format as the real services, see JacksonConfig
+        mapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd"));
+    }
+
+    private final String name;
+    private final StubBehaviour behaviour;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    protected StubServer(String name) {
+        this.name = name;
+        this.behaviour = new StubBehaviour(name);
+    }
+
+    public void start() throws IOException {
+        String host = Settings.get("stub.host", InetAddress.getLoopbackAddress().getHostAddress());
+        int port = Settings.getInt("stub." + name + ".port", 0);
+
+        //every request gets its own thread, so the injected latency doesn't queue the requests up
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("stub-" + name + "-%d").setDaemon(true).build());
+
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+
+        log.info("Stub " + name + " upstream listening on " + getUrl());
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return Base URL of this stub, to be used instead of the URL of the real service
+     */
+    public String getUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StubBehaviour getBehaviour() {
+        return behaviour;
+    }
+
+    /**
+     * <p>Answers a request which made it past the injected latency and errors.</p>
+     *
+     * @param method HTTP method of the request
+     * @param path Segments of the request path, e.g. <code>[api, bookings, 12]</code>
+     * @param exchange The request, to read its body from
+     * @return The response
+     */
+    protected abstract Reply handle(String method, List<String> path, HttpExchange exchange) throws IOException;
+
+    /**
+     * <p>Whether the request creates a booking, so it may get an injected conflict.</p>
+     */
+    protected abstract boolean isBooking(String method, List<String> path);
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            List<String> path = segments(exchange.getRequestURI().getPath());
+            Reply reply;
+
+            behaviour.delay();
+            if (behaviour.injectError()) {
+                reply = new Reply(Response.Status.INTERNAL_SERVER_ERROR, null);
+            } else if (isBooking(method, path) && behaviour.injectConflict()) {
+                reply = new Reply(Response.Status.CONFLICT, null);
+            } else {
+                reply = handle(method, path, exchange);
+            }
+
+            send(exchange, reply);
+        } catch (InterruptedException e) {
+            //the stub is being stopped
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Stub " + name + " upstream failed to answer " + exchange.getRequestURI(), e);
+            send(exchange, new Reply(Response.Status.INTERNAL_SERVER_ERROR, null));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        if (reply.entity == null) {
+            exchange.sendResponseHeaders(reply.status.getStatusCode(), -1);
+            return;
+        }
+
+        byte[] body = mapper.writeValueAsBytes(reply.entity);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(reply.status.getStatusCode(), body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * @return The JSON request body, or null if it's missing or isn't valid
+     */
+    protected static <T> T read(HttpExchange exchange, Class<T> type) {
+        try (InputStream in = exchange.getRequestBody()) {
+            return mapper.readValue(in, type);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The id at the given segment of the path, or null if it isn't a number
+     */
+    protected static Long id(List<String> path, int index) {
+        try {
+            return path.size() > index ? Long.valueOf(path.get(index)) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static List<String> segments(String path) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : Arrays.asList(path.split("/"))) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * <p>Status and (optional) JSON entity of a response.</p>
+     */
+    protected static class Reply {
+        final Response.Status status;
+        final Object entity;
+
+        protected Reply(Response.Status status, Object entity) {
+            this.status = status;
+            this.entity = entity;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.jboss.quickstarts.wfk.stub;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <p>The stubs of all the upstream services, started together.</p>
+ *
+ * <p>The Arquillian tests start them inside the container and point
+ * {@link org.jboss.quickstarts.wfk.util.UpstreamClients} at them, see
+ * {@link org.jboss.quickstarts.wfk.travelagent.TravelAgentTest}. They're test code only, so they're not in the war, and
+ * the test deployment has to see the JDK's <code>com.sun.net.httpserver</code> (see
+ * <code>src/test/resources/jboss-deployment-structure.xml</code>).</p>
+ *
+ * <p>They can also be run on their own, e.g. next to a load test, and the application pointed at them with the
+ * <code>upstream.&lt;name&gt;.url</code> settings. Fixed ports can be set with <code>stub.&lt;name&gt;.port</code>:</p>
+ *
+ * <pre>
+ * java -Dstub.hotel.port=9001 -Dstub.taxi.port=9002 -Dstub.area.port=9003 -Dstub.hotel.latency=200 \
+ *     -cp &lt;classpath&gt; org.jboss.quickstarts.wfk.stub.StubUpstreams
+ * </pre>
+ *
+ * @author Jakub Gawron
+ */
+public class StubUpstreams {
+    private final HotelStub hotel = new HotelStub();
+    private final TaxiStub taxi = new TaxiStub();
+    private final AreaStub area = new AreaStub();
+
+    public static StubUpstreams start() throws IOException {
+        StubUpstreams stubs = new StubUpstreams();
+        try {
+            for (StubServer stub : stubs.all()) {
+                stub.start();
+            }
+        } catch (IOException e) {
+            stubs.stop();
+            throw e;
+        }
+        return stubs;
+    }
+
+    public void stop() {
+        for (StubServer stub : all()) {
+            stub.stop();
+        }
+    }
+
+    public HotelStub getHotel() {
+        return hotel;
+    }
+
+    public TaxiStub getTaxi() {
+        return taxi;
+    }
+
+    public AreaStub getArea() {
+        return area;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        for (StubServer stub : all()) {
+            metrics.put(stub.getName(), stub.getBehaviour().getMetrics());
+        }
+        return metrics;
+    }
+
+    private StubServer[] all() {
+        return new StubServer[] {hotel, taxi, area};
+    }
+
+    public static void main(String[] args) throws Exception {
+        final StubUpstreams stubs = start();
+        final CountDownLatch stopped = new CountDownLatch(1);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                stubs.stop();
+                stopped.countDown();
+            }
+        });
+
+        for (StubServer stub : stubs.all()) {
+            System.out.println("upstream." + stub.getName() + ".url=" + stub.getUrl());
+        }
+        stopped.await();
+    }
+}
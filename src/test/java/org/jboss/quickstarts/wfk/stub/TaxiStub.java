@@ -0,0 +1,55 @@
+package org.jboss.quickstarts.wfk.stub;
+
+import java.util.Date;
+
+import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.taxi.TaxiBooking;
+
+/**
+ * <p>Stub of the external taxi service, see {@link org.jboss.quickstarts.wfk.taxi.TaxiService} and
+ * {@link org.jboss.quickstarts.wfk.taxi.TaxiBookingService}.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class TaxiStub extends BookingStub<Taxi, TaxiBooking> {
+
+    public TaxiStub() {
+        super("taxi", "taxis", Taxi.class, TaxiBooking.class);
+
+        addCommodity(new Taxi(10001L, "NE12ABC", 4));
+        addCommodity(new Taxi(10002L, "GZ45ASD", 4));
+        addCommodity(new Taxi(10003L, "NK63XYZ", 7));
+    }
+
+    @Override
+    protected Long getId(Taxi taxi) {
+        return taxi.getId();
+    }
+
+    @Override
+    protected void setId(Taxi taxi, Long id) {
+        taxi.setId(id);
+    }
+
+    @Override
+    protected Customer getCustomer(TaxiBooking booking) {
+        return booking.getCustomer();
+    }
+
+    @Override
+    protected Taxi getCommodity(TaxiBooking booking) {
+        return booking.getTaxi();
+    }
+
+    @Override
+    protected Date getDate(TaxiBooking booking) {
+        return booking.getBookingDate();
+    }
+
+    @Override
+    protected void accept(TaxiBooking booking, Long id, Taxi taxi) {
+        booking.setId(id);
+        booking.setTaxi(taxi);
+    }
+}
@@ -0,0 +1,289 @@
+package org.jboss.quickstarts.wfk.travelagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * <p>Load test comparing the blocking and the asynchronous travel agent booking endpoints.</p>
+ *
+ * <p>This is not a unit test (it's not run by surefire), but a small program to be run against a deployed application,
+ * ideally with the upstream services replaced by slow stubs, so the request threads are held for a while. The stubs
+ * are run on their own (see {@link org.jboss.quickstarts.wfk.stub.StubUpstreams}) and the server started with
+ * <code>-Dupstream.hotel.url=http://127.0.0.1:9001 -Dupstream.taxi.url=http://127.0.0.1:9002
+ * -Dupstream.area.url=http://127.0.0.1:9003</code>:</p>
+ *
+ * <pre>
+ * java -Dstub.hotel.port=9001 -Dstub.taxi.port=9002 -Dstub.area.port=9003 -Dstub.hotel.latency=200 \
+ *     -Dstub.taxi.latency=200 -cp target/test-classes:&lt;test classpath&gt; org.jboss.quickstarts.wfk.stub.StubUpstreams
+ * java -cp target/test-classes:&lt;test classpath&gt; org.jboss.quickstarts.wfk.travelagent.TravelAgentLoadRunner \
+ *     http://localhost:8080/jboss-contacts-swagger/api 400 200
+ * </pre>
+ *
+ * <p>The arguments are the base url of the api, the number of bookings per round and the number of concurrent clients.
+ * Each round books the same number of trips on a new flight through <code>/travelagent/bookings</code> and then
+ * <code>/travelagent/async/bookings</code>, deleting them afterwards through the matching DELETE endpoint, and prints
+ * the throughput, latency percentiles and the status codes seen. The concurrent-booking ceiling of an endpoint is where
+ * its throughput stops growing with the number of clients, and 503s or timeouts start to appear.</p>
+ *
+ * <p>It also prints how many database connections were in use on average, i.e. the total time bookings
+ * held a transaction open (the <code>tx</code> entry of their <code>Server-Timing</code> header) divided by the length
+ * of the round. The connection pool needs at least that many connections to sustain the throughput. Responses without
+ * <code>tx</code> (errors, deletes, or any response of a server which kept the transaction open for the whole request)
+ * count with their whole latency, so the figure is an upper bound.</p>
+ *
+ * @author Jakub Gawron
+ */
+public class TravelAgentLoadRunner {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final String api;
+    private final int requests;
+    private final int clients;
+
+    public TravelAgentLoadRunner(String api, int requests, int clients) {
+        this.api = api;
+        this.requests = requests;
+        this.clients = clients;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String api = args.length > 0 ? args[0] : "http://localhost:8080/jboss-contacts-swagger/api";
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        TravelAgentLoadRunner runner = new TravelAgentLoadRunner(api, requests, clients);
+        Map<String, Object> customer = runner.post("/customers", customer());
+
+        //warm up both paths (connection pools, JIT, caches) before measuring anything
+        runner.round("warm-up", "/travelagent/bookings", customer, 0);
+        runner.round("blocking", "/travelagent/bookings", customer, 1);
+        runner.round("async", "/travelagent/async/bookings", customer, 2);
+    }
+
+    private void round(String name, String path, final Map<String, Object> customer, int round) throws Exception {
+        final Map<String, Object> flight = post("/flights", flight(round));
+        final String url = api + path;
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Sample>> futures = new ArrayList<Future<Sample>>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            final String date = bookingDate(i);
+            futures.add(pool.submit(new Callable<Sample>() {
+                @Override
+                public Sample call() throws Exception {
+                    return send("POST", url, booking(customer, flight, date));
+                }
+            }));
+        }
+
+        List<Sample> samples = collect(futures);
+        long elapsed = System.nanoTime() - start;
+        report(name + " POST", samples, elapsed);
+
+        //clean up, measuring the deletes of the same endpoint
+        futures.clear();
+        start = System.nanoTime();
+        for (final Sample sample : samples) {
+            if (sample.id != null) {
+                futures.add(pool.submit(new Callable<Sample>() {
+                    @Override
+                    public Sample call() throws Exception {
+                        return send("DELETE", url + "/" + sample.id, null);
+                    }
+                }));
+            }
+        }
+
+        samples = collect(futures);
+        elapsed = System.nanoTime() - start;
+        report(name + " DELETE", samples, elapsed);
+
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private static List<Sample> collect(List<Future<Sample>> futures) throws Exception {
+        List<Sample> samples = new ArrayList<Sample>();
+        for (Future<Sample> future : futures) {
+            samples.add(future.get());
+        }
+        return samples;
+    }
+
+    private void report(String name, List<Sample> samples, long elapsed) {
+        if (samples.isEmpty()) {
+            System.out.println(name + ": nothing to do");
+            return;
+        }
+
+        List<Long> latencies = new ArrayList<Long>();
+        Map<Integer, Integer> statuses = new TreeMap<Integer, Integer>();
+        double transactionNanos = 0;
+        for (Sample sample : samples) {
+            latencies.add(sample.nanos);
+            transactionNanos += sample.transactionNanos >= 0 ? sample.transactionNanos : sample.nanos;
+            Integer count = statuses.get(sample.status);
+            statuses.put(sample.status, count == null ? 1 : count + 1);
+        }
+        Collections.sort(latencies);
+
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format("%-16s %d requests, %d clients, %.1f req/s, p50 %.0f ms, p95 %.0f ms, p99 %.0f ms, max %.0f ms, db connections %.1f, statuses %s",
+                name, samples.size(), clients, samples.size() / seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99),
+                latencies.get(latencies.size() - 1) / 1e6, transactionNanos / elapsed, statuses));
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> post(String path, Map<String, Object> body) throws IOException {
+        Sample sample = send("POST", api + path, body);
+        if (sample.status != 201) {
+            throw new IllegalStateException("Could not create " + path + ", got " + sample.status + ": " + sample.body);
+        }
+        return mapper.readValue(sample.body, Map.class);
+    }
+
+    private static Sample send(String method, String url, Map<String, Object> body) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(60000);
+
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = connection.getOutputStream();
+            try {
+                mapper.writeValue(out, body);
+            } finally {
+                out.close();
+            }
+        }
+
+        Sample sample = new Sample();
+        try {
+            sample.status = connection.getResponseCode();
+            InputStream in = sample.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            sample.body = in == null ? "" : read(in);
+        } catch (IOException e) {
+            //timeouts and refused connections count as failures, not as a reason to stop the run
+            sample.status = -1;
+            sample.body = e.toString();
+        }
+        sample.nanos = System.nanoTime() - start;
+        sample.transactionNanos = timing(connection.getHeaderField("Server-Timing"), "tx");
+
+        if (sample.status == 201) {
+            sample.id = ((Number) mapper.readValue(sample.body, Map.class).get("id")).longValue();
+        }
+        return sample;
+    }
+
+    /**
+     * @return Duration (in nanoseconds) of the named Server-Timing entry, or -1 if it's missing
+     */
+    private static long timing(String header, String name) {
+        if (header != null) {
+            for (String entry : header.split(",")) {
+                String[] parts = entry.trim().split(";dur=");
+                if (parts.length == 2 && parts[0].equals(name)) {
+                    return (long) (Double.parseDouble(parts[1]) * 1e6);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            StringBuilder builder = new StringBuilder();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                builder.append(new String(buffer, 0, n, "UTF-8"));
+            }
+            return builder.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Map<String, Object> customer() {
+        Map<String, Object> customer = new LinkedHashMap<String, Object>();
+        customer.put("name", "Load Test");
+        customer.put("email", "load" + System.currentTimeMillis() + "@newcastle.ac.uk");
+        customer.put("phoneNumber", "01234567858");
+        return customer;
+    }
+
+    private static Map<String, Object> flight(int round) {
+        Map<String, Object> flight = new LinkedHashMap<String, Object>();
+        //flight numbers have to be unique and exactly 5 characters
+        flight.put("number", String.format("L%04d", (System.currentTimeMillis() / 1000 + round) % 10000));
+        flight.put("departure", "NCL");
+        flight.put("destination", "WAW");
+        return flight;
+    }
+
+    private static Map<String, Object> booking(Map<String, Object> customer, Map<String, Object> flight, String date) {
+        Map<String, Object> hotel = new LinkedHashMap<String, Object>();
+        hotel.put("id", 103);
+        hotel.put("name", "Hilton");
+        hotel.put("phoneNumber", "01234567890");
+        hotel.put("postcode", "SE193A");
+
+        Map<String, Object> taxi = new LinkedHashMap<String, Object>();
+        taxi.put("id", 10002);
+        taxi.put("reg", "GZ45ASD");
+        taxi.put("seats", 4);
+
+        Map<String, Object> booking = new LinkedHashMap<String, Object>();
+        booking.put("customer", customer);
+        booking.put("flight", flight);
+        booking.put("hotel", hotel);
+        booking.put("taxi", taxi);
+        booking.put("bookingDate", date);
+        return booking;
+    }
+
+    private static String bookingDate(int i) {
+        //one booking per flight per day, so every request gets its own day
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_YEAR, i + 1);
+        return new SimpleDateFormat("yyyy-MM-dd").format(calendar.getTime());
+    }
+
+    private static class Sample {
+        int status;
+        long nanos;
+        long transactionNanos = -1;
+        String body;
+        Long id;
+    }
+}
@@ -3,17 +3,34 @@ package org.jboss.quickstarts.wfk.travelagent;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.arquillian.junit.InSequence;
+import org.jboss.arquillian.test.api.ArquillianResource;
 import org.jboss.quickstarts.wfk.booking.Booking;
 import org.jboss.quickstarts.wfk.booking.BookingRestService;
 import org.jboss.quickstarts.wfk.customer.Customer;
@@ -23,20 +40,37 @@ import org.jboss.quickstarts.wfk.flight.FlightRestService;
 import org.jboss.quickstarts.wfk.hotel.Hotel;
 import org.jboss.quickstarts.wfk.hotel.HotelBooking;
 import org.jboss.quickstarts.wfk.hotel.HotelBookingService;
+import org.jboss.quickstarts.wfk.stub.StubBehaviour;
+import org.jboss.quickstarts.wfk.stub.StubUpstreams;
 import org.jboss.quickstarts.wfk.taxi.Taxi;
 import org.jboss.quickstarts.wfk.taxi.TaxiBooking;
 import org.jboss.quickstarts.wfk.taxi.TaxiBookingService;
+import org.jboss.quickstarts.wfk.taxi.TaxiService;
+import org.jboss.quickstarts.wfk.util.CircuitBreaker;
+import org.jboss.quickstarts.wfk.util.ResponseCache;
 import org.jboss.quickstarts.wfk.util.RestServiceException;
+import org.jboss.quickstarts.wfk.util.SqlStatements;
+import org.jboss.quickstarts.wfk.util.UpstreamClients;
+import org.jboss.quickstarts.wfk.util.UpstreamGuard;
 import org.jboss.resteasy.client.ClientResponse;
 import org.jboss.resteasy.client.ProxyFactory;
+import org.jboss.resteasy.client.core.executors.ApacheHttpClient4Executor;
+import org.jboss.resteasy.mock.MockHttpRequest;
+import org.jboss.resteasy.specimpl.RequestImpl;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.AfterClass;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+/**
+ * <p>Tests of the travel agent, against stubs of the hotel, taxi and area services (see {@link StubUpstreams}) started
+ * inside the container, so they don't depend on the real services being up.</p>
+ */
 @RunWith(Arquillian.class)
 public class TravelAgentTest {
 	
@@ -63,6 +97,10 @@ public class TravelAgentTest {
                 .addAsLibraries(libs)
                 .addAsResource("META-INF/test-persistence.xml", "META-INF/persistence.xml")
                 .addAsWebInfResource("arquillian-ds.xml")
+                //the stubs need the JDK's http server
+                .addAsWebInfResource("jboss-deployment-structure.xml")
+                //the filters, so the requests made over HTTP go through them as in the application
+                .setWebXML(new File("src/main/webapp/WEB-INF/web.xml"))
                 .addClasses(TravelAgentBooking.class, TravelAgentRestService.class)
                 .addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
 
@@ -78,9 +116,45 @@ public class TravelAgentTest {
     @Inject
     FlightRestService flightService;
     
+    @Inject
+    UpstreamClients clients;
+    
+    @Inject
+    TravelCatalogue catalogue;
+    
+    @Inject
+    CompensationReplayer replayer;
+    
     @Inject
     BookingRestService bookingService;
     
+    @Inject
+    EntityManager em;
+    
+    @Inject
+    ResponseCache responses;
+    
+    @ArquillianResource
+    URL deployment;
+    
+    private static StubUpstreams stubs;
+    
+    @Before
+    public void connectToStubs() throws IOException {
+    	if(stubs == null) {
+    		stubs = StubUpstreams.start();
+    		clients.connect(stubs.getHotel().getUrl(), stubs.getTaxi().getUrl(), stubs.getArea().getUrl());
+    	}
+    }
+    
+    @AfterClass
+    public static void stopStubs() {
+    	if(stubs != null) {
+    		stubs.stop();
+    		stubs = null;
+    	}
+    }
+    
     
     /**
      * Can you create a TravelAgent booking?
@@ -92,7 +166,7 @@ public class TravelAgentTest {
     	//Use valid commodities
     	Flight flight = addFlight(new Flight(null, "DW101", "DUB", "WAW"));
     	
-    	//these commodities should exist on external services for the tests to pass
+    	//these commodities exist on the stubs of the external services
     	Taxi taxi = new Taxi(new Long(10002), "GZ45ASD", 4);
     	Hotel hotel = new Hotel(new Long(103), "Hilton", "01234567890", "SE193A");
     	
@@ -104,7 +178,9 @@ public class TravelAgentTest {
     	//create the booking
 		Response response = travelAgent.createBooking(booking);
 		assertEquals("Unexpected response status", 201, response.getStatus());
+		assertNotNull("Per-leg timings are missing", response.getMetadata().getFirst("Server-Timing"));
 		booking = (TravelAgentBooking) response.getEntity();
+		assertEquals("Flight booking hold was not confirmed", Booking.Status.CONFIRMED, booking.getFlightBooking().getStatus());
 		
 		//check if actual bookings have been made locally and in external services
 		
@@ -112,8 +188,8 @@ public class TravelAgentTest {
 		boolean foundHotelBooking = false;
 		boolean foundTaxiBooking = false;
 		
-    	//Create client service instance to make REST requests to upstream service
-        HotelBookingService hotelBookingService = ProxyFactory.create(HotelBookingService.class, TravelAgentRestService.HOTEL_SERVICE_URL);
+    	//Use the shared client proxies to check upstream services
+        HotelBookingService hotelBookingService = clients.getHotelBookingService();
         ClientResponse<List<HotelBooking>> hotelResponse = hotelBookingService.getBookings();
         List<HotelBooking> hotelBookings = hotelResponse.getEntity();
         
@@ -126,7 +202,7 @@ public class TravelAgentTest {
         	}
         }
         
-        TaxiBookingService taxiBookingService = ProxyFactory.create(TaxiBookingService.class, TravelAgentRestService.TAXI_SERVICE_URL);
+        TaxiBookingService taxiBookingService = clients.getTaxiBookingService();
         ClientResponse<List<TaxiBooking>> taxiResponse = taxiBookingService.getBookings();
         List<TaxiBooking> taxiBookings = taxiResponse.getEntity();
         
@@ -159,7 +235,7 @@ public class TravelAgentTest {
     	//Use valid commodities
     	Flight flight = addFlight(new Flight(null, "DW102", "DUB", "WAW"));
     	
-    	//these commodities should exist on external services for the tests to pass
+    	//these commodities exist on the stubs of the external services
     	Taxi taxi = new Taxi(new Long(10002), "GZ45ASD", 4);
     	Hotel hotel = new Hotel(new Long(103), "Hilton", "01234567890", "SE193A");
     	
@@ -197,8 +273,8 @@ public class TravelAgentTest {
     	int nFlightBookings = ((List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity()).size();
     	assertEquals("Flight booking still exist", 0, nFlightBookings);
 		
-    	//Create client service instance to make REST requests to upstream service
-        HotelBookingService hotelBookingService = ProxyFactory.create(HotelBookingService.class, TravelAgentRestService.HOTEL_SERVICE_URL);
+    	//Use the shared client proxies to check upstream services
+        HotelBookingService hotelBookingService = clients.getHotelBookingService();
         ClientResponse<List<HotelBooking>> hotelResponse = hotelBookingService.getBookings();
         List<HotelBooking> hotelBookings = hotelResponse.getEntity();
         
@@ -212,7 +288,7 @@ public class TravelAgentTest {
         	}
         }
         
-        TaxiBookingService taxiBookingService = ProxyFactory.create(TaxiBookingService.class, TravelAgentRestService.TAXI_SERVICE_URL);
+        TaxiBookingService taxiBookingService = clients.getTaxiBookingService();
         ClientResponse<List<TaxiBooking>> taxiResponse = taxiBookingService.getBookings();
         List<TaxiBooking> taxiBookings = taxiResponse.getEntity();
         
@@ -274,13 +350,17 @@ public class TravelAgentTest {
     		} catch (RestServiceException e) {}
     	}
     	
+    	//external bookings are cancelled in the background, so make sure the compensations have been replayed
+    	replayer.replay();
+    	assertTrue("Not all compensations are done", ((List<Compensation>) travelAgent.getCompensations(null).getEntity()).isEmpty());
+    	
     	//make sure that no bookings have actually been made
     	//retrieve number of local bookings for the customer
     	int nFlightBookings = ((List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity()).size();
     	assertEquals("Flight booking has been made", 0, nFlightBookings);
     	
-    	//Create client service instance to make REST requests to upstream service
-        HotelBookingService hotelBookingService = ProxyFactory.create(HotelBookingService.class, TravelAgentRestService.HOTEL_SERVICE_URL);
+    	//Use the shared client proxies to check upstream services
+        HotelBookingService hotelBookingService = clients.getHotelBookingService();
         ClientResponse<List<HotelBooking>> hotelResponse = hotelBookingService.getBookings();
         List<HotelBooking> hotelBookings = hotelResponse.getEntity();
         
@@ -294,7 +374,7 @@ public class TravelAgentTest {
         	}
         }
         
-        TaxiBookingService taxiBookingService = ProxyFactory.create(TaxiBookingService.class, TravelAgentRestService.TAXI_SERVICE_URL);
+        TaxiBookingService taxiBookingService = clients.getTaxiBookingService();
         ClientResponse<List<TaxiBooking>> taxiResponse = taxiBookingService.getBookings();
         List<TaxiBooking> taxiBookings = taxiResponse.getEntity();
         
@@ -309,6 +389,329 @@ public class TravelAgentTest {
         }
     }
     
+    /**
+     * Are the hotel and taxi catalogues served from the cache after the first request?
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(4)
+    public void cachedCatalogues() {
+    	List<Hotel> hotels = (List<Hotel>) travelAgent.getHotels().getEntity();
+    	List<Taxi> taxis = (List<Taxi>) travelAgent.getTaxis().getEntity();
+    	
+    	Map<String, Object> before = (Map<String, Object>) catalogue.getMetrics().get("hotels");
+    	
+    	//second request must not go to the upstream service again
+    	assertEquals("Cached hotels differ", hotels, travelAgent.getHotels().getEntity());
+    	assertEquals("Cached taxis differ", taxis, travelAgent.getTaxis().getEntity());
+    	
+    	Map<String, Object> after = (Map<String, Object>) catalogue.getMetrics().get("hotels");
+    	assertEquals("Hotels were loaded again", before.get("loads"), after.get("loads"));
+    	assertEquals("Hotels were not served from the cache", (Long) before.get("hits") + 1, after.get("hits"));
+    }
+    
+    /**
+     * Is an atomic batch rejected as a whole, and a best-effort one made booking by booking?
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(5)
+    public void createBatchBookings() throws ParseException {
+    	Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "test5@newcastle.ac.uk", "07706133214"));
+    	Flight flight = addFlight(new Flight(null, "DW105", "DUB", "WAW"));
+    	Hotel hotel = new Hotel(new Long(103), "Hilton", "01234567890", "SE193A");
+    	Taxi taxi = new Taxi(new Long(10002), "GZ45ASD", 4);
+    	SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    	
+    	//second booking is for a flight which does not exist, so the first one must not be made either
+    	Response response = travelAgent.createBookings("atomic", Arrays.asList(
+    			new TravelAgentBooking(customer, flight, hotel, taxi, format.parse("2016-10-01")),
+    			new TravelAgentBooking(customer, new Flight(null, "DW106", "DUB", "WAW"), hotel, taxi, format.parse("2016-10-02"))
+    	));
+    	List<TravelAgentBatchResult> results = (List<TravelAgentBatchResult>) response.getEntity();
+    	
+    	assertEquals("Unexpected status of atomic batch", 400, response.getStatus());
+    	assertEquals("Valid booking of failed batch was made", TravelAgentBatchResult.FAILED_DEPENDENCY, results.get(0).getStatus());
+    	assertEquals("Invalid booking was not rejected", 400, results.get(1).getStatus());
+    	assertEquals("Flight booking has been made", 0, ((List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity()).size());
+    	
+    	//second booking is for the same flight on the same day, so only the first one can be made
+    	response = travelAgent.createBookings("best-effort", Arrays.asList(
+    			new TravelAgentBooking(customer, flight, hotel, taxi, format.parse("2016-10-03")),
+    			new TravelAgentBooking(customer, flight, hotel, taxi, format.parse("2016-10-03"))
+    	));
+    	results = (List<TravelAgentBatchResult>) response.getEntity();
+    	
+    	assertEquals("Unexpected status of best-effort batch", 207, response.getStatus());
+    	assertEquals("Valid booking was not made", 201, results.get(0).getStatus());
+    	assertNotNull("Booking was not returned", results.get(0).getBooking().getId());
+    	assertEquals("Conflicting booking was not rejected", 409, results.get(1).getStatus());
+    	assertEquals("Unexpected number of flight bookings", 1, ((List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity()).size());
+    }
+    
+    /**
+     * Are the TravelAgentBookings, with their customers and flights, read with a single statement?
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(6)
+    public void listInOneStatement() throws Exception {
+    	Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "test6@newcastle.ac.uk", "07706133214"));
+    	Flight flight = addFlight(new Flight(null, "DW107", "DUB", "WAW"));
+    	Hotel hotel = new Hotel(new Long(103), "Hilton", "01234567890", "SE193A");
+    	Taxi taxi = new Taxi(new Long(10002), "GZ45ASD", 4);
+    	SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    	travelAgent.createBooking(new TravelAgentBooking(customer, flight, hotel, taxi, format.parse("2016-11-01")));
+    	travelAgent.createBooking(new TravelAgentBooking(customer, flight, hotel, taxi, format.parse("2016-11-02")));
+    	
+    	assertTrue("Bookings were not made", ((List<TravelAgentBooking>) travelAgent.getBookings(null).getEntity()).size() > 1);
+    	assertEquals("Unexpected statements listing bookings", 1, SqlStatements.count(em, new Callable<Object>() {
+    		@Override
+    		public Object call() {
+    			return travelAgent.getBookings(null, null, null, null);
+    		}
+    	}));
+    }
+    
+    /**
+     * Does the catalogue have every section, the first page of customers, a 304 without a query for a current copy,
+     * and a new ETag once a flight is added?
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(7)
+    public void getCatalogue() throws Exception {
+    	Response response = travelAgent.getCatalogue();
+    	assertEquals(200, response.getStatus());
+    	
+    	Map<String, TravelCatalogueSection<?>> sections = (Map<String, TravelCatalogueSection<?>>) response.getEntity();
+    	assertEquals(Arrays.asList("flights", "hotels", "taxis", "customers"), Arrays.asList(sections.keySet().toArray()));
+    	for(Map.Entry<String, TravelCatalogueSection<?>> section : sections.entrySet()) {
+    		assertEquals("Section " + section.getKey() + " is unavailable", TravelCatalogueSection.OK, section.getValue().getStatus());
+    	}
+    	assertEquals("Catalogue flights differ", flightService.getAllFlights().getEntity(), sections.get("flights").getItems());
+    	assertEquals("Catalogue hotels differ", travelAgent.getHotels().getEntity(), sections.get("hotels").getItems());
+    	//the customers so far fit in the first page
+    	assertEquals("Catalogue customers differ", customerService.getAllCustomers(null, null, null).getEntity(), sections.get("customers").getItems());
+    	assertNull("Catalogue customers have a next page", sections.get("customers").getNext());
+    	
+    	Object tag = response.getMetadata().getFirst("ETag");
+    	assertNotNull("Catalogue has no ETag", tag);
+    	assertEquals("Catalogue ETag changed with nothing written", tag, travelAgent.getCatalogue().getMetadata().getFirst("ETag"));
+    	
+    	final Request revalidation = new RequestImpl(MockHttpRequest.get("/travelagent/catalogue").header("If-None-Match", tag.toString()));
+    	assertEquals("Current catalogue was not revalidated", 304, travelAgent.getCatalogue(revalidation, null).getStatus());
+    	assertEquals("Catalogue revalidation queried the database", 0, SqlStatements.count(em, new Callable<Object>() {
+    		@Override
+    		public Object call() {
+    			return travelAgent.getCatalogue(revalidation, null);
+    		}
+    	}));
+    	
+    	addFlight(new Flight(null, "DW108", "DUB", "WAW"));
+    	assertFalse("Catalogue ETag didn't change with a new flight", tag.equals(travelAgent.getCatalogue().getMetadata().getFirst("ETag")));
+    }
+    
+    /**
+     * Is a cached response to GET /bookings dropped once a TravelAgent booking is deleted, so the next GET no longer
+     * lists its flight booking?
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(8)
+    public void invalidateCachedBookings() throws Exception {
+    	Flight flight = addFlight(new Flight(null, "DW109", "DUB", "WAW"));
+    	Taxi taxi = new Taxi(new Long(10002), "GZ45ASD", 4);
+    	Hotel hotel = new Hotel(new Long(103), "Hilton", "01234567890", "SE193A");
+    	Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "test8@newcastle.ac.uk", "07706133212"));
+    	
+    	Response created = travelAgent.createBooking(new TravelAgentBooking(customer, flight, hotel, taxi, new SimpleDateFormat("yyyy-MM-dd").parse("2016-03-08")));
+    	assertEquals("Unexpected response status", 201, created.getStatus());
+    	TravelAgentBooking booking = (TravelAgentBooking) created.getEntity();
+    	
+    	//fill the cache with the bookings as they are now, like ResponseCacheFilter does on a miss
+    	List<String> groups = responses.groups("/bookings");
+    	String key = "/api/bookings?customerId=" + customer.getId() + "|localhost:8080|application/json";
+    	long generation = responses.generation(groups);
+    	List<Booking> before = (List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity();
+    	assertEquals("Flight booking does not exist", 1, before.size());
+    	responses.put(key, groups, generation, 200, Collections.<String, List<String>>emptyMap(), new ObjectMapper().writeValueAsBytes(before));
+    	assertNotNull("Response was not cached", responses.get(key));
+    	
+    	assertEquals("Unexpected response status", 204, travelAgent.deleteBooking(booking.getId()).getStatus());
+    	
+    	//the next GET misses the cache and reads the bookings again
+    	assertNull("Response is still cached after the booking was deleted", responses.get(key));
+    	List<Booking> after = (List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity();
+    	assertTrue("Deleted flight booking is still listed", after.isEmpty());
+    }
+    
+    /**
+     * Can you create and delete a TravelAgent booking through the asynchronous endpoints over HTTP, i.e. through the
+     * filters of web.xml, with a gzip response?
+     */
+    @SuppressWarnings("unchecked")
+	@Test
+    @InSequence(9)
+    public void asyncBookingOverHttp() throws Exception {
+    	Flight flight = addFlight(new Flight(null, "DW110", "DUB", "WAW"));
+    	Taxi taxi = new Taxi(new Long(10002), "GZ45ASD", 4);
+    	Hotel hotel = new Hotel(new Long(103), "Hilton", "01234567890", "SE193A");
+    	Customer customer = addCustomer(new Customer(null, "Jakub Gawron", "test9@newcastle.ac.uk", "07706133212"));
+    	ObjectMapper mapper = new ObjectMapper();
+    	
+    	HttpURLConnection post = request("POST", "api/travelagent/async/bookings");
+    	post.setDoOutput(true);
+    	post.setRequestProperty("Content-Type", "application/json");
+    	OutputStream out = post.getOutputStream();
+    	try {
+    		mapper.writeValue(out, new TravelAgentBooking(customer, flight, hotel, taxi, new SimpleDateFormat("yyyy-MM-dd").parse("2016-03-09")));
+    	} finally {
+    		out.close();
+    	}
+    	assertEquals("Unexpected response status", 201, post.getResponseCode());
+    	Map<String, Object> created = mapper.readValue(body(post), Map.class);
+    	assertNotNull("Created booking has no id", created.get("id"));
+    	assertEquals("Flight booking does not exist", 1, ((List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity()).size());
+    	
+    	HttpURLConnection delete = request("DELETE", "api/travelagent/async/bookings/" + created.get("id"));
+    	assertEquals("Unexpected response status", 204, delete.getResponseCode());
+    	assertTrue("Deleted flight booking is still listed", ((List<Booking>) bookingService.getAllBookings(customer.getId()).getEntity()).isEmpty());
+    }
+    
+    /**
+     * Does the bulkhead of an upstream refuse a call with 503 while all its slots are held, until the response holding
+     * one is released?
+     */
+    @Test
+    @InSequence(10)
+    public void bulkheadRejectsWhenFull() throws Exception {
+    	UpstreamGuard guard = guard("bulkhead-test", "bulkhead", "1", "bulkhead.wait", "0");
+    	DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager());
+    	
+    	try {
+    		TaxiService taxis = taxis(guard, client);
+    		
+    		//the slot is held until the response is read or released
+    		ClientResponse<List<Taxi>> held = taxis.getTaxis();
+    		assertEquals("Unexpected response status", 200, held.getStatus());
+    		assertEquals("Call was let through a full bulkhead", 503, status(taxis));
+    		assertEquals("Refused call was not counted", 1L, guard.getMetrics().get("bulkheadRejected"));
+    		
+    		held.releaseConnection();
+    		assertEquals("Call was refused once the slot was given back", 200, status(taxis));
+    	} finally {
+    		client.getConnectionManager().shutdown();
+    	}
+    }
+    
+    /**
+     * Does the circuit breaker of an upstream open on failed or slow calls, fail fast with 503 while open, and close
+     * again through half-open once the upstream has recovered?
+     */
+    @Test
+    @InSequence(11)
+    public void circuitBreakerOpensAndRecovers() throws Exception {
+    	UpstreamGuard guard = guard("breaker-test", "breaker.window", "4", "breaker.minimum-calls", "4", "breaker.failure-rate", "50",
+    			"breaker.slow-call", "200", "breaker.slow-call-rate", "50", "breaker.open-for", "500", "breaker.half-open-calls", "2");
+    	CircuitBreaker breaker = guard.getBreaker();
+    	StubBehaviour behaviour = stubs.getTaxi().getBehaviour();
+    	DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager());
+    	
+    	try {
+    		TaxiService taxis = taxis(guard, client);
+    		
+    		//opens once half the calls of the window have failed
+    		behaviour.setErrorRate(100);
+    		for(int i = 0; i < 4; i++) {
+    			assertEquals("Unexpected response status", 500, status(taxis));
+    		}
+    		assertEquals("Failed calls didn't open the circuit", CircuitBreaker.State.OPEN, breaker.getState());
+    		
+    		//while open, calls fail straight away without reaching the upstream
+    		Object requests = behaviour.getMetrics().get("requests");
+    		long start = System.nanoTime();
+    		assertEquals("Open circuit let a call through", 503, status(taxis));
+    		assertTrue("Open circuit didn't fail fast", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    		assertEquals("Open circuit called the upstream", requests, behaviour.getMetrics().get("requests"));
+    		
+    		//a failed trial call opens it again
+    		Thread.sleep(600);
+    		assertEquals("Unexpected response status", 500, status(taxis));
+    		assertEquals("Failed trial call didn't open the circuit again", CircuitBreaker.State.OPEN, breaker.getState());
+    		
+    		//once the upstream has recovered, the trial calls close it
+    		behaviour.setErrorRate(0);
+    		Thread.sleep(600);
+    		assertEquals("Trial call was refused", 200, status(taxis));
+    		assertEquals("Circuit isn't half-open", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    		assertEquals("Trial call was refused", 200, status(taxis));
+    		assertEquals("Successful trial calls didn't close the circuit", CircuitBreaker.State.CLOSED, breaker.getState());
+    		
+    		//a slow upstream opens it too
+    		behaviour.setLatency(300, 300);
+    		for(int i = 0; i < 4; i++) {
+    			assertEquals("Unexpected response status", 200, status(taxis));
+    		}
+    		assertEquals("Slow calls didn't open the circuit", CircuitBreaker.State.OPEN, breaker.getState());
+    	} finally {
+    		//the stubs are shared by the other tests
+    		behaviour.setErrorRate(0);
+    		behaviour.setLatency(0, 0);
+    		client.getConnectionManager().shutdown();
+    	}
+    }
+    
+    /**
+     * @return A guard of its own, made with the given <code>upstream.&lt;name&gt;.*</code> settings, so the guards of the
+     * application are left alone
+     */
+    private static UpstreamGuard guard(String name, String... settings) {
+    	for(int i = 0; i < settings.length; i += 2) {
+    		System.setProperty("upstream." + name + "." + settings[i], settings[i + 1]);
+    	}
+    	try {
+    		return new UpstreamGuard(name);
+    	} finally {
+    		for(int i = 0; i < settings.length; i += 2) {
+    			System.clearProperty("upstream." + name + "." + settings[i]);
+    		}
+    	}
+    }
+    
+    private static TaxiService taxis(UpstreamGuard guard, DefaultHttpClient client) {
+    	return guard.protect(TaxiService.class, ProxyFactory.create(TaxiService.class, stubs.getTaxi().getUrl(), new ApacheHttpClient4Executor(client)));
+    }
+    
+    /**
+     * @return The status of a call to the taxis, or that of the RestServiceException refusing it
+     */
+    private static int status(TaxiService taxis) {
+    	try {
+    		ClientResponse<List<Taxi>> response = taxis.getTaxis();
+    		response.releaseConnection();
+    		return response.getStatus();
+    	} catch (RestServiceException e) {
+    		return e.getStatus().getStatusCode();
+    	}
+    }
+    
+    private HttpURLConnection request(String method, String path) throws IOException {
+    	HttpURLConnection connection = (HttpURLConnection) new URL(deployment, path).openConnection();
+    	connection.setRequestMethod(method);
+    	connection.setRequestProperty("Accept", "application/json");
+    	//so the CompressionFilter has to end the response once the request is resumed
+    	connection.setRequestProperty("Accept-Encoding", "gzip");
+    	connection.setConnectTimeout(5000);
+    	connection.setReadTimeout(30000);
+    	return connection;
+    }
+    
+    private static InputStream body(HttpURLConnection connection) throws IOException {
+    	InputStream in = connection.getInputStream();
+    	return "gzip".equals(connection.getHeaderField("Content-Encoding")) ? new GZIPInputStream(in) : in;
+    }
+    
     private Customer addCustomer(Customer c) {
     	Response response = customerService.createCustomer(c);
     	return (Customer) response.getEntity();
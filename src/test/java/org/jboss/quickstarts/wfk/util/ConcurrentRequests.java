@@ -0,0 +1,81 @@
+package org.jboss.quickstarts.wfk.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * <p>Sends the same request from many threads at the same time, to check how a unique key holds up against a race.</p>
+ *
+ * <p>All the threads are started first and then released together, so the requests overlap as much as possible.</p>
+ *
+ * @author Jakub Gawron
+ */
+public final class ConcurrentRequests {
+    private static final int ATTEMPTS = 16;
+    private static final long TIMEOUT = 30;
+
+    private ConcurrentRequests() {}
+
+    /**
+     * <p>Checks that exactly one of the requests creates the resource, and all the others are refused with
+     * 409 CONFLICT.</p>
+     *
+     * @param what What is being created, for the failure messages
+     * @param request The request, which returns the response or throws a {@link RestServiceException}
+     */
+    public static void assertCreatedOnce(String what, Callable<Response> request) throws Exception {
+        int created = 0;
+        for (int status : send(request)) {
+            if (status == 201) {
+                created++;
+            } else {
+                assertEquals("Unexpected response status", 409, status);
+            }
+        }
+        assertEquals("Exactly one " + what + " should be created", 1, created);
+    }
+
+    /**
+     * @return The status of every request
+     */
+    private static List<Integer> send(final Callable<Response> request) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(ATTEMPTS);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+
+        try {
+            for (int i = 0; i < ATTEMPTS; i++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        try {
+                            return request.call().getStatus();
+                        } catch (RestServiceException e) {
+                            return e.getStatus().getStatusCode();
+                        }
+                    }
+                }));
+            }
+            start.countDown();
+
+            List<Integer> statuses = new ArrayList<Integer>();
+            for (Future<Integer> future : futures) {
+                statuses.add(future.get(TIMEOUT, TimeUnit.SECONDS));
+            }
+            return statuses;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.concurrent.Callable;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+
+/**
+ * <p>Counts the SQL statements sent to the database by a piece of code, from the Hibernate statistics.</p>
+ *
+ * <p>The statistics cover the whole application, so a statement run by a background task (e.g. the booking hold
+ * reaper) at the same time would be counted too. The code is run a few times and the lowest count is taken.</p>
+ *
+ * @author Jakub Gawron
+ */
+public final class SqlStatements {
+    private static final int RUNS = 3;
+
+    private SqlStatements() {}
+
+    /**
+     * @param em Any EntityManager of the persistence unit
+     * @param action The code whose statements to count
+     * @return The number of statements prepared while running the code
+     */
+    public static long count(EntityManager em, Callable<?> action) throws Exception {
+        Statistics statistics = em.unwrap(Session.class).getSessionFactory().getStatistics();
+        boolean enabled = statistics.isStatisticsEnabled();
+        statistics.setStatisticsEnabled(true);
+
+        try {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                long before = statistics.getPrepareStatementCount();
+                action.call();
+                min = Math.min(min, statistics.getPrepareStatementCount() - before);
+            }
+            return min;
+        } finally {
+            statistics.setStatisticsEnabled(enabled);
+        }
+    }
+}